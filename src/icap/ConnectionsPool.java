@@ -32,16 +32,26 @@ package icap;
 import java.util.*;
 import java.util.logging.Level;
 import java.lang.reflect.Constructor;
+import java.io.OutputStream;
 import java.net.*;
+import java.nio.charset.Charset;
 import tools.logger.Log;
+import tools.general.BoundedQueue;
+import tools.monitor.ConnectionStatistics;
 import icap.core.*;
 ///////////////////////////////////
 
 /**
  * PoolThreads class allow to manage a thread pool for client connections.
  * Pool is set to nbThreads size, and managed threads must implement a 
- * method assignTask(Socket sock).
+ * method assignTask(IcapConnection connection).
  * These threads are used to manage clients connections.
+ * When used behind a SelectorFrontEnd, threads only proceed one transaction
+ * before returning into the pool, so that a bounded pool can serve many
+ * persistent connections.<br>
+ * Connections are handed over to threads through a bounded lock-free queue. 
+ * When this queue is full, connections are rejected at once with an ICAP 503
+ * (or a 204 when client allows it) instead of waiting until client timeout.
  * @version 1.0
  * @author k.mittig 
  */
@@ -51,28 +61,44 @@ public class ConnectionsPool extends Thread{
     /**Number of threads created in pool*/
     int nbThreads = 20;
 
-    /**Pool, with only sleeping threads (active are removed)*/
+    /**Pool threads*/
     Vector<AbstractService> poolThreads = new Vector<AbstractService>();
-    /**Buffer containing waiting commands (here, clients connections requests)*/
-    Vector<Socket> waitingCommand = new Vector<Socket>();
+    /**Bounded buffer containing waiting commands (here, clients connections requests)*/
+    BoundedQueue<IcapConnection> waitingCommand;
+
+    /**internal flag to check pool availability*/
+    private volatile boolean running = true;
+
+    /**ICAP server managing the pool (provides responses sent when queue is full)*/
+    private final IcapServer server;
+
+    /**Charset used to read ICAP headers*/
+    private final static Charset ISO88591 = Charset.forName("ISO-8859-1");
 
 //  <------------------------------------------------------------------------------------------>
     /** Initialize an pool of "size" threads
      * @param _server ICAP Server managing the connection pool
      * @param size Pool size (number of possible threads)
+     * @param queuesize maximum number of connections waiting for a thread
      * @param constructor The ICAP service constructor
      */
-    public ConnectionsPool(IcapServer _server, int size, Constructor<? extends AbstractService> constructor){
+    public ConnectionsPool(IcapServer _server, int size, int queuesize, Constructor<? extends AbstractService> constructor){
     	super("AdminServer - Thread pool");
         nbThreads = size;
-        AbstractService.setPool(this);
+        waitingCommand = new BoundedQueue<IcapConnection>(queuesize);
+        server = _server;
         for (int i=0; i<size;i++){
         	try{
-        		poolThreads.add(constructor.newInstance(_server,null));
+        		AbstractService service = constructor.newInstance(_server,null);
+        		service.setPool(this);
+        		poolThreads.add(service);
         	}catch (Exception e){
         		e.printStackTrace();
         	}
         }//End for
+        for (AbstractService th:poolThreads){
+            th.start();
+        }//End for
     }
    
 //  <------------------------------------------------------------------------------------------>
@@ -83,16 +109,16 @@ public class ConnectionsPool extends Thread{
      */
     
     public void disable(){
+        running = false;
         for (AbstractService th:poolThreads){
             th.closeConnection();
+            th.interrupt();
         }//End for
-        for (Socket s:waitingCommand){
-            try{
-                s.close();
-            }catch (Exception e){
-            	//nothing to do
-            }
-        }//End for
+        IcapConnection c;
+        while ((c = waitingCommand.poll()) != null){
+            ConnectionStatistics.dequeued(System.nanoTime()-c.queuedAt);
+            c.close();
+        }//End while
     }
     
 //  <------------------------------------------------------------------------------------------>
@@ -100,54 +126,106 @@ public class ConnectionsPool extends Thread{
 //  <------------------------------------------------------------------------------------------>
     /**
      * Server receive clients connection requests and send them to assignTask method
-     * each time. This task is given to one sleeping thread if available, otherwise 
-     * stored in a buffer.
+     * each time. This task is queued until a thread is available.
      * @param sock The pending socket to proceed
      */
     
     public void assignTask(Socket sock){
+        assignTask(new IcapConnection(sock, null, null));
+    }
+//  <------------------------------------------------------------------------------------------>
+
+//  <------------------------------------------------------------------------------------------>
+    /**
+     * Queue a connection until a thread is available. If queue is full,
+     * connection is rejected at once.
+     * @param connection The pending connection to proceed
+     */
+    
+    public void assignTask(IcapConnection connection){
         //Log.service("Connection received from "+sock.getInetAddress().getHostAddress());
-        try{
-            if (poolThreads.size()>0) {
-                AbstractService thread = poolThreads.firstElement();
-                // remove thread from pool
-                poolThreads.remove(thread);
-                thread.assignTask(sock);
-                // test if thread is waiting
-                if (!thread.isAlive()) { // if not, launch it
-                    thread.start();
-                } else {
-                    thread.interrupt(); // if yes, interrupt wait() to start it
-                }
-            } else { // no more thread available =>put request in the queue
-                waitingCommand.add(sock);
-            }//Endif
-        } catch (Exception e){
-            if (Log.finest()) Log.trace(Level.FINEST, e);
+        connection.queuedAt = System.nanoTime();
+        if (running && waitingCommand.offer(connection)) {
+            ConnectionStatistics.queued();
+            return;
         }
+        reject(connection);
     }
 //  <------------------------------------------------------------------------------------------>
 
 //  <------------------------------------------------------------------------------------------>
     /** 
-     * Each thread call this method when it finishes its task
-     * If there is awaiting command in buffer, thread takes it and restart.
-     * Otherwise, it put itself in available threads and in sleep mode.
-     * @param thread Thread that has finished its work and returns into pool
-     * @return a pending socket if any is waiting, null otherwise.
+     * Each thread call this method when it is ready to proceed a new task.
+     * Thread sleeps until a connection is available.
+     * @return the connection to proceed, or null if pool is disabled.
      */
     
-    public synchronized Socket restoreInPool(AbstractService thread){
-        if (waitingCommand.size()>0){ // there are waiting commands in the queue
-            Socket sock = waitingCommand.firstElement();
-            waitingCommand.remove(sock);
-            thread.assignTask(sock); // proceed first command (FIFO)
-            return sock;
+    public IcapConnection take(){
+        try {
+            IcapConnection connection = waitingCommand.take();
+            ConnectionStatistics.dequeued(System.nanoTime()-connection.queuedAt);
+            if (running) return connection;
+            connection.close();
+        } catch (InterruptedException e){
+            //pool disabled
         }
-        poolThreads.add(thread); // no waiting command=> restore thread in the pool
         return null;
-    }//End class restoreInPool
+    }//End class take
     
 //  <------------------------------------------------------------------------------------------>
 
+//  <------------------------------------------------------------------------------------------>
+    /**
+     * Reject a connection that cannot be queued: answer with a 204 if ICAP request
+     * already read by front end allows it, with a 503 otherwise, then close connection.
+     * @param connection The connection to reject
+     */
+    private void reject(IcapConnection connection){
+        boolean bypass = allowsBypass(connection.pending);
+        ConnectionStatistics.rejected(bypass);
+        if (Log.fine()) Log.trace(Level.FINE, getName()+" - queue full, connection rejected with "+(bypass?"204":"503"));
+        try {
+            OutputStream out = connection.socket.getOutputStream();
+            //templates follow ISTag updates
+            ResponseTemplates templates = server.getTemplates();
+            out.write(bypass?templates.overloaded:templates.unavailable);
+            out.flush();
+            connection.socket.shutdownOutput();
+        } catch (Exception e){
+            if (Log.finest()) Log.trace(Level.FINEST, e);
+        }
+        connection.close();
+    }
+//  <------------------------------------------------------------------------------------------>
+
+//  <------------------------------------------------------------------------------------------>
+    /**
+     * Check if a REQMOD/RESPMOD request can be answered with a 204:
+     * client must support 204 outside preview (Allow: 204) or use preview.
+     * @param pending Bytes already read from connection, starting with ICAP header (may be null)
+     * @return true if a 204 response can be sent
+     */
+    static boolean allowsBypass(byte[] pending){
+        if (pending == null) return false;
+        String header = new String(pending, 0, pending.length<8192?pending.length:8192, ISO88591).toLowerCase().trim();
+        int end = header.indexOf("\r\n\r\n");
+        if (end > 0) header = header.substring(0, end);
+        if (!header.startsWith("reqmod") && !header.startsWith("respmod")) return false;
+        if (header.contains("\npreview:")) return true;
+        int pos = header.indexOf("\nallow:");
+        if (pos < 0) return false;
+        int eol = header.indexOf('\n', pos+1);
+        return (eol<0?header.substring(pos):header.substring(pos, eol)).contains("204");
+    }
+//  <------------------------------------------------------------------------------------------>
+
+//  <------------------------------------------------------------------------------------------>
+    /**
+     * @return number of connections waiting for a thread
+     */
+    public int getQueueDepth(){
+        return waitingCommand.size();
+    }
+//  <------------------------------------------------------------------------------------------>
+
 }
\ No newline at end of file
@@ -37,10 +37,16 @@ import java.net.*;
 import java.util.*;
 import java.util.logging.Level;
 import java.lang.reflect.*;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
 import tools.httpserver.*;
 import tools.logger.Log;
 import tools.logger.StdLogger;
+import tools.general.BoundedQueue;
+import tools.general.BufferArena;
+import tools.general.BodyStorage;
 import tools.general.MimeMagic;
+import tools.monitor.ConnectionStatistics;
 ///////////////////////////////////
 
 
@@ -73,7 +79,7 @@ import tools.general.MimeMagic;
 public class IcapServer extends Thread implements Icap {
 
 	/** pre-generated 204 no content response that can be directly used by services implementations */
-	public byte[] _204NOCONTENT;  
+	public volatile byte[] _204NOCONTENT;  
 
 	/** Set if log are activated or not*/
 	//public static boolean log = false;
@@ -100,9 +106,16 @@ public class IcapServer extends Thread implements Icap {
 	VectoringPoint mode;
 
 	/** OPTIONS response send to ICAP client */
-	protected String OPTIONS="ICAP/1.0 200 OK\r\n";
+	protected volatile String OPTIONS="ICAP/1.0 200 OK\r\n";
 	/** Service ISTAG*/
-	protected String ISTAG="";
+	protected volatile String ISTAG="";
+	/** OPTIONS response headers following ISTAG*/
+	private String optionsFields = "";
+	/** ISTAG value set in configuration, and number of service updates since startup*/
+	private String istagBase;
+	private int istagGeneration = 0;
+	/** pre-encoded responses parts, replaced as a whole when ISTAG changes*/
+	private volatile ResponseTemplates templates;
 
 	/** Configuration file directory, ending with trailing path separator */
 	public final static String confDirectory = "conf"+File.separatorChar;
@@ -132,16 +145,36 @@ public class IcapServer extends Thread implements Icap {
 	private static String runningconfig = "";
 
 	private ServerSocket serviceSocket = null;
+	/**All listening sockets (one per acceptor if SO_REUSEPORT is supported)*/
+	private ServerSocket[] serviceSockets = null;
+	/**Number of threads accepting connections*/
+	public int acceptors = 1;
+	/**set if SO_REUSEPORT option could be set on listening sockets*/
+	private boolean reusePort = false;
+	/**Threads pool (if used)*/
+	private ConnectionsPool pool = null;
 	
 	/**Flag used to log all displayed messages to a file (no more std/err output)*/
 	public static boolean turnStdOff = false;
 	
 	/**Defines the size of the thread pool (if used) */
 	public int poolSize	= 20;
+
+	/**Maximum number of connections waiting for a pool thread before being rejected (if pool is used) */
+	public int queueSize = 1000;
 	
 	/**ICAP connections timeout, in ms. Force connection close if no data is received after this time.*/
 	public static int ICAP_SO_TIMEOUT = 900000;
 
+	/**set if idle connections are multiplexed by a selector based front end*/
+	protected boolean useSelector = false;
+	/**Number of I/O threads used by the selector front end (if used)*/
+	public int selectorThreads = 2;
+	/**Number of workers proceeding transactions handed over by the selector front end (if used)*/
+	public int workers = 20;
+	/**Selector front end handling idle connections (if used)*/
+	private SelectorFrontEnd frontEnd = null;
+
 	
 	//	<--------------------------------------------------------------------------->
 	/**
@@ -204,35 +237,47 @@ public class IcapServer extends Thread implements Icap {
 		} 
 
 		//set OPTIONS parameters from configuration or from default if not provided
-		this.ISTAG = "ISTag: \""+serviceconfig.getProperty("ISTag", name+"-"+IcapServer.version)+"\"";
-		this.OPTIONS +=this.ISTAG+CRLF;
-		this.OPTIONS +="Service: "+this.serviceconfig.getProperty("Service", name).trim()+CRLF;
-		this.OPTIONS +="Service-ID: "+this.serviceconfig.getProperty("Service-ID", name).trim()+CRLF;
-		this.OPTIONS +="Methods: "+ (this.mode==VectoringPoint.REQRESPMOD?"REQMOD, RESPMOD":this.mode.toString())+CRLF;
-		this.OPTIONS +="Options-TTL: "+this.serviceconfig.getProperty("Options-TTL", "300").trim()+CRLF;
+		this.istagBase = serviceconfig.getProperty("ISTag", name+"-"+IcapServer.version);
+		String fields = "";
+		fields +="Service: "+this.serviceconfig.getProperty("Service", name).trim()+CRLF;
+		fields +="Service-ID: "+this.serviceconfig.getProperty("Service-ID", name).trim()+CRLF;
+		fields +="Methods: "+ (this.mode==VectoringPoint.REQRESPMOD?"REQMOD, RESPMOD":this.mode.toString())+CRLF;
+		fields +="Options-TTL: "+this.serviceconfig.getProperty("Options-TTL", "300").trim()+CRLF;
 		
 		// Check max connections parameter. If not set, fix a 100 value and no pool.
 		// Otherwise, set up a pool with given connections number
 		if (this.serviceconfig.containsKey("Max-Connections")){
 			this.poolSize = Integer.parseInt(this.serviceconfig.getProperty("Max-Connections").trim());
-			this.OPTIONS +="Max-Connections: "+this.serviceconfig.getProperty("Max-Connections").trim()+CRLF;
+			fields +="Max-Connections: "+this.serviceconfig.getProperty("Max-Connections").trim()+CRLF;
 		} else {
-			this.OPTIONS +="Max-Connections: "+100+CRLF;
+			fields +="Max-Connections: "+100+CRLF;
 		}
 				
-		this.OPTIONS +="Allow: "+this.serviceconfig.getProperty("Allow", "204").trim()+CRLF;
+		fields +="Allow: "+this.serviceconfig.getProperty("Allow", "204").trim()+CRLF;
 		if (this.serviceconfig.containsKey("Preview")) {
-			OPTIONS +="Preview: "+this.serviceconfig.getProperty("Preview", "0").trim()+CRLF;
-			OPTIONS +="Transfer-Preview: "+this.serviceconfig.getProperty("Transfer-Preview", "*").trim()+CRLF;
-			if (this.serviceconfig.containsKey("Transfer-Complete")) OPTIONS +="Transfer-Complete: "+serviceconfig.getProperty("Transfer-Complete")+CRLF;
+			fields +="Preview: "+this.serviceconfig.getProperty("Preview", "0").trim()+CRLF;
+			fields +="Transfer-Preview: "+this.serviceconfig.getProperty("Transfer-Preview", "*").trim()+CRLF;
+			if (this.serviceconfig.containsKey("Transfer-Complete")) fields +="Transfer-Complete: "+serviceconfig.getProperty("Transfer-Complete")+CRLF;
+		}
+		if (this.serviceconfig.containsKey("Transfer-Ignore")) fields +="Transfer-Ignore: "+serviceconfig.getProperty("Transfer-Ignore")+CRLF;
+		fields +="X-Include: "+serviceconfig.getProperty("X-Include", "X-Client-IP, X-Authenticated-Groups, X-Authenticated-User, X-Subscriber-Id").trim()+CRLF;
+		if (this.serviceconfig.containsKey("Options-custom")) fields +=serviceconfig.getProperty("Options-custom")+CRLF;
+		//fields +="Connection: close"+CRLF;
+		fields +=CRLF;
+		this.optionsFields = fields;
+		setISTAG(this.istagBase);
+
+		if (this.serviceconfig.containsKey("Queue-Size")){
+			int size = Integer.parseInt(this.serviceconfig.getProperty("Queue-Size").trim());
+			if (size <= 0) {
+				if (Log.warning()) Log.error(Log.WARNING, "Invalid Queue-Size ["+size+"] for service "+name+": keeping default value ["+queueSize+"]");
+			} else {
+				this.queueSize = Math.min(size, BoundedQueue.MAX_CAPACITY);
+			}
+		}
+		if (this.serviceconfig.containsKey("Acceptors")){
+			this.acceptors = Math.max(1, Integer.parseInt(this.serviceconfig.getProperty("Acceptors").trim()));
 		}
-		if (this.serviceconfig.containsKey("Transfer-Ignore")) OPTIONS +="Transfer-Ignore: "+serviceconfig.getProperty("Transfer-Ignore")+CRLF;
-		this.OPTIONS +="X-Include: "+serviceconfig.getProperty("X-Include", "X-Client-IP, X-Authenticated-Groups, X-Authenticated-User, X-Subscriber-Id").trim()+CRLF;
-		if (this.serviceconfig.containsKey("Options-custom")) OPTIONS +=serviceconfig.getProperty("Options-custom")+CRLF;
-		//this.OPTIONS +="Connection: close"+CRLF;
-		this.OPTIONS +=CRLF;
-
-		this._204NOCONTENT = (Icap._204_NOCONTENT + this.ISTAG+CRLF+CRLF).getBytes();
 
 		// configure keep alive parameter for ICAP. 
 		// Keep-alive cannot be activated simultaneously with connection pool.
@@ -247,6 +292,18 @@ public class IcapServer extends Thread implements Icap {
 			if (turnStdOff && Log.config()) Log.error(Level.CONFIG, "Keep-Alive connections activated. Connections pooling deactivated.");
 			else System.out.println("Keep-Alive connections activated. Connections pooling deactivated.");
 		}
+
+		// configure front end: idle connections can be watched by a few selector threads 
+		// instead of one blocked thread per connection
+		if (this.serviceconfig.getProperty("Front-End","blocking").trim().equalsIgnoreCase("selector")){
+			this.useSelector = true;
+			if (this.serviceconfig.containsKey("Selector-Threads")){
+				this.selectorThreads = Integer.parseInt(this.serviceconfig.getProperty("Selector-Threads").trim());
+			}
+			this.workers = Integer.parseInt(this.serviceconfig.getProperty("Workers", ""+poolSize).trim());
+			if (turnStdOff && Log.config()) Log.error(Level.CONFIG, "Selector front end activated with ["+selectorThreads+"] I/O threads and ["+workers+"] workers");
+			else System.out.println("Selector front end activated with ["+selectorThreads+"] I/O threads and ["+workers+"] workers");
+		}
 		servers.add(this);
 	}
 //	<--------------------------------------------------------------------------->
@@ -305,7 +362,7 @@ public class IcapServer extends Thread implements Icap {
 			String str;
 
 			//pre-parse configuration to set log path correctly
-			String logpath = null, loglevel = null;
+			String logpath = null, loglevel = null, servicethreads = null;
 			int maxlogentries=-1, maxlogfiles=-1;
 			boolean accessEnabled=true,
 			errorEnabled=true,adminEnabled=true,
@@ -332,6 +389,8 @@ public class IcapServer extends Thread implements Icap {
 					debugEnabled = str.split("\\s+",2)[1].trim().toLowerCase().equals("on")?true:false;
 				} else if (str.startsWith("log.silent")) {
 					turnStdOff = str.split("\\s+",2)[1].trim().toLowerCase().equals("on")?true:false;
+				} else if (str.startsWith("service_threads")) {
+					servicethreads = str.split("\\s+",2)[1].trim();
 				}
 			}//End while readLine
 			in.close();
@@ -347,6 +406,12 @@ public class IcapServer extends Thread implements Icap {
 			if (loglevel != null) Log.setLogLevel(loglevel);
 			if (maxlogentries != -1) Log.setMaxentries(maxlogentries);
 			if (maxlogfiles != -1) Log.setMaxfiles(maxlogfiles);
+			//threads mode must be set before services start listening
+			if (servicethreads != null){
+				ExecutionMode mode = ExecutionMode.setMode(servicethreads);
+				if (turnStdOff && Log.config()) Log.error(Level.CONFIG,"ICAP services running in "+mode.toString().toLowerCase()+" threads");
+				else System.out.println("ICAP services running in "+mode.toString().toLowerCase()+" threads");
+			}
 			//Parse configuration for real services parameters			
 			in = new BufferedReader(new FileReader(fich));  
 			while ((str = in.readLine()) !=null ){
@@ -377,6 +442,24 @@ public class IcapServer extends Thread implements Icap {
 						else System.out.println("TCP low latency activated.");
 						IcapServer.optimizeTCP = true;
 					}
+				} else if (values[0].equalsIgnoreCase("buffer_highwater")){
+					BufferArena.configure(Integer.parseInt(values[1].trim()), -1);
+					if (turnStdOff && Log.config()) Log.error(Level.CONFIG,"Buffers retained up to ["+values[1]+"] KB");
+					else System.out.println("Buffers retained up to ["+values[1]+"] KB");
+				} else if (values[0].equalsIgnoreCase("buffer_cap")){
+					BufferArena.configure(-1, Integer.parseInt(values[1].trim()));
+					if (turnStdOff && Log.config()) Log.error(Level.CONFIG,"Retained buffers limited to ["+values[1]+"] MB");
+					else System.out.println("Retained buffers limited to ["+values[1]+"] MB");
+				} else if (values[0].equalsIgnoreCase("body_direct_threshold")){
+					BodyStorage.configure(Integer.parseInt(values[1].trim()), -1, -1);
+				} else if (values[0].equalsIgnoreCase("body_direct_pool")){
+					BodyStorage.configure(-1, -1, Integer.parseInt(values[1].trim()));
+				} else if (values[0].equalsIgnoreCase("body_spill_threshold")){
+					BodyStorage.configure(-1, Integer.parseInt(values[1].trim()), -1);
+					if (turnStdOff && Log.config()) Log.error(Level.CONFIG,"Bodies above ["+values[1]+"] KB spilled to temporary files");
+					else System.out.println("Bodies above ["+values[1]+"] KB spilled to temporary files");
+				} else if (values[0].equalsIgnoreCase("body_spill_path")){
+					BodyStorage.setSpillDirectory(new File(values[1].trim()));
 				}  else if (values[0].equalsIgnoreCase("admin.enabled")){
 					if (values[1].equalsIgnoreCase("on")) {
 						IcapServer.setWebAdmin(true, config);
@@ -425,7 +508,7 @@ public class IcapServer extends Thread implements Icap {
 		running = false;
 		try {
 			this.interrupt();
-			serviceSocket.close();
+			closeServiceSockets();
 		} catch (Exception e){
 			//e.printStackTrace();
 		}
@@ -437,64 +520,31 @@ public class IcapServer extends Thread implements Icap {
 	 * Launch ICAP Server thread on ICAP port<br>
 	 */
 	public void run() {
-		//ServerSocket sock = null;
-		AbstractService serviceinstance;
 		//double infinite loop to handle exceptions
 		int criticalfailure =0;
-		ConnectionsPool pool = null;
 		while (running) {
 			try {
-				serviceSocket = new ServerSocket();
-				//Set server performances priority to connection time, then latency, and last bandwidth
-				if (optimizeTCP){
-					serviceSocket.setPerformancePreferences(1,2,0); // optimize for latency
-					serviceSocket.setReceiveBufferSize(16777216);
-					serviceSocket.setReuseAddress(true);
+				//with several acceptors, each one gets its own socket if SO_REUSEPORT is supported,
+				//so that kernel spreads new connections. Otherwise, they all share the same socket.
+				serviceSocket = createServiceSocket(acceptors > 1);
+				serviceSockets = new ServerSocket[acceptors > 1 && reusePort ? acceptors : 1];
+				serviceSockets[0] = serviceSocket;
+				for (int i=1; i<serviceSockets.length; i++){
+					serviceSockets[i] = createServiceSocket(true);
 				}
-				/*if (lightspeed){
-					try {
-						SocketImplFactory factory = new jfs.net.FastSocketImplFactory();
-						Socket.setSocketImplFactory(factory);
-						ServerSocket.setSocketFactory(factory);
-					} catch (Exception e){
-						e.printStackTrace();
-					}
-				}*/
-				serviceSocket.bind(IP,backlog);
 				criticalfailure = 0;
 
-				if (!keepalive) pool = new ConnectionsPool(this, poolSize,constructor);
-				while (running) {
-					try{
-						Socket clientSocket = serviceSocket.accept();
-						if (optimizeTCP && keepalive){
-							clientSocket.setPerformancePreferences(0,2,1); // optimize for latency
-							clientSocket.setKeepAlive(true); //optimization for keepalive sockets
-							clientSocket.setSendBufferSize(131072);
-							clientSocket.setTcpNoDelay(true); //disable tcp slow start
-							clientSocket.setSoTimeout(ICAP_SO_TIMEOUT);//don't block more than given time
-							clientSocket.setReuseAddress(true);
-						}
-						if (Log.finest()) Log.trace(Log.FINE,"New ICAP Connection received");
-						if (!keepalive){
-							pool.assignTask(clientSocket);
-						} else {
-							serviceinstance = constructor.newInstance(this, clientSocket);
-							serviceinstance.start();
-						}
-					} catch (Exception e){
-						//e.printStackTrace();
-						if (running){
-							Log.error(Log.SEVERE, "Failure while creating new socket processing instance : ", e);
-						} 
-					} catch (Throwable t){
-						//t.printStackTrace();
-						if (running){
-							Log.error(Log.SEVERE, "Failure while creating new socket processing instance : ", t);
-							System.gc();
-						}
-					}
-				}//while true
+				if (useSelector) {
+					//workers are bounded, and only busy during transactions (even with persistent connections)
+					pool = new ConnectionsPool(this, workers, queueSize, constructor);
+					frontEnd = new SelectorFrontEnd(this, selectorThreads, pool);
+				} else if (!keepalive) {
+					pool = new ConnectionsPool(this, poolSize, queueSize, constructor);
+				}
+				for (int i=1; i<acceptors; i++){
+					new Acceptor(i, serviceSockets[i % serviceSockets.length]).start();
+				}
+				accept(0, serviceSocket);
 			} catch (java.net.BindException e1){
 				if (!turnStdOff) System.err.println("Error: Unable to open socket on ["+IP.getHostName()+":"+port+"]");
 				if (!turnStdOff) System.err.println("Server halted.");
@@ -502,7 +552,7 @@ public class IcapServer extends Thread implements Icap {
 				System.exit(1);
 			} catch (Exception e) {
 				if (criticalfailure==0) Log.error(Log.SEVERE, "Critical Network failure. Trying to reinitialize server",e);
-				try {if (serviceSocket!=null) serviceSocket.close();}catch (Exception e1){}
+				closeServiceSockets();
 				System.gc();
 				criticalfailure++;
 				if (criticalfailure > 3) {
@@ -511,11 +561,15 @@ public class IcapServer extends Thread implements Icap {
 				}
 			} finally {
 				try{
-					if (serviceSocket!=null) serviceSocket.close();
-					if (!keepalive && pool!=null) {
+					closeServiceSockets();
+					if (pool!=null) {
 						pool.disable();
 						pool = null;
 					}
+					if (frontEnd!=null) {
+						frontEnd.disable();
+						frontEnd = null;
+					}
 				} catch (Exception e1){
 					//do nothing on cleanup error
 				}
@@ -525,6 +579,141 @@ public class IcapServer extends Thread implements Icap {
 	}
 //	<--------------------------------------------------------------------------->
 
+//	<--------------------------------------------------------------------------->
+	/**
+	 * Create and bind a new listening socket on ICAP address
+	 * @param reuseport true to try to enable SO_REUSEPORT on socket (reusePort flag is updated accordingly)
+	 * @return bound socket
+	 * @throws IOException
+	 */
+	private ServerSocket createServiceSocket(boolean reuseport) throws IOException {
+		//selector front end requires channel based sockets
+		ServerSocket socket = useSelector ? ServerSocketChannel.open().socket() : new ServerSocket();
+		//Set server performances priority to connection time, then latency, and last bandwidth
+		if (optimizeTCP){
+			socket.setPerformancePreferences(1,2,0); // optimize for latency
+			socket.setReceiveBufferSize(16777216);
+			socket.setReuseAddress(true);
+		}
+		/*if (lightspeed){
+			try {
+				SocketImplFactory factory = new jfs.net.FastSocketImplFactory();
+				Socket.setSocketImplFactory(factory);
+				ServerSocket.setSocketFactory(factory);
+			} catch (Exception e){
+				e.printStackTrace();
+			}
+		}*/
+		if (reuseport) reusePort = enableReusePort(socket);
+		socket.bind(IP,backlog);
+		return socket;
+	}
+//	<--------------------------------------------------------------------------->
+
+//	<--------------------------------------------------------------------------->
+	/**
+	 * Try to set SO_REUSEPORT option on given socket.
+	 * Option is only available with Java 9+ and on some platforms: it is set using reflection.
+	 * @param socket unbound server socket
+	 * @return true if option has been set
+	 */
+	private static boolean enableReusePort(ServerSocket socket){
+		try {
+			Class<?> socketoption = Class.forName("java.net.SocketOption");
+			Object reuseport = Class.forName("java.net.StandardSocketOptions").getField("SO_REUSEPORT").get(null);
+			ServerSocket.class.getMethod("setOption", socketoption, Object.class).invoke(socket, reuseport, Boolean.TRUE);
+			return true;
+		} catch (Throwable t){
+			if (Log.config()) Log.error(Level.CONFIG, "SO_REUSEPORT not supported: acceptors will share the same socket");
+			return false;
+		}
+	}
+//	<--------------------------------------------------------------------------->
+
+//	<--------------------------------------------------------------------------->
+	/**
+	 * Close all listening sockets
+	 */
+	private void closeServiceSockets(){
+		ServerSocket[] sockets = serviceSockets;
+		if (sockets==null) sockets = new ServerSocket[]{serviceSocket};
+		for (ServerSocket socket:sockets){
+			try {
+				if (socket!=null) socket.close();
+			} catch (Exception e){
+				//do nothing on cleanup error
+			}
+		}
+	}
+//	<--------------------------------------------------------------------------->
+
+//	<--------------------------------------------------------------------------->
+	/**
+	 * Accept connections on given socket until server is stopped or socket is closed
+	 * @param index acceptor number (for statistics)
+	 * @param socket listening socket
+	 */
+	private void accept(int index, ServerSocket socket){
+		AtomicLong counter = ConnectionStatistics.registerAcceptor(this.serverName+":"+port+" #"+index);
+		AbstractService serviceinstance;
+		while (running && !socket.isClosed()) {
+			try{
+				Socket clientSocket = socket.accept();
+				ConnectionStatistics.accepted(counter);
+				if (optimizeTCP && (keepalive || useSelector)){
+					clientSocket.setPerformancePreferences(0,2,1); // optimize for latency
+					clientSocket.setKeepAlive(true); //optimization for keepalive sockets
+					clientSocket.setSendBufferSize(131072);
+					clientSocket.setTcpNoDelay(true); //disable tcp slow start
+					clientSocket.setSoTimeout(ICAP_SO_TIMEOUT);//don't block more than given time
+					clientSocket.setReuseAddress(true);
+				}
+				if (Log.finest()) Log.trace(Log.FINE,"New ICAP Connection received");
+				if (useSelector){
+					frontEnd.register(clientSocket, null);
+				} else if (!keepalive){
+					pool.assignTask(clientSocket);
+				} else {
+					serviceinstance = constructor.newInstance(this, clientSocket);
+					serviceinstance.start();
+				}
+			} catch (Exception e){
+				//e.printStackTrace();
+				if (running && !socket.isClosed()){
+					Log.error(Log.SEVERE, "Failure while creating new socket processing instance : ", e);
+				} 
+			} catch (Throwable t){
+				//t.printStackTrace();
+				if (running){
+					Log.error(Log.SEVERE, "Failure while creating new socket processing instance : ", t);
+					System.gc();
+				}
+			}
+		}//while true
+	}
+//	<--------------------------------------------------------------------------->
+
+//	<--------------------------------------------------------------------------->
+	/**
+	 * Additional thread accepting connections, on its own socket
+	 * (or on the shared one if SO_REUSEPORT is not supported)
+	 */
+	class Acceptor extends Thread {
+		int index;
+		ServerSocket socket;
+
+		Acceptor(int index, ServerSocket socket){
+			super("IcapServer - Acceptor ["+serverName+"-"+index+"]");
+			this.index = index;
+			this.socket = socket;
+		}
+
+		public void run(){
+			accept(index, socket);
+		}
+	}
+//	<--------------------------------------------------------------------------->
+
 //	<--------------------------------------------------------------------------->
 	protected static void registerShutdown(){
     // Add a shutdownHook to the JVM
@@ -726,5 +915,40 @@ public class IcapServer extends Thread implements Icap {
 	public String getISTAG(){
 		return this.ISTAG;
 	}
+
+	/**
+	 * @return responses parts pre-encoded for this server (current ISTAG)
+	 */
+	public ResponseTemplates getTemplates(){
+		return this.templates;
+	}
+
+	/**
+	 * Change ICAP ISTAG value, and regenerate OPTIONS response and pre-encoded responses parts.
+	 * Responses in progress keep using previous templates.
+	 * @param value the new ISTAG value (without quotes)
+	 */
+	public synchronized void setISTAG(String value){
+		String istag = "ISTag: \""+value+"\"";
+		String options = Icap._200_OK+istag+CRLF+this.optionsFields;
+		this.ISTAG = istag;
+		this.OPTIONS = options;
+		this._204NOCONTENT = (Icap._204_NOCONTENT + istag+CRLF+CRLF).getBytes();
+		this.templates = new ResponseTemplates(istag, this.icaphost, options);
+	}
+
+	/**
+	 * Notify that a service has been updated (scripts reloaded...): ISTAG of servers running
+	 * this service is changed, so that ICAP clients do not reuse responses cached before update.
+	 * @param service the service class
+	 */
+	public static void serviceUpdated(Class<? extends AbstractService> service){
+		for (IcapServer server:servers.toArray(new IcapServer[0])){
+			if (server.IcapService != service) continue;
+			synchronized (server){
+				server.setISTAG(server.istagBase+"-"+(++server.istagGeneration));
+			}
+		}
+	}
 //	<--------------------------------------------------------------------------->
 }
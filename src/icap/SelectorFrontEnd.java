@@ -0,0 +1,363 @@
+/**----------------------------------------------------------------------------
+ * GreasySpoon
+ * Copyright (C) 2008 Karel Mittig
+ *-----------------------------------------------------------------------------
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  Please refer to the LICENSE.txt file that comes along with this source file
+ *  or to http://www.gnu.org/licenses/gpl.txt for a full version of the license.
+ *
+ *-----------------------------------------------------------------------------
+ * For any comment, question, suggestion, bugfix or code contribution please
+ * contact Karel Mittig : karel [dot] mittig [at] gmail [dot] com
+ *----------------------------------------------------------------------------------
+ */
+package icap;
+///////////////////////////////////
+//Import
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import tools.logger.Log;
+import icap.core.*;
+///////////////////////////////////
+
+/**
+ * Selector based front end, multiplexing idle ICAP connections on a few I/O threads.<br>
+ * Accepted connections are registered in non blocking mode on one of the reader threads.
+ * Received bytes are accumulated until a complete ICAP header (ending with an empty line)
+ * is available: the connection is then switched back to blocking mode and handed over
+ * to a worker of the connections pool, along with the bytes already read.<br>
+ * Once its transaction is over, the worker gives persistent connections back using release()
+ * and returns into the pool.
+ * @author k.mittig
+ */
+//<------------------------------------------------------------------------------------------>
+public class SelectorFrontEnd {
+
+	/**Maximum ICAP header size buffered by the front end. Bigger headers are handed over as is to workers*/
+	private final static int MAXHEADERSIZE = 65535;
+
+	/**Size of the buffer used by reader threads to read from connections*/
+	private final static int READBUFFERSIZE = 16384;
+
+	/**ICAP server owning this front end*/
+	IcapServer server;
+
+	/**Workers pool proceeding transactions*/
+	ConnectionsPool pool;
+
+	/**I/O threads, each one with its own selector*/
+	private Reader[] readers;
+
+	/**next reader to which a connection will be assigned (round robin)*/
+	private int next = 0;
+
+	/**internal flag to check front end availability*/
+	private volatile boolean running = true;
+
+//  <------------------------------------------------------------------------------------------>
+	/**
+	 * Initialize a front end with "size" I/O threads
+	 * @param _server ICAP Server owning the front end
+	 * @param size number of I/O threads
+	 * @param pool workers pool to which connections are handed over
+	 * @throws IOException if selectors cannot be opened
+	 */
+	public SelectorFrontEnd(IcapServer _server, int size, ConnectionsPool pool) throws IOException {
+		this.server = _server;
+		this.pool = pool;
+		readers = new Reader[size<1?1:size];
+		for (int i=0; i<readers.length; i++){
+			readers[i] = new Reader(_server.serverName+"-"+i);
+		}
+		for (Reader reader:readers){
+			reader.start();
+		}
+	}
+//  <------------------------------------------------------------------------------------------>
+
+//  <------------------------------------------------------------------------------------------>
+	/**
+	 * Register a new ICAP connection: connection will be watched until a full
+	 * ICAP header is received.
+	 * @param sock The accepted socket. Must have been created from a SocketChannel
+	 * @param pending bytes already read from connection (may be null)
+	 */
+	public void register(Socket sock, byte[] pending){
+		if (!running || sock.getChannel()==null){
+			try {
+				sock.close();
+			} catch (Exception e){
+				//nothing to do
+			}
+			return;
+		}
+		Reader reader;
+		synchronized (this){
+			reader = readers[next];
+			next = (next+1) % readers.length;
+		}
+		reader.register(new Connection(sock, pending));
+	}
+//  <------------------------------------------------------------------------------------------>
+
+//  <------------------------------------------------------------------------------------------>
+	/**
+	 * Called by workers once a transaction is over on a persistent connection.
+	 * Connection is put back in idle state until next ICAP request.
+	 * @param sock The connection socket
+	 * @param leftover bytes read by the worker but not consumed by its transaction
+	 */
+	public void release(Socket sock, byte[] leftover){
+		register(sock, leftover);
+	}
+//  <------------------------------------------------------------------------------------------>
+
+//  <------------------------------------------------------------------------------------------>
+	/**
+	 * Stop all I/O threads and close idle connections
+	 */
+	public void disable(){
+		running = false;
+		for (Reader reader:readers){
+			reader.selector.wakeup();
+		}
+	}
+//  <------------------------------------------------------------------------------------------>
+
+//  <------------------------------------------------------------------------------------------>
+	/**
+	 * Hand over a connection with a complete ICAP header to workers pool
+	 * @param connection the connection to proceed
+	 */
+	private void dispatch(Connection connection){
+		try {
+			pool.assignTask(new IcapConnection(connection.socket, connection.getPending(), this));
+		} catch (Throwable t){
+			if (Log.warning()) Log.error(Log.WARNING, server.serverName+" - Unable to dispatch ICAP connection", t);
+			connection.close();
+		}
+	}
+//  <------------------------------------------------------------------------------------------>
+
+
+//  <------------------------------------------------------------------------------------------>
+	/**
+	 * Idle ICAP connection, with bytes received so far
+	 */
+	static class Connection {
+		Socket socket;
+		/**bytes received, not yet consumed*/
+		private byte[] data;
+		private int size = 0;
+		/**offset from which header end has not been searched yet*/
+		private int scanned = 0;
+		/**last time data has been received on this connection*/
+		long lastActivity;
+
+		Connection(Socket sock, byte[] pending){
+			this.socket = sock;
+			if (pending!=null && pending.length>0){
+				this.data = pending;
+				this.size = pending.length;
+			}
+			this.lastActivity = System.currentTimeMillis();
+		}
+
+		/**
+		 * Append readed bytes to connection pending data
+		 * @param buffer buffer filled by a channel read
+		 */
+		void append(ByteBuffer buffer){
+			buffer.flip();
+			int length = buffer.remaining();
+			if (data == null){
+				data = new byte[length<1024?1024:length];
+			} else if (size+length > data.length){
+				data = Arrays.copyOf(data, Math.max(data.length<<1, size+length));
+			}
+			buffer.get(data, size, length);
+			size += length;
+			lastActivity = System.currentTimeMillis();
+		}
+
+		/**
+		 * Check if a full ICAP header has been received (leading empty lines are ignored)
+		 * @return true if connection can be handed over to a worker
+		 */
+		boolean isComplete(){
+			if (size >= MAXHEADERSIZE) return true;
+			int start = 0;
+			while (start<size && (data[start]=='\r' || data[start]=='\n')) start++;
+			int i = scanned>start?scanned:start;
+			for (; i+1<size; i++){
+				if (data[i]!='\n') continue;
+				if (data[i+1]=='\n') return true;
+				if (i+2<size && data[i+1]=='\r' && data[i+2]=='\n') return true;
+			}
+			scanned = i>0?i-1:0;
+			return false;
+		}
+
+		/**
+		 * @return bytes received on connection and not yet consumed (null if none)
+		 */
+		byte[] getPending(){
+			if (size==0) return null;
+			if (size==data.length) return data;
+			return Arrays.copyOf(data, size);
+		}
+
+		/**Close underlying connection*/
+		void close(){
+			try {
+				socket.close();
+			} catch (Exception e){
+				//nothing to do
+			}
+		}
+	}
+//  <------------------------------------------------------------------------------------------>
+
+
+//  <------------------------------------------------------------------------------------------>
+	/**
+	 * I/O thread watching idle connections with its own selector
+	 */
+	class Reader extends Thread {
+		Selector selector;
+		/**connections waiting to be registered on selector (registration must be done by selector thread)*/
+		private ConcurrentLinkedQueue<Connection> registrations = new ConcurrentLinkedQueue<Connection>();
+		/**connections with a full ICAP header, to hand over to workers*/
+		private ArrayList<Connection> ready = new ArrayList<Connection>();
+		private ByteBuffer readbuffer = ByteBuffer.allocate(READBUFFERSIZE);
+		private long lastsweep = System.currentTimeMillis();
+
+		Reader(String name) throws IOException {
+			super("IcapServer - Selector ["+name+"]");
+			this.setDaemon(true);
+			this.selector = Selector.open();
+		}
+
+		/**
+		 * Queue given connection for registration and wake up selector
+		 * @param connection the connection to watch
+		 */
+		void register(Connection connection){
+			registrations.add(connection);
+			selector.wakeup();
+		}
+
+		public void run(){
+			while (running){
+				try {
+					//keys may already be selected by the selectNow() done while dispatching
+					if (selector.selectedKeys().isEmpty()) selector.select(1000);
+					Connection connection;
+					while ((connection = registrations.poll()) != null){
+						try {
+							connection.socket.getChannel().configureBlocking(false);
+							if (connection.isComplete()) {
+								ready.add(connection);
+							} else {
+								connection.socket.getChannel().register(selector, SelectionKey.OP_READ, connection);
+							}
+						} catch (Exception e){
+							connection.close();
+						}
+					}
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()){
+						SelectionKey key = keys.next();
+						keys.remove();
+						read(key, (Connection)key.attachment());
+					}
+					long now = System.currentTimeMillis();
+					if (now - lastsweep > 1000){
+						lastsweep = now;
+						for (SelectionKey key:selector.keys()){
+							connection = (Connection)key.attachment();
+							if (now - connection.lastActivity > IcapServer.ICAP_SO_TIMEOUT){
+								key.cancel();
+								connection.close();
+							}
+						}
+					}
+					if (ready.isEmpty()) continue;
+					//flush cancelled keys before switching channels back to blocking mode
+					selector.selectNow();
+					for (Connection c:ready){
+						try {
+							c.socket.getChannel().configureBlocking(true);
+							dispatch(c);
+						} catch (Exception e){
+							c.close();
+						}
+					}
+					ready.clear();
+				} catch (ClosedSelectorException e){
+					break;
+				} catch (Throwable t){
+					if (running && Log.warning()) Log.error(Log.WARNING, getName()+" - selector failure", t);
+				}
+			}
+			//close idle connections
+			try {
+				for (SelectionKey key:selector.keys()){
+					((Connection)key.attachment()).close();
+				}
+				selector.close();
+			} catch (Exception e){
+				//nothing to do
+			}
+			Connection connection;
+			while ((connection = registrations.poll()) != null) connection.close();
+		}
+
+		/**
+		 * Read available bytes from given connection
+		 * @param key selection key associated to connection
+		 * @param connection the connection to read from
+		 */
+		private void read(SelectionKey key, Connection connection){
+			int readed;
+			try {
+				readbuffer.clear();
+				readed = ((SocketChannel)key.channel()).read(readbuffer);
+			} catch (Exception e){
+				readed = -1;
+			}
+			if (readed < 0){//Connection closed by ICAP client
+				key.cancel();
+				connection.close();
+				if (Log.finest()) Log.trace(Log.FINEST, getName()+" => idle connection closed by ICAP client");
+				return;
+			}
+			if (readed == 0) return;
+			connection.append(readbuffer);
+			if (connection.isComplete()){
+				key.cancel();
+				ready.add(connection);
+			}
+		}
+	}
+//  <------------------------------------------------------------------------------------------>
+
+}
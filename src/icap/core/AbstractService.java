@@ -31,13 +31,17 @@ package icap.core;
 //Import
 import icap.IcapServer;
 import icap.ConnectionsPool;
+import icap.SelectorFrontEnd;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import tools.logger.Log;
 import tools.monitor.TrafficStatistics;
 import tools.general.Compressor;
 import tools.general.MimeMagic;
 import tools.general.ExtendedByteArrayOutputStream;
+import tools.general.SegmentedBuffer;
 ///////////////////////////////////
 
 
@@ -48,19 +52,44 @@ import tools.general.ExtendedByteArrayOutputStream;
  * <p>
  * TODO: optimizations: add lazy parsing. Move methods to static.<br>
  * TODO: move configuration from static flat files to class method<br>
- * TODO: implement new DataInputStream class, with undeprecated readline() method<br> * <p>
+ * <p>
  * @author mittig<br>
  */
-@SuppressWarnings("deprecation")
 public abstract class AbstractService extends IcapParser {
 
 	/**Internal socket used to communicate with iCAP client*/
 	private Socket socket;
-	private BufferedOutputStream bufferedOutputStream;
-	private DataInputStream dis;
 
 	/**buffer used to parse requests*/
 	final static int BYTEBUFFERSIZE = 65535;
+	/**buffer used to write responses*/
+	final static int OUTPUTBUFFERSIZE = 8192;
+
+	/**Client stream, reused for all connections proceeded by this service*/
+	private final IcapInputStream dis = new IcapInputStream(BYTEBUFFERSIZE);
+	/**Client output stream, reused for all connections proceeded by this service*/
+	private final IcapOutputStream dos = new IcapOutputStream(OUTPUTBUFFERSIZE);
+
+	/**ICAP response buffer, reused for all transactions (retained by arena)*/
+	private final ExtendedByteArrayOutputStream response = arena.newStream();
+	/**body to send once response buffer is written (bodies are not copied into response buffer)*/
+	private SegmentedBuffer responseBody = null;
+	/**number of body bytes to send*/
+	private int responseBodyLength = 0;
+	/**chunk end and last chunk to send after body*/
+	private byte[] responseTrailer = null;
+	/**body chunk end followed by last chunk*/
+	private final static byte[] BODYTRAILER = (CRLF+"0"+CRLF+CRLF).getBytes();
+	/**HTTP bodies buffers owned by this service (reqBody/resBody may be replaced during a transaction)*/
+	private final SegmentedBuffer reqBuffer = reqBody, resBuffer = resBody;
+	/**spare body buffer, used to write a new body while received one is kept for ICAP 206 responses*/
+	private final SegmentedBuffer spareBuffer = arena.newBody();
+	/**received HTTP body, kept while a new body is written (compared with it for ICAP 206 responses)*/
+	private SegmentedBuffer originalBody = null;
+	/**set if HTTP body has not been modified (ICAP 206 response reusing whole original body)*/
+	private boolean originalBodyUnchanged = false;
+	/**bodies discarded during transaction while scripts may still read them, released at transaction end*/
+	private final ArrayList<SegmentedBuffer> discardedBodies = new ArrayList<SegmentedBuffer>();
 
 	/**force TCP ACK (solve latency issue with some OS TCP stack implementation)*/
 	private static boolean tcptweak = false;
@@ -71,17 +100,21 @@ public abstract class AbstractService extends IcapParser {
 	/**MTU size used to optimize chunk responses*/
 	final static int MTU = 1448-7;
 
-	/**Content length header size - simple optimization*/
-	private final static int CONTENTLENGTHSIZE = "content-length: ".length();
-	private final static int CONTENTTYPESIZE = "content-type: ".length();
-	//private final static int CHARSETSIZE = "charset=".length();
-
 	protected int RCODE = 500;
 
 	/** ICAP server instantiating this service*/
 	public IcapServer server;
 
-	static ConnectionsPool connectionsPool;
+	/**Pool to which this service instance belongs (if any)*/
+	private ConnectionsPool connectionsPool;
+
+	/**Front end managing the connection between two transactions (selector mode only)*/
+	private SelectorFrontEnd frontEnd;
+	/**bytes already read from the connection by the front end*/
+	private byte[] pending;
+
+	/**Thread running this service (platform or virtual thread, see ExecutionMode)*/
+	private Thread worker;
 
 
 	//	<------------------------------------------------------------------------->  
@@ -89,8 +122,8 @@ public abstract class AbstractService extends IcapParser {
 	 * Assign service in a task pool
 	 * @param pool The task pool to which this service instance belongs
 	 */
-	public static void setPool(ConnectionsPool pool){
-		connectionsPool = pool;
+	public void setPool(ConnectionsPool pool){
+		this.connectionsPool = pool;
 	}
 	//	<------------------------------------------------------------------------->  
 
@@ -127,7 +160,46 @@ public abstract class AbstractService extends IcapParser {
 	 * @param clientsocket socket handling ICAP request
 	 */
 	public void assignTask(Socket clientsocket){
-		this.socket = clientsocket;
+		assignTask(new IcapConnection(clientsocket, null, null));
+	}
+	//	<------------------------------------------------------------------------->
+
+	//	<------------------------------------------------------------------------->
+	/**
+	 * Assign given ICAP connection to a thread. If connection is managed by a front end,
+	 * only one transaction is proceeded before connection is given back to it.
+	 * @param connection connection handling ICAP request
+	 */
+	public void assignTask(IcapConnection connection){
+		this.socket = connection.socket;
+		this.frontEnd = connection.frontEnd;
+		this.pending = connection.pending;
+		this.connection_opened = true;
+	}
+	//	<------------------------------------------------------------------------->
+
+	//	<------------------------------------------------------------------------->
+	/**
+	 * Start service in a new thread, created using configured execution mode
+	 * @see ExecutionMode
+	 */
+	public void start(){
+		this.worker = ExecutionMode.newThread(this, getName());
+		this.worker.start();
+	}
+
+	/**
+	 * @return true if the thread running this service is alive
+	 */
+	public boolean isAlive(){
+		return this.worker!=null && this.worker.isAlive();
+	}
+
+	/**
+	 * Interrupt the thread running this service (used to wake up pooled services)
+	 */
+	public void interrupt(){
+		if (this.worker!=null) this.worker.interrupt();
 	}
 	//	<------------------------------------------------------------------------->
 
@@ -155,8 +227,9 @@ public abstract class AbstractService extends IcapParser {
 		bas.reset();
 		if (!this.server.useKeepAliveConnections()) this.closeConnection();
 		try {
-			if (Log.finer()) Log.trace(Log.FINER, this.server.getOptions()+"---------------------");
-			bas.write(this.server.getOptions().getBytes());
+			ResponseTemplates templates = this.server.getTemplates();
+			if (Log.finer()) Log.trace(Log.FINER, new String(templates.options)+"---------------------");
+			bas.write(templates.options);
 		} catch (Exception e){
 			e.printStackTrace();
 			return 500;
@@ -221,6 +294,38 @@ public abstract class AbstractService extends IcapParser {
 	} 
 	//	<------------------------------------------------------------------------->
 
+	//	<------------------------------------------------------------------------->
+	/**
+	 * @return charset used to decode message body provided to scripts, null for platform charset
+	 */
+	public String getBodyCharset(){
+		return null;
+	}
+	//	<------------------------------------------------------------------------->
+
+	//	<------------------------------------------------------------------------->
+	/**
+	 * Retrieve message body as text on demand, for scripts declaring a lazy body access.
+	 * Services supporting lazy access read, uncompress and decode body on first call.
+	 * @return message body text, or null if service does not support lazy body access
+	 * @throws Exception
+	 */
+	public String getLazyBody() throws Exception {
+		return null;
+	}
+
+	/**
+	 * Retrieve message body bytes on demand, without decoding them, for scripts declaring a
+	 * lazy body access. Body is then available through getReqBody()/getRespBody() (uncompressed),
+	 * and its charset through getBodyCharset().
+	 * @return false if service does not support lazy body access
+	 * @throws Exception
+	 */
+	public boolean loadLazyBody() throws Exception {
+		return false;
+	}
+	//	<------------------------------------------------------------------------->
+
 	//	<------------------------------------------------------------------------->
 	/**
 	 * Check if content provided in HTTP body is compressed using HTTP protocol
@@ -252,14 +357,14 @@ public abstract class AbstractService extends IcapParser {
 	 * @return The uncompress body
 	 * @throws Exception 
 	 */
-	public ExtendedByteArrayOutputStream uncompress(ExtendedByteArrayOutputStream content) throws Exception {
+	public SegmentedBuffer uncompress(SegmentedBuffer content) throws Exception {
 		switch (httpCompressionType()){
 		case 0: return content;
 		case 1:
-			content = Compressor.gunzip(content);
+			content = replace(content, Compressor.gunzip(content));
 			return content;
 		case 2:
-			content = Compressor.inflate(content);
+			content = replace(content, Compressor.inflate(content));
 			return content;
 		default:
 			return content;
@@ -275,29 +380,40 @@ public abstract class AbstractService extends IcapParser {
 	 * @return compressed content
 	 * @throws Exception
 	 */
-	public ExtendedByteArrayOutputStream compress(ExtendedByteArrayOutputStream content) throws Exception {
+	public SegmentedBuffer compress(SegmentedBuffer content) throws Exception {
 		switch (httpCompressionType()){
 		case 1:
-			content = Compressor.gzip(content);
+			content = replace(content, Compressor.gzip(content));
 			return content;
 		case 2:
-			content = Compressor.deflate(content);
+			content = replace(content, Compressor.deflate(content));
 			return content;
 		}
 
 		switch (isHttpCompressible()){
 		case 0: return content;
 		case 1:
-			content = Compressor.gzip(content);
+			content = replace(content, Compressor.gzip(content));
 			this.resHeader.delete(this.resHeader.length()-2,this.resHeader.length()).append("Content-Encoding: gzip\r\n\r\n");
 			return content;
 		case 2:
-			content = Compressor.deflate(content);
+			content = replace(content, Compressor.deflate(content));
 			this.resHeader.delete(this.resHeader.length()-2,this.resHeader.length()).append("Content-Encoding: deflate\r\n\r\n");
 			return content;
 		}
 		return content;
 	}
+
+	/**
+	 * Release storage of a body replaced by its (un)compressed version, if stored off heap
+	 * @param content the replaced body
+	 * @param result the new body
+	 * @return the new body
+	 */
+	private SegmentedBuffer replace(SegmentedBuffer content, SegmentedBuffer result){
+		if (result != content && content.isOffHeap()) content.reset();
+		return result;
+	}
 	//	<------------------------------------------------------------------------->
 	
 	//	<------------------------------------------------------------------------->
@@ -317,159 +433,380 @@ public abstract class AbstractService extends IcapParser {
 
 	//	<------------------------------------------------------------------------->
 	/**
-	 * Read from client socket, call parse() to parse message and then call getResponse()<br />	 * TODO: create multiple chunks for responses <br />
+	 * Read from client socket, call parse() to parse message and then call getResponse()<br />
+	 * TODO: create multiple chunks for responses <br />
 	 */
 
 	public void run()  {
+		if (connectionsPool !=null) {
+			//pooled thread: proceed connections handed over by pool until it is disabled
+			IcapConnection connection;
+			while ((connection = connectionsPool.take()) != null){
+				assignTask(connection);
+				runTask();
+				this.socket = null;
+			}
+			arena.release();
+			return;
+		}
 		if (socket==null) {
 			return;
 		}
-		do {
-			while (this.socket==null){
-				try{
-					Thread.sleep(1000);
-				} catch (java.lang.InterruptedException e){
-				}
+		runTask();
+		arena.release();
+	}
+	//	<------------------------------------------------------------------------------------------>
+
+	//	<------------------------------------------------------------------------------------------>
+	/**
+	 * Proceed assigned connection: a single transaction if connection is managed by a front end,
+	 * all transactions until connection is closed otherwise
+	 */
+	private void runTask(){
+		if (this.frontEnd!=null) {
+			runFrontEndTransaction();
+		} else {
+			runConnection();
+		}
+	}
+	//	<------------------------------------------------------------------------------------------>
+
+	//	<------------------------------------------------------------------------------------------>
+	/**
+	 * Proceed all transactions received on current connection, until it is closed
+	 */
+	private void runConnection(){
+		try {
+
+			this.dos.attach(this.socket.getOutputStream(), this.socket.getChannel());
+			this.dis.attach(this.socket.getInputStream(), null);
+			do {
+				processTransaction();
+			} while (this.connection_opened);// End while
+			//Close the connection
+			this.dos.close();
+			this.dis.close();
+			this.socket.close();
+		} catch(Exception e) {
+		} finally {
+			try {this.dos.close();} catch (Exception e){}
+			try {this.dis.close();} catch (Exception e){}
+			if (this.socket!= null && !this.socket.isClosed()) try {this.socket.close();} catch (Exception e){}
+		}
+		if (Log.finer()) Log.trace(Log.FINER, getServerName()+"=>THREAD ["+id+"] CLOSED \r\n---------------------");
+	}
+	//	<------------------------------------------------------------------------------------------>
+
+	//	<------------------------------------------------------------------------------------------>
+	/**
+	 * Proceed a single transaction on a connection handed over by the selector front end.<br>
+	 * Bytes already read by the front end are consumed first. If connection is still opened
+	 * once response is sent, it is given back to the front end with unconsumed bytes.
+	 */
+	private void runFrontEndTransaction(){
+		boolean released = false;
+		try {
+			this.dis.attach(this.socket.getInputStream(), this.pending);
+			this.pending = null;
+			this.dos.attach(this.socket.getOutputStream(), this.socket.getChannel());
+			processTransaction();
+			if (this.connection_opened){
+				this.dos.flush();
+				this.dos.detach();
+				this.frontEnd.release(this.socket, this.dis.drain());
+				released = true;
 			}
-			try {
-
-				this.bufferedOutputStream = new BufferedOutputStream(this.socket.getOutputStream());				this.dis = new DataInputStream(new BufferedInputStream(this.socket.getInputStream(), BYTEBUFFERSIZE));				ByteArrayOutputStream response = new ByteArrayOutputStream();
-				do {
-					try {
-						response.reset();
-
-						TYPE requesttype = parse(this.dis); //Parse client request and retrieve method
-
-						switch (requesttype){
-						case INVALID:
-							this.bufferedOutputStream.write(Icap._400CLIENTERROR); // Write back response to client
-							this.connection_opened = false;
-							break;
-						case EMPTY:
-							continue;
-						case OPTIONS:
-							this.RCODE = getOptions(response);
-							break;
-						case REQMOD:						case RESPMOD:
-							readPreview();
-							this.RCODE = getResponse(response);
-							TrafficStatistics.hit();
-							break;
-						default://Normally can't exist, but who knows ?
-							this.connection_opened = false;
-							continue;
-						}
-						if (Log.finer()) Log.trace(Log.FINER, "THREAD ["+id+"] RESPONSE:\n---------------------\n"+response.toString()+"---------------------");
-						response.writeTo(this.bufferedOutputStream); // Write back response to client
-
-						if (this.brand==ClientBrand.NETAPP && this.RCODE==204 && this.preview==0 && requesttype==TYPE.REQMOD) {
-							/**handle specific Network Appliance Netcache behavior when using preview of 0 size*/
-							if (this.contentLength <= 0 ) break;
-							this.clearZeroPreviewChunk();
-						}
-
-						if (this.connection_opened){//Connection still opened. Flush socket
-							this.bufferedOutputStream.flush();
-						}
-						//Cannot manage persistent connections and thread pool simultaneously right now
-						if (connectionsPool !=null) {
-							this.bufferedOutputStream.flush();
-							connection_opened = false;
-						}
-					} catch(java.net.SocketException socketex) {
-						if (Log.fine()) Log.trace(Log.FINE,getServerName()+"=>Connection prematurely closed by ICAP client - End user aborted connection or transaction failure.",socketex);
-						this.connection_opened = false;
-					} catch(Exception exception) {
-						exception.printStackTrace();
-						if (Log.warning()) Log.error(Log.WARNING,getServerName()+" - Failure processing request in Thread ["+id+"]",exception);
-						this.connection_opened = false;
-					} catch(Throwable t) {
-						if (Log.severe()) Log.error(Log.SEVERE,getServerName()+" - Failure processing request in Thread ["+id+"] -",t);
-						this.connection_opened = false;
-					} 
-				} while (this.connection_opened);// End while
-				//Close the connection
-				this.bufferedOutputStream.close();
-				this.dis.close();
-				this.socket.close();
-			} catch(Exception e) {
-			} finally {
-				if (this.bufferedOutputStream != null) try {this.bufferedOutputStream.close();} catch (Exception e){}
-				if (this.dis != null) try {this.dis.close();} catch (Exception e){}
+		} catch(Exception e) {
+		} finally {
+			if (!released){
+				try {this.dos.close();} catch (Exception e){}
+				try {this.dis.close();} catch (Exception e){}
 				if (this.socket!= null && !this.socket.isClosed()) try {this.socket.close();} catch (Exception e){}
+				if (Log.finer()) Log.trace(Log.FINER, getServerName()+"=>THREAD ["+id+"] CLOSED \r\n---------------------");
 			}
-			if (Log.finer()) Log.trace(Log.FINER, getServerName()+"=>THREAD ["+id+"] CLOSED \r\n---------------------");
-			if (connectionsPool !=null) this.socket = connectionsPool.restoreInPool(this);
-		} while (!this.server.useKeepAliveConnections());
+		}
+	}
+	//	<------------------------------------------------------------------------------------------>
+
+	//	<------------------------------------------------------------------------------------------>
+	/**
+	 * Parse one ICAP request from client stream and write back its response
+	 */
+	private void processTransaction(){
+		try {
+			this.response.reset();
+			this.responseBody = null;
+
+			TYPE requesttype = parse(this.dis); //Parse client request and retrieve method
+
+			switch (requesttype){
+			case INVALID:
+				this.dos.write(Icap._400CLIENTERROR); // Write back response to client
+				this.connection_opened = false;
+				break;
+			case EMPTY:
+				return;
+			case OPTIONS:
+				this.RCODE = getOptions(response);
+				break;
+			case REQMOD:
+			case RESPMOD:
+				readPreview();
+				this.RCODE = getResponse(response);
+				TrafficStatistics.hit();
+				break;
+			default://Normally can't exist, but who knows ?
+				this.connection_opened = false;
+				return;
+			}
+			if (Log.finer()) Log.trace(Log.FINER, "THREAD ["+id+"] RESPONSE:\n---------------------\n"+response.toString()+"---------------------");
+			writeResponse(); // Write back response to client
+
+			if (this.brand==ClientBrand.NETAPP && this.RCODE==204 && this.preview==0 && requesttype==TYPE.REQMOD) {
+				/**handle specific Network Appliance Netcache behavior when using preview of 0 size*/
+				if (this.contentLength <= 0 ) {
+					this.connection_opened = false;
+					return;
+				}
+				this.clearZeroPreviewChunk();
+			}
+
+			if (this.connection_opened){//Connection still opened. Flush socket
+				this.dos.flush();
+			}
+			//Without front end, pooled threads would stay bound to persistent connections: force close
+			if (connectionsPool !=null && this.frontEnd==null) {
+				this.dos.flush();
+				connection_opened = false;
+			}
+		} catch(java.net.SocketException socketex) {
+			if (Log.fine()) Log.trace(Log.FINE,getServerName()+"=>Connection prematurely closed by ICAP client - End user aborted connection or transaction failure.",socketex);
+			this.connection_opened = false;
+		} catch(Exception exception) {
+			exception.printStackTrace();
+			if (Log.warning()) Log.error(Log.WARNING,getServerName()+" - Failure processing request in Thread ["+id+"]",exception);
+			this.connection_opened = false;
+		} catch(Throwable t) {
+			if (Log.severe()) Log.error(Log.SEVERE,getServerName()+" - Failure processing request in Thread ["+id+"] -",t);
+			this.connection_opened = false;
+		} finally {
+			releaseOffHeapBodies();
+		}
+	}
+	//	<------------------------------------------------------------------------------------------>
+
+	//	<------------------------------------------------------------------------------------------>
+	/**
+	 * Send response buffer to client, followed by response body if any.<br>
+	 * If client socket has a channel, response header, body segments and chunk trailer are sent
+	 * with a single gathering write, without copying the body.
+	 * @throws IOException
+	 */
+	private void writeResponse() throws IOException {
+		if (this.responseBody == null){
+			this.response.writeTo(this.dos);
+			return;
+		}
+		if (this.dos.isGathering()){
+			ByteBuffer[] segments = this.responseBody.getByteBuffers(this.responseBodyLength);
+			ByteBuffer[] buffers = new ByteBuffer[segments.length+2];
+			buffers[0] = this.response.toByteBuffer();
+			System.arraycopy(segments, 0, buffers, 1, segments.length);
+			buffers[buffers.length-1] = ByteBuffer.wrap(this.responseTrailer);
+			this.dos.write(buffers);
+		} else {
+			this.response.writeTo(this.dos);
+			this.responseBody.writeTo(this.dos, this.responseBodyLength);
+			this.dos.write(this.responseTrailer);
+		}
+		this.responseBody = null;
+	}
+	//	<------------------------------------------------------------------------------------------>
+
+	//	<------------------------------------------------------------------------------------------>
+	/**
+	 * Release bodies stored off heap (direct buffers, mapped files) once transaction is over,
+	 * instead of keeping them until next transaction
+	 */
+	private void releaseOffHeapBodies(){
+		this.responseBody = null;
+		if (this.reqBody != null && this.reqBody.isOffHeap()) this.reqBody.reset();
+		if (this.resBody != null && this.resBody.isOffHeap()) this.resBody.reset();
+		if (this.reqBuffer.isOffHeap()) this.reqBuffer.reset();
+		if (this.resBuffer.isOffHeap()) this.resBuffer.reset();
+		if (this.spareBuffer.isOffHeap()) this.spareBuffer.reset();
+		for (SegmentedBuffer body:this.discardedBodies) body.reset();
+		this.discardedBodies.clear();
+	}
+
+	/**
+	 * Discard a body once transaction is over: its storage is not released (nor recycled)
+	 * while views on its content may still be read
+	 * @param body the body to discard
+	 */
+	public void discardAtTransactionEnd(SegmentedBuffer body){
+		this.discardedBodies.add(body);
 	}
 	//	<------------------------------------------------------------------------------------------>
 
 	
 	//	<------------------------------------------------------------------------->
 	/**
-	 * Return an ICAP 200 OK message with full message content (content can be modified or not) 
+	 * Return an ICAP 200 OK message with full message content (content can be modified or not).<br>
+	 * If ICAP client supports it (Allow: 206), an ICAP 206 Partial Content message is returned
+	 * instead when the body has not been modified (see useOriginalBody()), or when the new body
+	 * ends like the received one (see rewriteBody()): only the modified body prefix is sent,
+	 * and the client reuses its own copy of the original body for the rest.
 	 * @param bas Byte stream containing ICAP request body
-	 * @return 200 OK
+	 * @return 200 OK or 206 Partial Content
 	 * @throws Exception
 	 */
 	public int fullResponse(ByteArrayOutputStream bas) throws Exception {
-		StringBuilder sb = new StringBuilder();
+		SegmentedBuffer body = this.type==TYPE.REQMOD?this.reqBody:this.resBody;
+
+		//Check if client can reuse a part of original body: length of new body prefix to send (-1 if none), and offset in original body
+		int prefix = -1, offset = 0;
+		if (this.allow_206 && (this.type==TYPE.REQMOD?this.i_req_body:this.i_res_body)>0){
+			if (this.originalBodyUnchanged){
+				prefix = 0;
+			} else if (this.originalBody!=null && body!=null){
+				int suffix = body.commonSuffix(this.originalBody);
+				if (suffix > 0) {
+					prefix = body.size()-suffix;
+					offset = this.originalBody.size()-suffix;
+				}
+			}
+		}
+		boolean partial = prefix != -1;
+		boolean bodyavailable = partial || (body!=null && body.size()>0);
 
-		sb.append("ICAP/1.0 200 OK\r\n").append(server.getISTAG()).append(CRLF).append(server.icaphost);
+		ResponseTemplates templates = server.getTemplates();
+		HttpHeader header;
 		switch (this.type){
 			case REQMOD:
-				sb.append("Encapsulated: req-hdr=0");
-				if (this.reqBody!=null && reqBody.size()>0){
-					sb.append(", req-body="); //If body available, set tag req-body 
-				} else {
-					sb.append(", null-body="); //else null-body 
-				}
-				sb.append(this.reqHeader.length()).append(CRLF); //Define header offset
-				//Set if connection is persistent
-				if (server.useKeepAliveConnections()) {
-					sb.append(HEAD_CONNECTION_KEEPALIVE);
-				} else {
-					sb.append(HEAD_CONNECTION_CLOSED);
-					this.closeConnection();
-				}
-				sb.append(CRLF).append(this.reqHeader);
-				bas.write(sb.toString().getBytes());
-				if (this.reqBody!=null && reqBody.size()>0) {
-					bas.write((Integer.toHexString(this.reqBody.size())+CRLF).getBytes());
-					this.reqBody.writeTo(bas);
-					bas.write(CRLF_b);
-					bas.write(ENDCHUNK);
-				}
+				header = this.reqHeader;
+				//If body available, set tag req-body, else null-body
+				writeIcapHeader(bas, partial?templates.partial:templates.ok, bodyavailable?ResponseTemplates.REQ_BODY:ResponseTemplates.REQ_NULLBODY, header);
 				break;
 			case RESPMOD:
-				sb.append("Encapsulated: res-hdr=0");
-				if (resBody!=null && resBody.size()>0){
-					sb.append(", res-body="); //If body available, set tag req-body 
-				} else {
-					sb.append(", null-body="); //else null-body 
-				}
-				sb.append(this.resHeader.length()).append(CRLF); //If body available, set tag req-body
-				//Set if connection is persistent
-				if (server.useKeepAliveConnections()) {
-					sb.append(HEAD_CONNECTION_KEEPALIVE);
-				} else {
-					sb.append(HEAD_CONNECTION_CLOSED);
-					this.closeConnection();
-				}
-				sb.append(CRLF).append(this.resHeader);
-				bas.write(sb.toString().getBytes());
-				if (this.resBody!=null && resBody.size()>0) {
-					bas.write((Integer.toHexString(this.resBody.size())+CRLF).getBytes());
-					this.resBody.writeTo(bas);
-					bas.write(CRLF_b);
-					bas.write(ENDCHUNK);
-				}
+				header = this.resHeader;
+				writeIcapHeader(bas, partial?templates.partial:templates.ok, bodyavailable?ResponseTemplates.RES_BODY:ResponseTemplates.RES_NULLBODY, header);
 				break;
+			default:
+				return 200;
+		}
+		if (partial){
+			String lastchunk = USEORIGINALBODY+offset+CRLF+CRLF;
+			if (prefix > 0) {
+				ResponseTemplates.writeHex(bas, prefix);
+				bas.write(CRLF_b);
+				writeBody(bas, body, prefix, (CRLF+lastchunk).getBytes());
+			} else {
+				bas.write(lastchunk.getBytes());
+			}
+			if (Log.finest()) Log.trace(Log.FINEST, "206 supported - send "+prefix+" bytes, reuse original body from offset "+offset);
+			return 206;
+		}
+		if (bodyavailable) {
+			writeBody(bas, body);
 		}
 		return 200;
 	}
 	//	<------------------------------------------------------------------------->
 
+	//	<------------------------------------------------------------------------->
+	/**
+	 * Provide an empty body buffer to write the new HTTP body into, for current message type.<br>
+	 * If ICAP client supports 206 responses, received body is kept and compared with the new one
+	 * by fullResponse(), so that an unmodified body tail is not sent back. Otherwise current body
+	 * is just cleared.
+	 * @return the (empty) body to write new content into, now used as request or response body
+	 */
+	protected SegmentedBuffer rewriteBody(){
+		SegmentedBuffer body = this.type==TYPE.REQMOD?this.reqBody:this.resBody;
+		boolean received = body == (this.type==TYPE.REQMOD?this.reqBuffer:this.resBuffer);
+		if (this.allow_206 && this.originalBody==null && received && body.size()>0){
+			this.originalBody = body;
+			body = this.spareBuffer;
+		}
+		body.reset();
+		if (this.type==TYPE.REQMOD) {
+			this.reqBody = body;
+		} else {
+			this.resBody = body;
+		}
+		return body;
+	}
+
+	/**
+	 * Mark HTTP body as unmodified: if ICAP client supports it, fullResponse() returns an ICAP 206
+	 * response asking client to use its own copy of the whole body (only headers are sent)
+	 */
+	protected void useOriginalBody(){
+		this.originalBodyUnchanged = true;
+	}
+	//	<------------------------------------------------------------------------->
+
+	//	<------------------------------------------------------------------------->
+	/**
+	 * Write ICAP response header, followed by encapsulated HTTP header
+	 * @param bas Byte stream containing ICAP response
+	 * @param status pre-encoded status line, ISTag and Host headers (see ResponseTemplates)
+	 * @param encapsulated pre-encoded Encapsulated header start (see ResponseTemplates)
+	 * @param header the encapsulated HTTP header
+	 * @throws IOException
+	 */
+	protected void writeIcapHeader(ByteArrayOutputStream bas, byte[] status, byte[] encapsulated, HttpHeader header) throws IOException {
+		bas.write(status);
+		bas.write(encapsulated);
+		ResponseTemplates.writeDecimal(bas, header.length()); //Define header offset
+		bas.write(CRLF_b);
+		//Set if connection is persistent
+		if (server.useKeepAliveConnections()) {
+			bas.write(ResponseTemplates.KEEPALIVE_END);
+		} else {
+			bas.write(ResponseTemplates.CLOSE_END);
+			this.closeConnection();
+		}
+		header.writeTo(bas);
+	}
+	//	<------------------------------------------------------------------------->
+
+	//	<------------------------------------------------------------------------->
+	/**
+	 * Write given body in ICAP response as a single chunk, followed by last chunk.<br>
+	 * Body is not copied into response buffer: it is sent directly to ICAP client
+	 * once response buffer has been written (see writeResponse()).
+	 * @param bas Byte stream containing ICAP response
+	 * @param body the HTTP body to add (must not be empty)
+	 * @throws IOException
+	 */
+	protected void writeBody(ByteArrayOutputStream bas, SegmentedBuffer body) throws IOException {
+		ResponseTemplates.writeHex(bas, body.size());
+		bas.write(CRLF_b);
+		writeBody(bas, body, body.size(), BODYTRAILER);
+	}
+
+	/**
+	 * Add body bytes to ICAP response, after chunk header
+	 * @param bas Byte stream containing ICAP response
+	 * @param body the HTTP body
+	 * @param length number of body bytes to add
+	 * @param trailer chunk end and last chunk, added after body
+	 * @throws IOException
+	 */
+	private void writeBody(ByteArrayOutputStream bas, SegmentedBuffer body, int length, byte[] trailer) throws IOException {
+		if (bas == this.response){
+			this.responseBody = body;
+			this.responseBodyLength = length;
+			this.responseTrailer = trailer;
+			return;
+		}
+		body.writeTo(bas, length);
+		bas.write(trailer);
+	}
+	//	<------------------------------------------------------------------------->
+
 	//	<------------------------------------------------------------------------->
 	/**
 	 * Replies to ICAP client with an unmodified content
@@ -479,18 +816,35 @@ public abstract class AbstractService extends IcapParser {
 	 * @throws Exception
 	 */
 	public int earlyResponse(ByteArrayOutputStream bas)  throws Exception{
-		if (this.allow_204 || (this.preview != -1 && !this.bodyreaded ) ) {
-			bas.write(server._204NOCONTENT);
+		if (isNoContentAllowed()) {
+			bas.write(server.getTemplates().noContent);
 			if (Log.finest()) Log.trace(Log.FINEST, "204 supported (Preview:"+this.preview +" or Allow 204:"+this.allow_204+" - send 204 No Content response");
 			return 204;
 		}
 
 		// 204 not possible
-		// retrieves body if not already done, then returns full content 
+		// retrieves body if not already done, then returns full content (or headers only, if 206 is supported)
 		this.getAllBody();
+		useOriginalBody();
 		if (Log.finest()) Log.trace(Log.FINEST, "204 not supported - send unchanged response");
 		return fullResponse(bas);
 	}
+
+	/**
+	 * @return true if ICAP client accepts a 204 No Content response: it allows it (Allow: 204),
+	 * or message body is still in preview
+	 */
+	public boolean isNoContentAllowed(){
+		return this.allow_204 || isInPreview();
+	}
+
+	/**
+	 * @return true if ICAP client is still in preview: only preview bytes of body have been
+	 * received (see readPreview()), and the rest of body has not been asked for
+	 */
+	public boolean isInPreview(){
+		return this.preview != -1 && !this.bodyreaded;
+	}
 	//	<------------------------------------------------------------------------->
 	
 
@@ -504,36 +858,23 @@ public abstract class AbstractService extends IcapParser {
 		if (this.i_res_body==0 && this.i_req_body==0) return false; //no body => abort
 
 		if (this.preview==-1) return false;//we're not in preview mode => do nothing
-		String readline = "";
 		int chuncksize = 0;
 		previewstarved = false;
 		try {
-			readline = this.dis.readLine().trim();
+			chuncksize = this.dis.readChunkSize();//get chunk size
 
 			//special case: empty body -  [CRLF][0; ieof][CRLF][CRLF]
-			if (readline.equals("0; ieof")) {
+			if (chuncksize==0 && this.dis.isIeof()) {
 				if (Log.finest()) Log.trace(Log.FINEST,"Reading starved during preview");
 				previewstarved = true;
-				this.dis.skip(4);
+				this.dis.skipLineEnd();
 				previewreaded = true;
 				return true;
 			}
-			/*if (this.preview==0) { // skip [CRLF][0][CRLF]
-				this.dis.skip(2);
-				readline = this.dis.readLine().trim();
-				if (readline.endsWith("ieof")) { 
-					if (Log.finest()) Log.trace(Log.FINEST,"Reading starved during preview");
-					previewstarved = true;
-				}
-				this.dis.skip(2);
-				previewreaded = true;
-				return true;
+			if (chuncksize<0) {
+				if (Log.fine()) Log.trace(Log.FINE,"ICAP preview error - invalid chunk size: ["+this.dis.appendLine(new StringBuilder())+"]");
+				return false;
 			}
-			 */
-			chuncksize = Integer.parseInt(readline,16);//get chunk size
-		} catch (NumberFormatException e){
-			if (Log.fine()) Log.trace(Log.FINE,"ICAP preview error - invalid chunk size: ["+readline+"]", e);
-			return false;
 		} catch (Exception e){
 			if (Log.fine()) Log.trace(Log.FINE,"ICAP preview error while parsing chunk size", e);
 			return false;
@@ -543,8 +884,7 @@ public abstract class AbstractService extends IcapParser {
 		//PATCH: thanks to Pawel Jasnos
 		while ( (chuncksize = readChunk(chuncksize,true))>0){/*read all preview chunks until a 0 is returned*/}
 		try{
-			int leavingbytes = this.dis.available();
-			if (leavingbytes>1) this.dis.skip(leavingbytes);//skip trailing CRLF
+			this.dis.skipLineEnd();//skip trailing CRLF
 		} catch (Exception e){
 			if (Log.fine()) Log.trace(Log.FINE,"ICAP preview error - error skipping trailing CRLF", e);
 		}
@@ -572,32 +912,24 @@ public abstract class AbstractService extends IcapParser {
 		int chuncksize = 0;
 		if (this.preview!=-1) {//we're still in preview mode => ask for the body
 			if (Log.finest()) Log.trace(Log.FINEST,"ICAP Parser - 100 continue");
-			this.bufferedOutputStream.write("ICAP/1.0 100 continue\r\n\r\n".getBytes());
-			this.bufferedOutputStream.flush();
+			this.dos.write("ICAP/1.0 100 continue\r\n\r\n".getBytes());
+			this.dos.flush();
 		}
 
-		String readline = "";
-
 		boolean readed = false;
-		int private_counter=0;
-
-		//Security loop, in case of trailing char (exotic implementation)
-		//TODO: check if this is needed or not 
-		while (!readed && private_counter<1){
-			try {
-				readline = this.dis.readLine().trim();
-				chuncksize = Integer.parseInt(readline,16);//get chunk size
-				readed = true;
-			} catch (NumberFormatException e){
-				if (Log.fine()) Log.trace(Log.FINE,"ICAP Parser error n° ["+private_counter+"]- invalid chunk size: ["+readline+"]", e);
-				private_counter++;
-			} catch (Exception e){
-				private_counter++;
-				//if (Log.fine()) Log.trace(Log.FINE,"ICAP Parser error while parsing chunk size", e);
-			}
+
+		//Security loop, in case of trailing empty lines (exotic implementation)
+		try {
+			do {
+				chuncksize = this.dis.readChunkSize();//get chunk size
+			} while (chuncksize<0 && this.dis.isBlankLine());
+			readed = chuncksize>=0;
+			if (!readed && Log.fine()) Log.trace(Log.FINE,"ICAP Parser error - invalid chunk size: ["+this.dis.appendLine(new StringBuilder())+"]");
+		} catch (Exception e){
+			//if (Log.fine()) Log.trace(Log.FINE,"ICAP Parser error while parsing chunk size", e);
 		}
 		
-		if (!readed && private_counter==1){
+		if (!readed){
 			if (Log.fine()) Log.trace(Log.FINE,"ICAP Parser error while parsing chunk size - null or empty chunk");
 			throw (new IcapParserException("ICAP Parser error while parsing chunk size - null or empty chunk"));
 			// comment above line and uncomment below line to correct ICAP request instead of returning error
@@ -606,7 +938,7 @@ public abstract class AbstractService extends IcapParser {
 		while ( (chuncksize = readChunk(chuncksize,false))>0){
 			/*read all chunks until a 0 is returned*/
 		}
-		if (this.dis.available()>=2)this.dis.skip(2);//skip trailing CRLF if present (depends on ICAP client implementation)
+		this.dis.skipLineEnd();//skip trailing CRLF if present (depends on ICAP client implementation)
 		return true;
 	}
 	//	<------------------------------------------------------------------------------------------>
@@ -618,48 +950,44 @@ public abstract class AbstractService extends IcapParser {
 	 * @param previewreading Set if chunk reading is made during preview or not<br>
 	 * @return the size of next available chunk<br>
 	 */
-	public synchronized int readChunk(int  chunksize,boolean previewreading){
-		String readline="";
+	public int readChunk(int  chunksize,boolean previewreading){
 		try{
 			if (chunksize==0) {
 				return 0;//no more chunk => return 0
 			}
 
 			if (Log.finest()) Log.trace(Log.FINEST,"Reading chunck of ["+chunksize+"] datas for "+type.toString());
-			byte[] content = new byte[chunksize];
-			int nbread;
-
-			while (chunksize!=0){ // Read TCP packets until chunk is fully readed
-				if (tcptweak) this.socket.sendUrgentData(URGENTDATA); // tweak to speed up - only to use with some very specific ICAP clients
-				nbread = this.dis.read(content,0,chunksize);
-				switch (this.type){
-				case RESPMOD: 
-					this.resBody.write(content, 0, nbread);
-					break;
-				case REQMOD:
-					this.reqBody.write(content, 0, nbread);
-					break;
-				default: break;
-				}
-				chunksize-=nbread;
+			if (tcptweak) this.socket.sendUrgentData(URGENTDATA); // tweak to speed up - only to use with some very specific ICAP clients
+			// copy chunk straight from stream buffer to body
+			switch (this.type){
+			case RESPMOD: 
+				this.dis.transferTo(this.resBody, chunksize);
+				break;
+			case REQMOD:
+				this.dis.transferTo(this.reqBody, chunksize);
+				break;
+			default:
+				this.dis.skip(chunksize);
+				break;
 			}
 
 			//if (Log.finest()) Log.trace(Log.FINEST,"["+chunksize+"]---------------------");
 
 			this.dis.skip(2);//skip [CRLF] after chunk
-			readline = this.dis.readLine().trim(); //read next chunk size
-			if (Log.finest()) Log.trace(Log.FINEST,"Next chunk size: ["+readline+"]");
-			if (previewreading && readline.endsWith("ieof")){
+			chunksize = this.dis.readChunkSize(); //read next chunk size
+			if (Log.finest()) Log.trace(Log.FINEST,"Next chunk size: ["+chunksize+"]");
+			if (previewreading && this.dis.isIeof()){
 				//no more chunks to read
 				if (Log.finer()) Log.trace(Log.FINER,"All body readed during preview. disabling preview mode.");
 				this.previewstarved = true;
 				return 0;
 			}
-			return Integer.parseInt(readline,16);
+			if (chunksize<0) throw new IcapParserException("invalid chunk size");
+			return chunksize;
 
 		} catch (Exception e){
 			if (Log.finer()) Log.trace(Log.FINER,"Error reading chunck . Forcing zero chunck");
-			if (Log.finest()) Log.trace(Log.FINEST,"["+readline+"]", e);
+			if (Log.finest()) Log.trace(Log.FINEST,"["+this.dis.appendLine(new StringBuilder())+"]", e);
 			return 0;//==> error: stop reading body
 			//TODO: check if it's not also better to clear already readed body ?
 
@@ -677,8 +1005,7 @@ public abstract class AbstractService extends IcapParser {
 		try{
 			//(MS Windows bug ?)
 			if (tcptweak) this.socket.sendUrgentData(URGENTDATA); // tweak to speed up ACK
-			byte[] content = new byte[5];
-			this.dis.read(content); // skip [CRLF][0][CRLF]
+			this.dis.skip(5); // skip [CRLF][0][CRLF]
 		} catch (Exception e){
 			e.printStackTrace();
 		}
@@ -693,8 +1020,8 @@ public abstract class AbstractService extends IcapParser {
 	 * @param body	body of the HTTP response to provide
 	 * @throws Exception
 	 */
-	public synchronized void writeChunks(String header,  ByteArrayOutputStream body) throws Exception {
-		this.bufferedOutputStream.write(header.getBytes());
+	public void writeChunks(String header,  ByteArrayOutputStream body) throws Exception {
+		this.dos.write(header.getBytes());
 		int chunck = header.length();
 		int pos = 0;
 		byte[] resp = body.toByteArray();
@@ -703,18 +1030,18 @@ public abstract class AbstractService extends IcapParser {
 
 		if (chunck<MTU){
 			chunck = resp.length>MTU-chunck?MTU-chunck:resp.length;
-			this.bufferedOutputStream.write((Integer.toHexString(chunck)+CRLF).getBytes());
-			this.bufferedOutputStream.write(resp, 0, chunck);
+			this.dos.write((Integer.toHexString(chunck)+CRLF).getBytes());
+			this.dos.write(resp, 0, chunck);
 			pos = chunck;
 		}
 
-		this.bufferedOutputStream.flush();
+		this.dos.flush();
 		while (pos<resp.length){
 			chunck = resp.length - pos>MTU?MTU:resp.length - pos;
-			this.bufferedOutputStream.write((CRLF+Integer.toHexString(chunck)+CRLF).getBytes());
-			this.bufferedOutputStream.write(resp, pos, chunck);
+			this.dos.write((CRLF+Integer.toHexString(chunck)+CRLF).getBytes());
+			this.dos.write(resp, pos, chunck);
 			pos +=  chunck;
-			this.bufferedOutputStream.flush();
+			this.dos.flush();
 			if (Log.finest()) Log.trace(Log.FINEST, "["+chunck+"]");
 		}
 	}
@@ -735,21 +1062,20 @@ public abstract class AbstractService extends IcapParser {
 		this.httpmethod="";
 		this.host=null;
 		this.reqHeader.setLength(0);//avoid to create new object 
-		//if (this.reqBody!=null) {	
-		this.reqBody.reset();// = null;
-		/*} else {
-			this.reqBody = new ByteArrayOutputStream();
-		}*/
+		this.reqBody = this.reqBuffer;//body may have been replaced (compression...) during previous transaction
+		this.reqBody.reset();
 		this.previewreaded = false;
 		this.bodyreaded = false;
 		this.previewstarved = false;
 		this.icapHeaders.clear();
-		this.httpReqHeaders.clear();
-		this.httpRespHeaders.clear();
 		this.contentLength = -1;
 		this.rescode=502;
 		this.resHeader.setLength(0);//avoid to create new object 
+		this.resBody = this.resBuffer;
 		this.resBody.reset();// avoid to create new object = null;
+		this.spareBuffer.reset();
+		this.originalBody = null;
+		this.originalBodyUnchanged = false;
 		this.icapHeader.setLength(0);// = new StringBuilder(); //avoid to create new object 
 
 		this.i_encapsulated="";
@@ -773,7 +1099,7 @@ public abstract class AbstractService extends IcapParser {
 	 * @return	Parsed Request type (REQMOD/RESPMOD/OPTIONS/INVALID)
 	 * @throws Exception
 	 */
-	public synchronized TYPE parse(DataInputStream bufferedreader) throws Exception {
+	public TYPE parse(IcapInputStream bufferedreader) throws Exception {
 		reset();
 		if (Log.finest()) Log.trace(Log.FINER, getServerName()+"=>THREAD ["+id+"] REQUEST\r\n---------------------");
 
@@ -793,7 +1119,7 @@ public abstract class AbstractService extends IcapParser {
 					if (Log.finest()) {
 						Log.trace(Log.FINEST, reqHeader.toString()+"---------- INVALID -----------");
 						byte[] debugbuffer = new byte[bufferedreader.available()];
-						bufferedreader.readFully(debugbuffer);
+						bufferedreader.readFully(debugbuffer, 0, debugbuffer.length);
 						if (Log.finest()) Log.trace(Log.ALL, bufferedreader.available()+":["+new String(debugbuffer)+"]");
 					}
 					break;
@@ -819,8 +1145,7 @@ public abstract class AbstractService extends IcapParser {
 	 * @param requestHeader	 the request header in which to store parsed request
 	 * @throws Exception		
 	 */
-	public void parseHttpRequest(DataInputStream bufferedreader, StringBuilder requestHeader) throws Exception {
-		int traildot, i=0;
+	public void parseHttpRequest(IcapInputStream bufferedreader, HttpHeader requestHeader) throws Exception {
 		//		---
 		int headersize;// = this.i_req_body>0?this.i_req_body:this.i_null_body;
 
@@ -835,62 +1160,47 @@ public abstract class AbstractService extends IcapParser {
 
 		//create byte array to stock header and read it
 		byte[] header = new byte[headersize];
-		int toread = headersize;
-		while (toread>0){
-			toread-=bufferedreader.read(header, headersize-toread, toread);
+		bufferedreader.readFully(header, 0, headersize);
+
+		//append req header: fields are indexed lazily, on first lookup
+		requestHeader.append(header, 0, headersize);
+
+		//first line => extract request method, url, protocol, ...
+		this.firstline = requestHeader.getFirstLine();
+		int pos = this.firstline.indexOf(' ');
+		this.httpmethod = this.firstline.substring(0,pos).trim().toUpperCase();//HTTP method: GET/POST/HEAD/CONNECT/DELETE/OPTIONS/...
+		if ( (pos=this.firstline.indexOf('?'))>0 ){
+			this.req_url_path = this.firstline.substring(this.httpmethod.length()+1,pos);
+			this.req_url_searchpart = this.firstline.substring(pos+1,this.firstline.lastIndexOf(" HTTP/1."));
+			this.req_url = this.req_url_path+"?"+this.req_url_searchpart;
+		} else {
+			this.req_url = this.firstline.substring(this.httpmethod.length()+1,this.firstline.lastIndexOf(" HTTP/1."));
+			this.req_url_path = this.req_url;
 		}
 
-		//append req header as string format
-		requestHeader.append(new String(header));
-
-		//generate table containing headers values 
-		String[] heads = requestHeader.toString().split(CRLF);
-
-		//		---
-		String lowercaseheader;
-		for (String header_line:heads){        // HTTP Header Parsing
-			if (header_line.length()==0) break; // Empty line => header end =>  stop parsing
-			lowercaseheader = header_line.toLowerCase();
-			if (i==0) {//first line => extract request method, url, protocol, ...
-				this.firstline = header_line;
-				int pos = this.firstline.indexOf(' ');
-				this.httpmethod = this.firstline.substring(0,pos).trim().toUpperCase();//HTTP method: GET/POST/HEAD/CONNECT/DELETE/OPTIONS/...
-				if ( (pos=this.firstline.indexOf('?'))>0 ){
-					this.req_url_path = this.firstline.substring(this.httpmethod.length()+1,pos);
-					this.req_url_searchpart = this.firstline.substring(pos+1,this.firstline.lastIndexOf(" HTTP/1."));
-					this.req_url = this.req_url_path+"?"+this.req_url_searchpart;
-				} else {
-					this.req_url = this.firstline.substring(this.httpmethod.length()+1,this.firstline.lastIndexOf(" HTTP/1."));
-					this.req_url_path = this.req_url;
-				}
-				i++;
-			} else if (lowercaseheader.startsWith("host: ")){ // correct url if needed
-				//syntax= Host: www.host.com[:port]
-				if (header_line.indexOf(":",7)==-1) {
-					//	if no port is specified, extract line
-					this.host = header_line.substring(6);
+		// correct url if needed
+		String hostheader = requestHeader.get("host");
+		if (hostheader!=null){
+			//syntax= Host: www.host.com[:port]
+			if (hostheader.indexOf(":",1)==-1) {
+				//	if no port is specified, extract line
+				this.host = hostheader;
+			} else {
+				//	orelse extract up to ":" char
+				this.host = hostheader.substring(0, hostheader.indexOf(":",1));
+			}
+			if (!this.req_url.startsWith("http://") && !this.req_url.startsWith ("ftp://")) {
+				if (this.req_url.startsWith("/")){
+					this.req_url = "http://"+this.host+this.req_url;
+					this.req_url_path = "http://"+host+req_url_path;
 				} else {
-					//	orelse extract up to ":" char
-					this.host = header_line.substring(6, header_line.indexOf(":",7));
+					this.req_url = "http://"+this.host+"/"+this.req_url;
+					this.req_url_path = "http://"+this.host+this.req_url_path;
 				}
-				if (!this.req_url.startsWith("http://") && !this.req_url.startsWith ("ftp://")) {
-					if (this.req_url.startsWith("/")){
-						this.req_url = "http://"+this.host+this.req_url;
-						this.req_url_path = "http://"+host+req_url_path;
-					} else {
-						this.req_url = "http://"+this.host+"/"+this.req_url;
-						this.req_url_path = "http://"+this.host+this.req_url_path;
-					}
-				}
-			} else if (header_line.toLowerCase().startsWith("content-length:")){
-				this.contentLength = Long.parseLong(header_line.substring(16).trim());
-				this.httpReqHeaders.put("content-length", contentLength+"");
-			} else { 
-				// general header => put it in hash table (no lazy parsing for the moment)
-				traildot = header_line.indexOf(":");
-				this.httpReqHeaders.put(lowercaseheader.substring(0,traildot), header_line.substring(traildot+2));
 			}
-		}//End for HTTP Request header parsing
+		}
+		String length = requestHeader.get("content-length");
+		if (length!=null) this.contentLength = Long.parseLong(length.trim());
 	}
 	//	<------------------------------------------------------------------------->    
 
@@ -902,23 +1212,12 @@ public abstract class AbstractService extends IcapParser {
 	public void updateContentLength(long newContentLength){
 		switch (this.type){
 		case REQMOD:
-			if (this.httpReqHeaders.containsKey("content-length")){
-				int pos1 = this.reqHeader.toString().toLowerCase().indexOf("content-length")+CONTENTLENGTHSIZE;
-				int pos2 = this.reqHeader.indexOf("\r\n", pos1);
-				this.reqHeader = this.reqHeader.replace(pos1,pos2, newContentLength+"");
-			} else {
-				if (newContentLength !=0) this.reqHeader.insert(this.reqHeader.length()-2, "Content-Length: " + newContentLength+ "\r\n");
+			if (newContentLength !=0 || this.reqHeader.contains("content-length")){
+				this.reqHeader.set("Content-Length", Long.toString(newContentLength));
 			}
 			break;
 		case RESPMOD:
-			if (this.httpRespHeaders.containsKey("content-length")){
-				int pos1 = this.resHeader.toString().toLowerCase().indexOf("content-length")+CONTENTLENGTHSIZE;
-				int pos2 = this.resHeader.indexOf("\r\n", pos1);
-				this.resHeader = this.resHeader.replace(pos1,pos2, newContentLength+"");
-			} else {
-				this.resHeader.insert(this.resHeader.length()-2, "Content-Length: " + newContentLength+ "\r\n");
-				//this.resHeader.delete(this.resHeader.length()-2,this.resHeader.length()).append("Content-Length: ").append(newContentLength).append("\r\n\r\n");
-			}
+			this.resHeader.set("Content-Length", Long.toString(newContentLength));
 			break;
 		default:
 		}
@@ -943,23 +1242,10 @@ public abstract class AbstractService extends IcapParser {
 	public void updateContentType(String newContentType){
 		switch (this.type){
 		case REQMOD:
-			if (this.httpReqHeaders.containsKey("content-type")){
-				int pos1 = this.reqHeader.toString().toLowerCase().indexOf("content-type")+CONTENTTYPESIZE;
-				int pos2 = this.reqHeader.indexOf("\r\n", pos1);
-				this.reqHeader = this.reqHeader.replace(pos1,pos2, newContentType+"");
-			} else {
-				this.reqHeader.insert(this.reqHeader.length()-2, "Content-Type: " + newContentType+ "\r\n");
-			}
+			this.reqHeader.set("Content-Type", newContentType);
 			break;
 		case RESPMOD:
-			if (this.httpRespHeaders.containsKey("content-type")){
-				int pos1 = this.resHeader.toString().toLowerCase().indexOf("content-type")+CONTENTTYPESIZE;
-				int pos2 = this.resHeader.indexOf("\r\n", pos1);
-				this.resHeader = this.resHeader.replace(pos1,pos2, newContentType+"");
-			} else {
-				this.resHeader.insert(this.resHeader.length()-2, "Content-Type: " + newContentType+ "\r\n");
-				//this.resHeader.delete(this.resHeader.length()-2,this.resHeader.length()).append("Content-Type: ").append(newContentType).append("\r\n\r\n");
-			}
+			this.resHeader.set("Content-Type", newContentType);
 			break;
 		default:
 		}
@@ -974,45 +1260,23 @@ public abstract class AbstractService extends IcapParser {
 	 * @param res_header StringBuffer into which response header will be filled
 	 * @throws Exception
 	 */
-	public void parseHttpResponse(DataInputStream bufferedreader, StringBuilder res_header) throws Exception {
-		int i=0;
-		int traildot = 0;
-
+	public void parseHttpResponse(IcapInputStream bufferedreader, HttpHeader res_header) throws Exception {
 		//Read response header
 		int respsize = (this.i_res_body>0?this.i_res_body:this.i_null_body) - this.i_res_hdr;
 		byte[] reshead = new byte[respsize];
-		int toread = respsize;
+		bufferedreader.readFully(reshead, 0, respsize);
 
-		while (toread>0){
-			toread-=bufferedreader.read(reshead, respsize-toread, toread);
-		}
-
-		res_header.append(new String(reshead));
-		String[] heads = res_header.toString().split(CRLF);
+		//fields are indexed lazily, on first lookup
+		res_header.append(reshead, 0, respsize);
 
-		//Parse response headers and store it in hashtable (headers names are stored in lowercase)
-		for (String header_line:heads){
-			if (header_line.equals("")){
-				//response header readed
-				break;
-			}
-			// HTTP header Parsing
-			if (i==0) {
-				//first line => HTTP response code
-				try{
-					this.rescode = Integer.parseInt(header_line.substring(9,12));//HTTP/1.x [yyy] Text
-				} catch (Exception e){
-					this.rescode = 502;
-				}
-				i++;
-			} else if (header_line.toLowerCase().startsWith("content-length:")){
-				this.contentLength = Long.parseLong(header_line.substring(16).trim());
-				this.httpRespHeaders.put("content-length", contentLength+"");
-			} else {
-				traildot = header_line.indexOf(":");
-				if (traildot!=-1) this.httpRespHeaders.put(header_line.substring(0,traildot).toLowerCase(), header_line.substring(traildot+2));
-			}
+		//first line => HTTP response code
+		try{
+			this.rescode = Integer.parseInt(res_header.getFirstLine().substring(9,12));//HTTP/1.x [yyy] Text
+		} catch (Exception e){
+			this.rescode = 502;
 		}
+		String length = res_header.get("content-length");
+		if (length!=null) this.contentLength = Long.parseLong(length.trim());
 	}
 	//	<------------------------------------------------------------------------------------------>    
 
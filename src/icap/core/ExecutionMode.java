@@ -0,0 +1,111 @@
+/**----------------------------------------------------------------------------
+ * GreasySpoon
+ * Copyright (C) 2008 Karel Mittig
+ *-----------------------------------------------------------------------------
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  Please refer to the LICENSE.txt file that comes along with this source file
+ *  or to http://www.gnu.org/licenses/gpl.txt for a full version of the license.
+ *
+ *-----------------------------------------------------------------------------
+ * For any comment, question, suggestion, bugfix or code contribution please
+ * contact Karel Mittig : karel [dot] mittig [at] gmail [dot] com
+ *---------------------------------------------------------------------------*/
+package icap.core;
+
+///////////////////////////////////
+//Import
+import java.lang.reflect.Method;
+import tools.logger.Log;
+///////////////////////////////////
+
+/**
+ * Defines which kind of threads are used to run ICAP services tasks.<br>
+ * Virtual threads are only available with Java 21 and above: they are reached
+ * by reflection so that the server still runs (with platform threads) on older JVMs.
+ * @author mittig
+ */
+public enum ExecutionMode {
+	/**Services run in platform (OS) threads*/
+	PLATFORM,
+	/**Services run in virtual threads (Java 21+)*/
+	VIRTUAL;
+
+	/**Mode used to create services threads*/
+	private static volatile ExecutionMode current = PLATFORM;
+
+	/**Thread.ofVirtual(), Thread.Builder.name(String) and Thread.Builder.unstarted(Runnable) methods*/
+	private static Method ofVirtual, builderName, builderUnstarted;
+
+//	<------------------------------------------------------------------------->
+	/**
+	 * @return mode currently used to create services threads
+	 */
+	public static ExecutionMode getMode(){
+		return current;
+	}
+//	<------------------------------------------------------------------------->
+
+//	<------------------------------------------------------------------------->
+	/**
+	 * Set mode used to create services threads.
+	 * Falls back to platform threads if virtual threads are not supported by the JVM.
+	 * @param value "virtual" or "platform"
+	 * @return the mode really applied
+	 */
+	public static synchronized ExecutionMode setMode(String value){
+		if (value==null || !value.trim().equalsIgnoreCase("virtual")){
+			current = PLATFORM;
+			return current;
+		}
+		try {
+			Method of = Thread.class.getMethod("ofVirtual");
+			Class<?> builder = of.getReturnType();
+			Method name = builder.getMethod("name", String.class);
+			Method unstarted = builder.getMethod("unstarted", Runnable.class);
+			//check that virtual threads are really usable (preview feature before Java 21)
+			unstarted.invoke(name.invoke(of.invoke(null), "probe"), new Runnable(){public void run(){}});
+			ofVirtual = of;
+			builderName = name;
+			builderUnstarted = unstarted;
+			current = VIRTUAL;
+		} catch (Throwable t){
+			if (Log.warning()) Log.error(Log.WARNING, "Virtual threads not supported by this JVM ("+System.getProperty("java.version")+"). Using platform threads.");
+			current = PLATFORM;
+		}
+		return current;
+	}
+//	<------------------------------------------------------------------------->
+
+//	<------------------------------------------------------------------------->
+	/**
+	 * Create a new (unstarted) thread running given task, using current mode
+	 * @param task the task to run
+	 * @param name thread name
+	 * @return created thread
+	 */
+	public static Thread newThread(Runnable task, String name){
+		if (current == VIRTUAL){
+			try {
+				return (Thread) builderUnstarted.invoke(builderName.invoke(ofVirtual.invoke(null), name), task);
+			} catch (Exception e){
+				if (Log.warning()) Log.error(Log.WARNING, "Unable to create virtual thread. Using platform thread.", e);
+			}
+		}
+		return new Thread(task, name);
+	}
+//	<------------------------------------------------------------------------->
+}
@@ -0,0 +1,476 @@
+/**----------------------------------------------------------------------------
+ * GreasySpoon
+ * Copyright (C) 2008 Karel Mittig
+ *-----------------------------------------------------------------------------
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  Please refer to the LICENSE.txt file that comes along with this source file
+ *  or to http://www.gnu.org/licenses/gpl.txt for a full version of the license.
+ *
+ *-----------------------------------------------------------------------------
+ * For any comment, question, suggestion, bugfix or code contribution please
+ * contact Karel Mittig : karel [dot] mittig [at] gmail [dot] com
+ *---------------------------------------------------------------------------*/
+package icap.core;
+
+///////////////////////////////////
+//Import
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+///////////////////////////////////
+
+/**
+ * HTTP message header (request or response), stored as raw text.<br>
+ * Header fields are not parsed when message is received: an index of names and values
+ * offsets is built on first lookup, and dropped each time header text is modified.
+ * Lookups are case insensitive and compare characters in place, so that neither
+ * the header block nor the searched name are ever lower cased.<br>
+ * The same instance is shared by the ICAP service and by the HttpMessage provided to
+ * scripts: fields are edited in place (add/set/remove) and header is only converted
+ * to bytes when ICAP response is written (see writeTo()).<br>
+ * Class also exposes the StringBuilder methods used by services to edit headers text.
+ * @author mittig
+ */
+public class HttpHeader implements CharSequence {
+
+	/**raw header text, including first line and final empty line*/
+	private final StringBuilder raw = new StringBuilder(1024);
+
+	/**fields offsets: name start, name end, value start, value end for each field*/
+	private int[] index = new int[64];
+	/**number of indexed fields*/
+	private int fields = 0;
+	/**set if index matches current header text*/
+	private boolean indexed = false;
+	/**number of header text modifications (see getModifications())*/
+	private int modifications = 0;
+
+	/**values updated using put(), returned by lookups in place of header text values (lazily created)*/
+	private HashMap<String, String> updates = null;
+
+	/**set between mark() and commit()/rollback()*/
+	private boolean marked = false;
+	/**header text at mark, saved on first modification after mark (null while unmodified)*/
+	private String markedText = null;
+	/**values updated using put() at mark, saved with header text*/
+	private HashMap<String, String> markedUpdates = null;
+	/**modifications counter at mark*/
+	private int markedModifications = 0;
+
+//	<------------------------------------------------------------------------->
+	/**
+	 * Append raw header bytes. ASCII headers are appended as is, others are decoded
+	 * using platform charset.
+	 * @param bytes header bytes
+	 * @param offset offset in array
+	 * @param length number of bytes to append
+	 * @return this header
+	 */
+	public HttpHeader append(byte[] bytes, int offset, int length){
+		edit();
+		for (int i=offset; i<offset+length; i++){
+			if (bytes[i] < 0) {
+				raw.append(new String(bytes, i, offset+length-i));
+				return this;
+			}
+			raw.append((char)bytes[i]);
+		}
+		return this;
+	}
+
+	/**
+	 * @see java.lang.StringBuilder#append(CharSequence)
+	 * @param s text to append
+	 * @return this header
+	 */
+	public HttpHeader append(CharSequence s){
+		edit();
+		raw.append(s);
+		return this;
+	}
+
+	/**
+	 * @see java.lang.StringBuilder#insert(int, String)
+	 * @param offset insertion position
+	 * @param s text to insert
+	 * @return this header
+	 */
+	public HttpHeader insert(int offset, String s){
+		edit();
+		raw.insert(offset, s);
+		return this;
+	}
+
+	/**
+	 * @see java.lang.StringBuilder#replace(int, int, String)
+	 * @param start start position (inclusive)
+	 * @param end end position (exclusive)
+	 * @param s replacement text
+	 * @return this header
+	 */
+	public HttpHeader replace(int start, int end, String s){
+		edit();
+		raw.replace(start, end, s);
+		return this;
+	}
+
+	/**
+	 * @see java.lang.StringBuilder#delete(int, int)
+	 * @param start start position (inclusive)
+	 * @param end end position (exclusive)
+	 * @return this header
+	 */
+	public HttpHeader delete(int start, int end){
+		edit();
+		raw.delete(start, end);
+		return this;
+	}
+
+	/**
+	 * Truncate header text. Setting length to 0 also drops values updated using put()
+	 * @param length new length
+	 */
+	public void setLength(int length){
+		edit();
+		raw.setLength(length);
+		if (length == 0 && updates != null) updates.clear();
+	}
+
+	/**
+	 * Replace header text with given one. Text is normalized: lines are ended by CRLF,
+	 * empty lines are removed (fields appended after final empty line are kept) and
+	 * a final empty line is added.
+	 * @param text the new header text
+	 */
+	public void setText(CharSequence text){
+		setLength(0);
+		int length = text.length();
+		int start = 0;
+		while (start < length){
+			int end = start;
+			while (end<length && text.charAt(end)!='\n') end++;
+			int next = end+1;
+			if (end>start && text.charAt(end-1)=='\r') end--;
+			if (end > start) raw.append(text, start, end).append("\r\n");
+			start = next;
+		}
+		raw.append("\r\n");
+	}
+
+	/**
+	 * @see java.lang.StringBuilder#indexOf(String)
+	 */
+	public int indexOf(String s){
+		return raw.indexOf(s);
+	}
+
+	/**
+	 * @see java.lang.StringBuilder#indexOf(String, int)
+	 */
+	public int indexOf(String s, int from){
+		return raw.indexOf(s, from);
+	}
+
+	/**
+	 * @see java.lang.CharSequence#length()
+	 */
+	public int length(){
+		return raw.length();
+	}
+
+	/**
+	 * @see java.lang.CharSequence#charAt(int)
+	 */
+	public char charAt(int i){
+		return raw.charAt(i);
+	}
+
+	/**
+	 * @see java.lang.CharSequence#subSequence(int, int)
+	 * @return a String containing given header part
+	 */
+	public CharSequence subSequence(int start, int end){
+		return raw.substring(start, end);
+	}
+
+	/**
+	 * @return header text
+	 */
+	public String toString(){
+		return raw.toString();
+	}
+//	<------------------------------------------------------------------------->
+
+//	<------------------------------------------------------------------------->
+	/**
+	 * @return header first line (request line or status line), without CRLF
+	 */
+	public String getFirstLine(){
+		int end = 0, length = raw.length();
+		while (end<length && raw.charAt(end)!='\r' && raw.charAt(end)!='\n') end++;
+		return raw.substring(0, end);
+	}
+
+	/**
+	 * Retrieve a header field value
+	 * @param name header field name (case insensitive)
+	 * @return field value, or null if header does not contain given field.
+	 * If field is repeated, last value is returned.
+	 */
+	public String get(String name){
+		if (updates != null && !updates.isEmpty()) {
+			String value = updates.get(name.toLowerCase());
+			if (value != null) return value;
+		}
+		int field = find(name);
+		if (field == -1) return null;
+		return raw.substring(index[field*4+2], index[field*4+3]);
+	}
+
+	/**
+	 * @param name header field name (case insensitive)
+	 * @return true if header contains given field
+	 */
+	public boolean contains(String name){
+		return find(name) != -1;
+	}
+
+	/**
+	 * Set value returned by get() for given field, without modifying header text
+	 * @param name header field name (case insensitive)
+	 * @param value field value
+	 */
+	public void put(String name, String value){
+		save();
+		if (updates == null) updates = new HashMap<String, String>();
+		updates.put(name.toLowerCase(), value);
+	}
+
+	/**
+	 * Set a header field value in header text. Field is added before final empty line if not present.
+	 * @param name header field name (case insensitive). Used as is if field is added.
+	 * @param value field value
+	 */
+	public void set(String name, String value){
+		save();
+		if (updates != null) updates.remove(name.toLowerCase());
+		int field = find(name);
+		if (field == -1) {
+			add(name, value);
+		} else {
+			replace(index[field*4+2], index[field*4+3], value);
+		}
+	}
+
+	/**
+	 * Add a header field before final empty line, even if a field with same name already exists
+	 * @param name header field name
+	 * @param value field value
+	 */
+	public void add(String name, String value){
+		edit();
+		if (updates != null) updates.remove(name.toLowerCase());
+		int length = raw.length();
+		int pos = length;
+		if (length>=4 && raw.charAt(length-4)=='\r' && raw.charAt(length-3)=='\n' && raw.charAt(length-2)=='\r' && raw.charAt(length-1)=='\n') {
+			pos = length-2;
+		} else if (length>=2 && (raw.charAt(length-2)!='\r' || raw.charAt(length-1)!='\n')) {
+			raw.append("\r\n");//unterminated last line
+			pos = raw.length();
+		}
+		raw.insert(pos, name + ": " + value + "\r\n");
+	}
+
+	/**
+	 * Remove all fields with given name from header text
+	 * @param name header field name (case insensitive)
+	 */
+	public void remove(String name){
+		save();
+		if (updates != null) updates.remove(name.toLowerCase());
+		int field;
+		while ((field = find(name)) != -1){
+			int end = index[field*4+3];
+			if (end<raw.length() && raw.charAt(end)=='\r') end++;
+			if (end<raw.length() && raw.charAt(end)=='\n') end++;
+			delete(index[field*4], end);
+		}
+	}
+
+	/**
+	 * Search a header field
+	 * @param name header field name (case insensitive)
+	 * @return field number (last one if field is repeated), -1 if header does not contain given field
+	 */
+	public int find(String name){
+		if (!indexed) buildIndex();
+		int size = name.length();
+		for (int field=fields-1; field>=0; field--){
+			int start = index[field*4];
+			if (index[field*4+1]-start != size) continue;
+			int i = 0;
+			for (; i<size; i++){
+				char c1 = raw.charAt(start+i), c2 = name.charAt(i);
+				if (c1 != c2 && Character.toLowerCase(c1) != Character.toLowerCase(c2)) break;
+			}
+			if (i == size) return field;
+		}
+		return -1;
+	}
+
+	/**
+	 * @param field field number, as returned by find()
+	 * @return position of field value start in header text
+	 */
+	public int getValueStart(int field){
+		return index[field*4+2];
+	}
+
+	/**
+	 * @param field field number, as returned by find()
+	 * @return position of field value end (before CRLF) in header text
+	 */
+	public int getValueEnd(int field){
+		return index[field*4+3];
+	}
+//	<------------------------------------------------------------------------->
+
+//	<------------------------------------------------------------------------->
+	/**
+	 * Header modifications counter: compared before and after scripts, it tells if
+	 * header text has been edited, without keeping or comparing a copy of the header.
+	 * Values set using put() do not change header text and are not counted.
+	 * @return number of modifications of header text since header creation
+	 */
+	public int getModifications(){
+		return modifications;
+	}
+
+	/**
+	 * Start recording modifications, so that they can be cancelled with rollback().
+	 * Header is only copied on first modification after mark: an unmodified header costs nothing.
+	 */
+	public void mark(){
+		marked = true;
+		markedText = null;
+		markedUpdates = null;
+		markedModifications = modifications;
+	}
+
+	/**
+	 * Keep modifications made since mark(), and stop recording
+	 */
+	public void commit(){
+		marked = false;
+		markedText = null;
+		markedUpdates = null;
+	}
+
+	/**
+	 * Cancel modifications made since mark() (header text, values and modifications counter
+	 * are restored), and stop recording
+	 */
+	public void rollback(){
+		if (marked && markedText != null) {
+			raw.setLength(0);
+			raw.append(markedText);
+			updates = markedUpdates;
+			indexed = false;
+			modifications = markedModifications;
+		}
+		commit();
+	}
+
+	/**
+	 * Save header state on first modification after mark()
+	 */
+	private void save(){
+		if (!marked || markedText != null) return;
+		markedText = raw.toString();
+		markedUpdates = updates == null ? null : new HashMap<String, String>(updates);
+	}
+
+	/**
+	 * Record a header text modification
+	 */
+	private void edit(){
+		save();
+		indexed = false;
+		modifications++;
+	}
+//	<------------------------------------------------------------------------->
+
+//	<------------------------------------------------------------------------->
+	/**
+	 * Write header to given stream. ASCII headers are written as is, others are
+	 * encoded using platform charset.
+	 * @param out the stream to write to
+	 * @throws IOException
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		int length = raw.length();
+		byte[] bytes = new byte[length];
+		for (int i=0; i<length; i++){
+			char c = raw.charAt(i);
+			if (c > 0x7f) {
+				out.write(raw.toString().getBytes());
+				return;
+			}
+			bytes[i] = (byte)c;
+		}
+		out.write(bytes);
+	}
+//	<------------------------------------------------------------------------->
+
+//	<------------------------------------------------------------------------->
+	/**
+	 * Index fields names and values offsets. First line is skipped, indexing
+	 * stops on first empty line. Lines without ':' are ignored.
+	 */
+	private void buildIndex(){
+		fields = 0;
+		int length = raw.length();
+		int pos = 0;
+		//skip first line
+		while (pos<length && raw.charAt(pos)!='\n') pos++;
+		pos++;
+		while (pos<length){
+			int start = pos, end = pos;
+			while (end<length && raw.charAt(end)!='\n') end++;
+			pos = end+1;
+			if (end>start && raw.charAt(end-1)=='\r') end--;
+			if (end == start) break;//empty line => end of header
+			int colon = start;
+			while (colon<end && raw.charAt(colon)!=':') colon++;
+			if (colon == end) continue;
+			int value = colon+1;
+			while (value<end && (raw.charAt(value)==' ' || raw.charAt(value)=='\t')) value++;
+			if ((fields+1)*4 > index.length) {
+				int[] newindex = new int[index.length<<1];
+				System.arraycopy(index, 0, newindex, 0, index.length);
+				index = newindex;
+			}
+			index[fields*4] = start;
+			index[fields*4+1] = colon;
+			index[fields*4+2] = value;
+			index[fields*4+3] = end;
+			fields++;
+		}
+		indexed = true;
+	}
+//	<------------------------------------------------------------------------->
+}
@@ -80,6 +80,10 @@ public interface Icap {
 	final static String _200_OK = ("ICAP/1.0 200 OK"+CRLF);
 	/** ICAP 204 starting header*/
 	final static String _204_NOCONTENT = ("ICAP/1.0 204 No Content"+CRLF);
+	/** ICAP 206 starting header*/
+	final static String _206_PARTIALCONTENT = ("ICAP/1.0 206 Partial Content"+CRLF);
+	/** ICAP 206 last chunk extension, followed by offset of original body part to reuse*/
+	final static String USEORIGINALBODY = "0; use-original-body=";
 	/** ICAP 500 error message (directly converted into bytes for fast processing)*/
 	final static byte[] _500SERVERERROR = ("ICAP/1.0 500 Server Error"+CRLF+CRLF).getBytes();
 	/** ICAP 504 Service Timeout error message (directly converted into bytes for fast processing)*/
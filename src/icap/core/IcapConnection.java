@@ -0,0 +1,80 @@
+/**----------------------------------------------------------------------------
+ * GreasySpoon
+ * Copyright (C) 2008 Karel Mittig
+ *-----------------------------------------------------------------------------
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  Please refer to the LICENSE.txt file that comes along with this source file
+ *  or to http://www.gnu.org/licenses/gpl.txt for a full version of the license.
+ *
+ *-----------------------------------------------------------------------------
+ * For any comment, question, suggestion, bugfix or code contribution please
+ * contact Karel Mittig : karel [dot] mittig [at] gmail [dot] com
+ *---------------------------------------------------------------------------*/
+package icap.core;
+
+///////////////////////////////////
+//Import
+import java.net.Socket;
+import icap.SelectorFrontEnd;
+///////////////////////////////////
+
+/**
+ * ICAP client connection assigned to a service, with bytes already read from it (if any).<br>
+ * When a front end is set, the service only proceeds one transaction and gives
+ * the connection back to the front end afterwards.
+ * @author mittig
+ */
+public class IcapConnection {
+
+	/**ICAP client socket*/
+	public final Socket socket;
+
+	/**bytes already read from socket but not consumed yet (may be null)*/
+	public final byte[] pending;
+
+	/**front end owning the connection between transactions (null if connection is owned by service)*/
+	public final SelectorFrontEnd frontEnd;
+
+	/**time (in ns) at which connection has been queued in a connections pool*/
+	public long queuedAt;
+
+//	<------------------------------------------------------------------------->
+	/**
+	 * @param socket ICAP client socket
+	 * @param pending bytes already read from socket (may be null)
+	 * @param frontEnd front end owning the connection between transactions (may be null)
+	 */
+	public IcapConnection(Socket socket, byte[] pending, SelectorFrontEnd frontEnd){
+		this.socket = socket;
+		this.pending = pending;
+		this.frontEnd = frontEnd;
+	}
+//	<------------------------------------------------------------------------->
+
+//	<------------------------------------------------------------------------->
+	/**
+	 * Close underlying socket, ignoring errors
+	 */
+	public void close(){
+		try {
+			socket.close();
+		} catch (Exception e){
+			//nothing to do
+		}
+	}
+//	<------------------------------------------------------------------------->
+}
@@ -0,0 +1,491 @@
+/**----------------------------------------------------------------------------
+ * GreasySpoon
+ * Copyright (C) 2008 Karel Mittig
+ *-----------------------------------------------------------------------------
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  Please refer to the LICENSE.txt file that comes along with this source file
+ *  or to http://www.gnu.org/licenses/gpl.txt for a full version of the license.
+ *
+ *-----------------------------------------------------------------------------
+ * For any comment, question, suggestion, bugfix or code contribution please
+ * contact Karel Mittig : karel [dot] mittig [at] gmail [dot] com
+ *---------------------------------------------------------------------------*/
+package icap.core;
+
+///////////////////////////////////
+//Import
+import java.io.*;
+import java.util.Arrays;
+///////////////////////////////////
+
+/**
+ * Buffered ICAP client stream, replacing DataInputStream and its deprecated readLine().<br>
+ * Lines are read into a reusable byte buffer and parsed in place: header names are
+ * matched case insensitively on bytes, and decimal/hexadecimal values are computed
+ * directly from line bytes, so that no intermediate String is created while parsing
+ * ICAP request lines, Encapsulated offsets and chunks sizes.<br>
+ * A stream instance is owned by a service and reused for all its connections:
+ * see attach() and drain().
+ * @author mittig
+ */
+public class IcapInputStream extends InputStream {
+
+	/**underlying socket stream*/
+	private InputStream in;
+
+	/**read buffer*/
+	private byte[] buffer;
+	/**next byte to read in buffer*/
+	private int pos = 0;
+	/**number of valid bytes in buffer*/
+	private int count = 0;
+
+	/**last line read (without its CRLF)*/
+	private byte[] line = new byte[1024];
+	/**last line length*/
+	private int length = 0;
+	/**maximum line length accepted from peer (ICAP or HTTP header line, chunk size line)*/
+	public final static int MAXLINELENGTH = 65536;
+
+	/**set by readChunkSize() if last chunk size line ends with ieof extension*/
+	private boolean ieof = false;
+
+	private final static byte[] IEOF = "ieof".getBytes();
+
+//	<------------------------------------------------------------------------->
+	/**
+	 * Create a new stream, not attached to any connection
+	 * @param size read buffer size
+	 */
+	public IcapInputStream(int size){
+		this.buffer = new byte[size];
+	}
+//	<------------------------------------------------------------------------->
+
+//	<------------------------------------------------------------------------->
+	/**
+	 * Attach stream to a new connection
+	 * @param input the connection input stream
+	 * @param pending bytes already read from connection, to consume first (may be null)
+	 */
+	public void attach(InputStream input, byte[] pending){
+		this.in = input;
+		this.pos = 0;
+		this.count = 0;
+		this.length = 0;
+		this.ieof = false;
+		if (pending != null && pending.length>0){
+			if (pending.length > buffer.length) buffer = new byte[pending.length];
+			System.arraycopy(pending, 0, buffer, 0, pending.length);
+			count = pending.length;
+		}
+	}
+//	<------------------------------------------------------------------------->
+
+//	<------------------------------------------------------------------------->
+	/**
+	 * Detach stream from its connection, returning buffered bytes not consumed yet
+	 * @return unconsumed bytes (empty array if none)
+	 */
+	public byte[] drain(){
+		byte[] leftover = Arrays.copyOfRange(buffer, pos, count);
+		this.in = null;
+		this.pos = 0;
+		this.count = 0;
+		return leftover;
+	}
+//	<------------------------------------------------------------------------->
+
+//	<------------------------------------------------------------------------->
+	/**
+	 * Read more bytes from connection into buffer. Unread bytes are moved to buffer start.
+	 * @return number of bytes read, -1 if connection is closed
+	 * @throws IOException
+	 */
+	private int fill() throws IOException {
+		if (pos > 0){
+			System.arraycopy(buffer, pos, buffer, 0, count-pos);
+			count -= pos;
+			pos = 0;
+		}
+		if (count == buffer.length) buffer = Arrays.copyOf(buffer, buffer.length<<1);
+		if (in == null) return -1;
+		int n = in.read(buffer, count, buffer.length-count);
+		if (n > 0) count += n;
+		return n;
+	}
+//	<------------------------------------------------------------------------->
+
+//	<------------------------------------------------------------------------->
+	/**
+	 * @see java.io.InputStream#read()
+	 */
+	public int read() throws IOException {
+		if (pos >= count && fill() <= 0) return -1;
+		return buffer[pos++] & 0xff;
+	}
+
+	/**
+	 * @see java.io.InputStream#read(byte[], int, int)
+	 */
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) return 0;
+		if (pos >= count){
+			//large reads bypass buffer
+			if (len >= buffer.length && in != null) return in.read(b, off, len);
+			if (fill() <= 0) return -1;
+		}
+		int n = count-pos < len ? count-pos : len;
+		System.arraycopy(buffer, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	/**
+	 * Read exactly len bytes
+	 * @param b destination array
+	 * @param off offset in destination array
+	 * @param len number of bytes to read
+	 * @throws IOException if connection is closed before all bytes are read
+	 */
+	public void readFully(byte[] b, int off, int len) throws IOException {
+		while (len > 0){
+			int n = read(b, off, len);
+			if (n < 0) throw new EOFException();
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Copy exactly len bytes to given stream, straight from read buffer
+	 * @param out destination stream
+	 * @param len number of bytes to copy
+	 * @throws IOException if connection is closed before all bytes are read
+	 */
+	public void transferTo(OutputStream out, int len) throws IOException {
+		while (len > 0){
+			if (pos >= count && fill() <= 0) throw new EOFException();
+			int n = count-pos < len ? count-pos : len;
+			out.write(buffer, pos, n);
+			pos += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Skip n bytes, waiting for them if needed
+	 * @see java.io.InputStream#skip(long)
+	 */
+	public long skip(long n) throws IOException {
+		long skipped = 0;
+		while (skipped < n){
+			if (pos >= count && fill() <= 0) break;
+			int step = (int) Math.min(count-pos, n-skipped);
+			pos += step;
+			skipped += step;
+		}
+		return skipped;
+	}
+
+	/**
+	 * @return bytes readable without blocking
+	 * @see java.io.InputStream#available()
+	 */
+	public int available() throws IOException {
+		return (count-pos) + (in == null ? 0 : in.available());
+	}
+
+	/**
+	 * Close underlying stream
+	 * @see java.io.InputStream#close()
+	 */
+	public void close() throws IOException {
+		InputStream input = in;
+		in = null;
+		pos = 0;
+		count = 0;
+		if (input != null) input.close();
+	}
+//	<------------------------------------------------------------------------->
+
+//	<------------------------------------------------------------------------->
+	/**
+	 * Read next line (ended by LF or CRLF) into line buffer
+	 * @return line length (without line terminator), -1 if connection is closed
+	 * @throws IOException if line exceeds MAXLINELENGTH bytes, or on connection error
+	 */
+	public int readLine() throws IOException {
+		length = 0;
+		for (;;){
+			if (pos >= count && fill() <= 0) {
+				return length == 0 ? -1 : length;
+			}
+			int start = pos;
+			while (pos < count && buffer[pos] != '\n') pos++;
+			int end = pos;
+			boolean eol = pos < count;
+			if (eol) pos++;
+			append(start, end);
+			if (eol) break;
+		}
+		if (length>0 && line[length-1]=='\r') length--;
+		return length;
+	}
+
+	/**
+	 * Append buffer bytes to current line
+	 * @throws IOException if line becomes longer than MAXLINELENGTH (line end is not consumed)
+	 */
+	private void append(int start, int end) throws IOException {
+		int n = end-start;
+		if (length+n > MAXLINELENGTH) throw new IOException("line too long (more than "+MAXLINELENGTH+" bytes)");
+		if (length+n > line.length) line = Arrays.copyOf(line, Math.max(line.length<<1, length+n));
+		System.arraycopy(buffer, start, line, length, n);
+		length += n;
+	}
+
+	/**
+	 * Consume a pending line end (CRLF or LF) if already received, without blocking
+	 * @throws IOException
+	 */
+	public void skipLineEnd() throws IOException {
+		if (pos >= count && (in == null || in.available() == 0 || fill() <= 0)) return;
+		if (buffer[pos] == '\r'){
+			if (pos+1 >= count && fill() <= 0) return;
+			if (buffer[pos+1] != '\n') return;
+			pos += 2;
+		} else if (buffer[pos] == '\n'){
+			pos++;
+		}
+	}
+//	<------------------------------------------------------------------------->
+
+//	<------------------------------------------------------------------------->
+	/**
+	 * Read a chunk size line. Chunk extensions are ignored, except ieof (see isIeof())
+	 * @return chunk size, -1 if line is not a valid chunk size
+	 * @throws IOException if connection is closed
+	 */
+	public int readChunkSize() throws IOException {
+		if (readLine() < 0) throw new EOFException();
+		int i = skipSpaces(0, length);
+		int end = i;
+		while (end < length && hexValue(line[end]) >= 0) end++;
+		ieof = indexOfIgnoreCase(IEOF, end) != -1;
+		if (end == i) return -1;
+		for (int j=skipSpaces(end, length); j<length; j++){
+			if (line[j]==';') break;
+			return -1;
+		}
+		return parseHex(i, end);
+	}
+
+	/**
+	 * @return true if last chunk size line read with readChunkSize() contains ieof extension
+	 */
+	public boolean isIeof(){
+		return ieof;
+	}
+//	<------------------------------------------------------------------------->
+
+//	<------------------------------------------------------------------------->
+	/**
+	 * @return last line length
+	 */
+	public int lineLength(){
+		return length;
+	}
+
+	/**
+	 * @return true if last line only contains white spaces
+	 */
+	public boolean isBlankLine(){
+		return skipSpaces(0, length) == length;
+	}
+
+	/**
+	 * Check if last line starts with given bytes (case sensitive)
+	 * @param prefix the prefix to check
+	 * @return true if line starts with prefix
+	 */
+	public boolean startsWith(byte[] prefix){
+		if (prefix.length > length) return false;
+		for (int i=0; i<prefix.length; i++){
+			if (line[i] != prefix[i]) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Check if last line starts with given prefix, ignoring case
+	 * @param prefix the prefix to check, in lower case
+	 * @return true if line starts with prefix
+	 */
+	public boolean startsWithIgnoreCase(byte[] prefix){
+		return regionMatches(0, prefix);
+	}
+
+	/**
+	 * Check if last line contains given bytes at given offset, ignoring case
+	 * @param offset position in line
+	 * @param lowercase bytes to compare, in lower case
+	 * @return true if bytes match
+	 */
+	public boolean regionMatches(int offset, byte[] lowercase){
+		if (offset < 0 || offset+lowercase.length > length) return false;
+		for (int i=0; i<lowercase.length; i++){
+			if (toLower(line[offset+i]) != lowercase[i]) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Search given bytes in last line, ignoring case
+	 * @param lowercase bytes to search, in lower case
+	 * @param from position from which to search
+	 * @return position of bytes in line, -1 if not found
+	 */
+	public int indexOfIgnoreCase(byte[] lowercase, int from){
+		for (int i=from<0?0:from; i+lowercase.length<=length; i++){
+			if (regionMatches(i, lowercase)) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Search a byte in last line
+	 * @param b byte to search
+	 * @param from position from which to search
+	 * @return position of byte in line, -1 if not found
+	 */
+	public int indexOf(byte b, int from){
+		for (int i=from<0?0:from; i<length; i++){
+			if (line[i] == b) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Search last occurrence of a byte in last line
+	 * @param b byte to search
+	 * @return position of byte in line, -1 if not found
+	 */
+	public int lastIndexOf(byte b){
+		for (int i=length-1; i>=0; i--){
+			if (line[i] == b) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @param from start position in line
+	 * @param to end position in line
+	 * @return position of first non white space character in [from,to[ (to if none)
+	 */
+	public int skipSpaces(int from, int to){
+		while (from < to && (line[from]==' ' || line[from]=='\t')) from++;
+		return from;
+	}
+
+	/**
+	 * Parse a positive decimal value from last line. Leading white spaces are ignored,
+	 * parsing stops at first non digit character.
+	 * @param from start position in line
+	 * @param to end position in line
+	 * @return parsed value
+	 * @throws NumberFormatException if no digit is found, or if value exceeds Integer.MAX_VALUE
+	 */
+	public int parseInt(int from, int to){
+		int i = skipSpaces(from, to);
+		int start = i, value = 0;
+		while (i < to && line[i]>='0' && line[i]<='9'){
+			int digit = line[i++]-'0';
+			if (value > (Integer.MAX_VALUE-digit)/10) throw new NumberFormatException("number too large");
+			value = value*10 + digit;
+		}
+		if (i == start) throw new NumberFormatException("invalid number");
+		return value;
+	}
+
+	/**
+	 * Parse an hexadecimal value from last line
+	 * @return parsed value, -1 if value exceeds Integer.MAX_VALUE
+	 */
+	private int parseHex(int from, int to){
+		int value = 0;
+		for (int i=from; i<to; i++){
+			if (value > (Integer.MAX_VALUE>>4)) return -1;
+			value = (value<<4) + hexValue(line[i]);
+		}
+		return value;
+	}
+
+	/**
+	 * Append last line characters (ISO-8859-1) to given builder
+	 * @param sb the builder to fill
+	 * @return given builder
+	 */
+	public StringBuilder appendLine(StringBuilder sb){
+		for (int i=0; i<length; i++) sb.append((char)(line[i] & 0xff));
+		return sb;
+	}
+
+	/**
+	 * @param from start position in line
+	 * @param to end position in line
+	 * @return line part as a String (ISO-8859-1)
+	 */
+	public String getString(int from, int to){
+		char[] chars = new char[to-from];
+		for (int i=from; i<to; i++) chars[i-from] = (char)(line[i] & 0xff);
+		return new String(chars);
+	}
+
+	/**
+	 * @param from start position in line
+	 * @param to end position in line
+	 * @return line part as a lower case String
+	 */
+	public String getLowerCaseString(int from, int to){
+		char[] chars = new char[to-from];
+		for (int i=from; i<to; i++) chars[i-from] = (char)(toLower(line[i]) & 0xff);
+		return new String(chars);
+	}
+//	<------------------------------------------------------------------------->
+
+//	<------------------------------------------------------------------------->
+	/**
+	 * @param b an ASCII character
+	 * @return lower case character
+	 */
+	public final static byte toLower(byte b){
+		return (b>='A' && b<='Z') ? (byte)(b+32) : b;
+	}
+
+	/**
+	 * @param b an ASCII character
+	 * @return hexadecimal value of character, -1 if not an hexadecimal digit
+	 */
+	private final static int hexValue(byte b){
+		if (b>='0' && b<='9') return b-'0';
+		if (b>='a' && b<='f') return b-'a'+10;
+		if (b>='A' && b<='F') return b-'A'+10;
+		return -1;
+	}
+//	<------------------------------------------------------------------------->
+}
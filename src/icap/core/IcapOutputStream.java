@@ -0,0 +1,183 @@
+/**----------------------------------------------------------------------------
+ * GreasySpoon
+ * Copyright (C) 2008 Karel Mittig
+ *-----------------------------------------------------------------------------
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  Please refer to the LICENSE.txt file that comes along with this source file
+ *  or to http://www.gnu.org/licenses/gpl.txt for a full version of the license.
+ *
+ *-----------------------------------------------------------------------------
+ * For any comment, question, suggestion, bugfix or code contribution please
+ * contact Karel Mittig : karel [dot] mittig [at] gmail [dot] com
+ *---------------------------------------------------------------------------*/
+package icap.core;
+
+///////////////////////////////////
+//Import
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+///////////////////////////////////
+
+/**
+ * Buffered ICAP client stream, replacing a BufferedOutputStream created for each connection.<br>
+ * A stream instance is owned by a service and reused for all its connections:
+ * see attach() and detach(). Writes larger than buffer are sent directly to connection.<br>
+ * When connection socket has a channel, several buffers can be sent at once using a
+ * gathering write (see write(ByteBuffer[])), without copying them into stream buffer.
+ * @author mittig
+ */
+public class IcapOutputStream extends OutputStream {
+
+	/**underlying socket stream*/
+	private OutputStream out;
+	/**underlying socket channel, if any (must be in blocking mode)*/
+	private GatheringByteChannel channel;
+
+	/**write buffer*/
+	private final byte[] buffer;
+	/**number of bytes waiting in buffer*/
+	private int count = 0;
+
+//	<------------------------------------------------------------------------->
+	/**
+	 * Create a new stream, not attached to any connection
+	 * @param size write buffer size
+	 */
+	public IcapOutputStream(int size){
+		this.buffer = new byte[size];
+	}
+//	<------------------------------------------------------------------------->
+
+//	<------------------------------------------------------------------------->
+	/**
+	 * Attach stream to a new connection
+	 * @param output the connection output stream
+	 */
+	public void attach(OutputStream output){
+		attach(output, null);
+	}
+
+	/**
+	 * Attach stream to a new connection
+	 * @param output the connection output stream
+	 * @param gathering the connection channel, in blocking mode (null if socket has no channel)
+	 */
+	public void attach(OutputStream output, GatheringByteChannel gathering){
+		this.out = output;
+		this.channel = gathering;
+		this.count = 0;
+	}
+
+	/**
+	 * Detach stream from its connection. Bytes not flushed yet are discarded.
+	 */
+	public void detach(){
+		this.out = null;
+		this.channel = null;
+		this.count = 0;
+	}
+
+	/**
+	 * @return true if stream is attached to a channel supporting gathering writes
+	 */
+	public boolean isGathering(){
+		return this.channel != null;
+	}
+//	<------------------------------------------------------------------------->
+
+//	<------------------------------------------------------------------------->
+	/**
+	 * @see java.io.OutputStream#write(int)
+	 */
+	public void write(int b) throws IOException {
+		if (count == buffer.length) flushBuffer();
+		buffer[count++] = (byte)b;
+	}
+
+	/**
+	 * @see java.io.OutputStream#write(byte[], int, int)
+	 */
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (len >= buffer.length) {
+			flushBuffer();
+			out.write(b, off, len);
+			return;
+		}
+		if (len > buffer.length - count) flushBuffer();
+		System.arraycopy(b, off, buffer, count, len);
+		count += len;
+	}
+
+	/**
+	 * Send given buffers (from their position to their limit) to connection, preceded by
+	 * bytes waiting in stream buffer, using a single gathering write when possible.
+	 * Buffers content is not copied. Stream must be attached to a channel (see isGathering()).
+	 * @param buffers the buffers to send
+	 * @throws IOException
+	 */
+	public void write(ByteBuffer[] buffers) throws IOException {
+		ByteBuffer[] srcs = buffers;
+		if (count > 0) {
+			srcs = new ByteBuffer[buffers.length+1];
+			srcs[0] = ByteBuffer.wrap(buffer, 0, count);
+			System.arraycopy(buffers, 0, srcs, 1, buffers.length);
+		}
+		long remaining = 0;
+		for (ByteBuffer src:srcs) remaining += src.remaining();
+		while (remaining > 0) {
+			remaining -= channel.write(srcs);
+		}
+		count = 0;
+	}
+//	<------------------------------------------------------------------------->
+
+//	<------------------------------------------------------------------------->
+	/**
+	 * Write buffered bytes to connection
+	 * @throws IOException
+	 */
+	private void flushBuffer() throws IOException {
+		if (count > 0) {
+			out.write(buffer, 0, count);
+			count = 0;
+		}
+	}
+
+	/**
+	 * @see java.io.OutputStream#flush()
+	 */
+	public void flush() throws IOException {
+		flushBuffer();
+		out.flush();
+	}
+
+	/**
+	 * Flush buffered bytes, then close connection stream and detach from it.
+	 * Does nothing if stream is not attached.
+	 * @see java.io.OutputStream#close()
+	 */
+	public void close() throws IOException {
+		if (out == null) return;
+		try {
+			flush();
+		} finally {
+			try {out.close();} finally {detach();}
+		}
+	}
+//	<------------------------------------------------------------------------->
+}
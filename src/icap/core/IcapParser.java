@@ -29,11 +29,11 @@ package icap.core;
 
 ///////////////////////////////////
 //Import
-import java.io.*;
 import java.util.Hashtable;
 import tools.general.Base64;
 import tools.logger.Log;
-import tools.general.ExtendedByteArrayOutputStream;
+import tools.general.SegmentedBuffer;
+import tools.general.BufferArena;
 ///////////////////////////////////
 
 
@@ -43,7 +43,7 @@ import tools.general.ExtendedByteArrayOutputStream;
  * and embedded HTTP messages for REQMOD and RESPMOD.   
  * @author Mittig
  */
-public abstract class IcapParser extends Thread implements Icap {
+public abstract class IcapParser implements Runnable, Icap {
 //	<------------------------------------------------------------------------------------------>
 
 	//public static int debug = 0;
@@ -83,23 +83,24 @@ public abstract class IcapParser extends Thread implements Icap {
 	/** indicates if all REQ/RESP body has been read*/
 	protected boolean bodyreaded = false;
 	
+	/**Buffers arena of this parser: bodies and response buffers are retained between transactions*/
+	protected final BufferArena arena = new BufferArena();
+
 	/**HTTP Request header*/
-	protected StringBuilder reqHeader= new StringBuilder();
+	protected HttpHeader reqHeader= new HttpHeader();
 	/**HTTP Request body (byte format)*/
-	protected ExtendedByteArrayOutputStream reqBody= new ExtendedByteArrayOutputStream();
+	protected SegmentedBuffer reqBody= arena.newBody();
 
-	/** ICAP request headers */	protected Hashtable<String, String> icapHeaders = new Hashtable<String, String>();
-	/** HTTP request headers */
-	protected Hashtable<String, String> httpReqHeaders = new Hashtable<String, String>();
-	/** HTTP response headers */
-	protected Hashtable<String, String> httpRespHeaders = new Hashtable<String, String>();
+	/** ICAP request headers */
+	protected Hashtable<String, String> icapHeaders = new Hashtable<String, String>();
 	/**HTTP Request/Response body size*/
 	long contentLength = -1;
 	/**HTTP Response code (RESPMOD only)*/
 	protected int rescode=502;
-	protected StringBuilder resHeader= new StringBuilder();
+	/**HTTP Response header*/
+	protected HttpHeader resHeader= new HttpHeader();
 	/**HTTP Response body (byte format)*/
-	protected ExtendedByteArrayOutputStream resBody = new ExtendedByteArrayOutputStream();
+	protected SegmentedBuffer resBody = arena.newBody();
 
 
 
@@ -122,16 +123,36 @@ public abstract class IcapParser extends Thread implements Icap {
 	protected int id =0;
 	/**internal counters used in traces to show thread ID*/
 	private static int internalcounter = 0;
+	/**Parser name, used to name the thread running it*/
+	private String name;
+
+	/**ICAP methods and headers names, matched on bytes while parsing*/
+	private final static byte[] OPTIONS_b = "OPTIONS".getBytes(), REQMOD_b = "REQMOD".getBytes(), RESPMOD_b = "RESPMOD".getBytes();
+	private final static byte[] PREVIEW_b = "preview:".getBytes(), ALLOW_b = "allow:".getBytes(), ENCAPSULATED_b = "encapsulated:".getBytes();
+	private final static byte[] REQ_HDR_b = "req-hdr=".getBytes(), RES_HDR_b = "res-hdr=".getBytes();
+	private final static byte[] REQ_BODY_b = "req-body=".getBytes(), RES_BODY_b = "res-body=".getBytes(), NULL_BODY_b = "null-body=".getBytes();
+	private final static byte[] CODE204_b = "204".getBytes(), CODE206_b = "206".getBytes();
+	private final static byte[] SCHEME_SEPARATOR_b = "://".getBytes(), BRAND_NETAPP_b = "brand=netapp".getBytes();
 	
 //	<------------------------------------------------------------------------->    
 	/**
-	 * Create an ICAP parser. Class extends thread in order to make parser threadable.
+	 * Create an ICAP parser. Class is a Runnable task in order to make parser threadable
+	 * (either in platform or virtual threads).
 	 * @param threadName Thread ID/name (mostly for debugging purpose)
 	 */
 	public IcapParser(String threadName){
 		super();
 		this.id = internalcounter++;
-		this.setName(threadName+"-"+id);
+		this.name = threadName+"-"+id;
+	}
+//	<------------------------------------------------------------------------->
+
+//	<------------------------------------------------------------------------->
+	/**
+	 * @return Parser name (mostly for debugging purpose)
+	 */
+	public String getName(){
+		return name;
 	}
 //	<------------------------------------------------------------------------->
 
@@ -156,14 +177,13 @@ public abstract class IcapParser extends Thread implements Icap {
 	/**
 	 * Parse given buffer to find icap header<br>
 	 * iCAP request is stored in icapHeader BufferedString<br>
+	 * Lines are parsed in place from stream line buffer (no intermediate String)
 	 * @param bufferedreader the buffer to parse
 	 * @return iCAP request type: OPTIONS, REQMODE, RESPMODE
 	 * @throws Exception
 	 */
-	@SuppressWarnings("deprecation")
-	public TYPE parseIcapHeader(DataInputStream bufferedreader) throws Exception {
-		String readline = "";
-		int traildot;
+	public TYPE parseIcapHeader(IcapInputStream bufferedreader) throws Exception {
+		int length;
 		type = TYPE.INVALID;
 		allow_204 = false;
 		allow_206 = false;
@@ -175,116 +195,85 @@ public abstract class IcapParser extends Thread implements Icap {
 		//-----------------------------------------------------------------------------------
 		try {
 			while (type==TYPE.INVALID){
-				readline = bufferedreader.readLine();
-				if (readline==null) {
+				length = bufferedreader.readLine();
+				if (length<0) {
 					if (Log.finest()) Log.trace(Log.FINEST, "----------CLOSED BUFFER-----------");
 					return TYPE.INVALID;
 				}
-				if (!readline.startsWith("REQMOD") && !readline.startsWith("RESPMOD") && !readline.startsWith("OPTIONS")) {
-					if (readline.trim().equals("")) continue;
-					return TYPE.INVALID;
-					//continue;//unknown or invalid intermediary data (unreaded chunk for example)=> ignore
-				} 
-
-				icapHeader.append(readline).append(CRLF);
-				readline = readline.toLowerCase(); // case insensitive
-				
-				// Options request: fast return
-				if (readline.startsWith("options")) {
-					while(!(readline = bufferedreader.readLine()).equals("")) continue;
+				if (bufferedreader.startsWith(OPTIONS_b)) {
+					// Options request: fast return
+					bufferedreader.appendLine(icapHeader).append(CRLF);
+					while ((length = bufferedreader.readLine())>0) continue;
+					if (length<0) return TYPE.INVALID;
 					if (Log.finer()) Log.trace(Log.FINER, "---------------------");
 					return TYPE.OPTIONS;
 				}
-				i_service = readline.substring(readline.indexOf("://")+3,readline.lastIndexOf(" ")); // get requested icap url
 				//chek for req or resp mode
-				if (readline.startsWith("reqmod")) {
+				if (bufferedreader.startsWith(REQMOD_b)) {
 					type = TYPE.REQMOD;
-				} else if (readline.startsWith("respmod")) {
+				} else if (bufferedreader.startsWith(RESPMOD_b)) {
 					type = TYPE.RESPMOD;
 				} else {
-					//nothing founded => abort
-					if (Log.finest()) Log.trace(Log.FINEST, "----------UNKNOWN REQUEST : "+readline);
+					if (bufferedreader.isBlankLine()) continue;
+					//unknown or invalid intermediary data (unreaded chunk for example) => abort
+					if (Log.finest()) Log.trace(Log.FINEST, "----------UNKNOWN REQUEST : "+bufferedreader.appendLine(new StringBuilder()));
 					return TYPE.INVALID;
 				}
-				if (readline.indexOf("brand=netapp")!=-1){
+				bufferedreader.appendLine(icapHeader).append(CRLF);
+				// get requested icap url
+				int start = bufferedreader.indexOfIgnoreCase(SCHEME_SEPARATOR_b, 0);
+				int end = bufferedreader.lastIndexOf((byte)' ');
+				i_service = (start!=-1 && end>start+3) ? bufferedreader.getLowerCaseString(start+3, end) : "";
+				if (bufferedreader.indexOfIgnoreCase(BRAND_NETAPP_b, 0)!=-1){
 					this.brand = ClientBrand.NETAPP;
 				} else {
 					this.brand = ClientBrand.OTHER;
 				}
 				if (Log.finest()) Log.trace(Log.FINEST,"ICAP Client brand:" + brand.toString());
 			}
-			if (Log.finest()) Log.trace(Log.FINEST, "----------EMPTY REQUEST-----------");
 		} catch (Exception e){
 			Log.error(Log.FINE, "ICAP Parser => Connection resetted by ICAP Client");
 			return type;
 		}
 
-		String lowercase = "";
 		//-----------------------------------------------------------------------------------
 		// Type is either REQMODE or RESPMODE => Let's parse header
 		//-----------------------------------------------------------------------------------
-		while((readline = bufferedreader.readLine()) != null)  {
+		while((length = bufferedreader.readLine()) >= 0)  {
 
-			icapHeader.append(readline).append(CRLF);
+			bufferedreader.appendLine(icapHeader).append(CRLF);
 
 			//Empty line => end of icap header => abort parsing
-			if (readline.length()==0) {
+			if (length==0) {
 				break;
 			}
 
-			lowercase = readline.toLowerCase();//put readed line in lowercase to avoid parsing error
-
-			if (lowercase.startsWith("preview:")){
-				preview = Integer.parseInt(readline.substring(9).trim());
-			}
-			
-			if (lowercase.startsWith("allow:")){
-				allow_204 = lowercase.contains("204");
-				allow_206 = lowercase.contains("206");
-			}
-
-			if (lowercase.startsWith("encapsulated:")){
-				i_encapsulated = lowercase.substring(14).trim();
-				int pos,pos1;
-				pos = i_encapsulated.indexOf("req-hdr=");
-				if (pos>0){
-					pos1 = i_encapsulated.indexOf(",",pos+8);
-					i_req_hdr = Integer.parseInt(i_encapsulated.substring(pos+8,pos1).trim());
-				}
-				//REQMOD: parse req-hdr and null-body parameters
-				if (type==TYPE.REQMOD){
-					if (i_encapsulated.indexOf("req-body=")>0)
-						i_req_body = Integer.parseInt(i_encapsulated.substring(i_encapsulated.lastIndexOf("=")+1).trim());
-					else 
-						i_null_body = Integer.parseInt(i_encapsulated.substring(i_encapsulated.lastIndexOf("=")+1).trim());
-				} else {
-					//RESPMOD: parse res-hdr and res-body parameters
-					pos = i_encapsulated.indexOf("res-hdr=");
-					if (pos>0){
-						pos1 = i_encapsulated.indexOf(",",pos+8);
-						i_res_hdr = Integer.parseInt(i_encapsulated.substring(pos+8,pos1).trim());
-					}
-					pos = i_encapsulated.indexOf("res-body=");
-					if (pos>0){
-						i_res_body = Integer.parseInt(i_encapsulated.substring(pos+9).trim());
-					} else {
-						pos = i_encapsulated.indexOf("null-body=");
-						i_null_body = Integer.parseInt(i_encapsulated.substring(pos+10).trim());
-					}             
-				}
+			if (bufferedreader.startsWithIgnoreCase(PREVIEW_b)){
+				preview = bufferedreader.parseInt(PREVIEW_b.length, length);
+			} else if (bufferedreader.startsWithIgnoreCase(ALLOW_b)){
+				allow_204 = bufferedreader.indexOfIgnoreCase(CODE204_b, ALLOW_b.length)!=-1;
+				allow_206 = bufferedreader.indexOfIgnoreCase(CODE206_b, ALLOW_b.length)!=-1;
+			} else if (bufferedreader.startsWithIgnoreCase(ENCAPSULATED_b)){
+				parseEncapsulated(bufferedreader, length);
 				continue;
-			} 
+			}
 			//If here, standard header => put it in ICAP header hashtable
 			try{
-				traildot = readline.indexOf(":"); 
-				//B64 decoding for specific ICAP headers
-				if (lowercase.startsWith("x-authenticated-user") 
-						|| lowercase.startsWith("x-authenticated-groups")) {
-					icapHeaders.put(lowercase.substring(0,traildot), Base64.decodeString(readline.substring(traildot+2)));
-					if (Log.finer()) Log.trace(Log.FINER, "****BASE64 decoding["+Base64.decodeString(readline.substring(traildot+2))+"]");
+				int traildot = bufferedreader.indexOf((byte)':', 0);
+				if (traildot<=0) {
+					if (Log.info()) Log.error(Log.INFO,"ICAP Parser error (parseIcapHeader) - invalid header: "+bufferedreader.appendLine(new StringBuilder()));
 					continue;
 				}
-				icapHeaders.put(lowercase.substring(0,traildot), readline.substring(traildot+2));
+				String headername = bufferedreader.getLowerCaseString(0, traildot);
+				String value = bufferedreader.getString(bufferedreader.skipSpaces(traildot+1, length), length);
+				//B64 decoding for specific ICAP headers
+				if (headername.startsWith("x-authenticated-user") 
+						|| headername.startsWith("x-authenticated-groups")) {
+					icapHeaders.put(headername, Base64.decodeString(value));
+					if (Log.finer()) Log.trace(Log.FINER, "****BASE64 decoding["+Base64.decodeString(value)+"]");
+					continue;
+				}
+				icapHeaders.put(headername, value);
 			} catch (Exception e){
 				if (Log.info()) Log.error(Log.INFO,"ICAP Parser error (parseIcapHeader)",e);
 			}
@@ -293,6 +282,33 @@ public abstract class IcapParser extends Thread implements Icap {
 		return type;
 	}
 //	<------------------------------------------------------------------------------------------>
+
+//	<------------------------------------------------------------------------------------------>
+	/**
+	 * Parse Encapsulated header line (req-hdr, req-body, res-hdr, res-body and null-body offsets)
+	 * @param bufferedreader the stream holding Encapsulated header as last read line
+	 * @param length the line length
+	 */
+	private void parseEncapsulated(IcapInputStream bufferedreader, int length){
+		int start = bufferedreader.skipSpaces(ENCAPSULATED_b.length, length);
+		i_encapsulated = bufferedreader.getLowerCaseString(start, length).trim();
+		int pos = start;
+		while (pos<length){
+			pos = bufferedreader.skipSpaces(pos, length);
+			int equal = bufferedreader.indexOf((byte)'=', pos);
+			if (equal==-1) break;
+			int comma = bufferedreader.indexOf((byte)',', equal);
+			if (comma==-1) comma = length;
+			int value = bufferedreader.parseInt(equal+1, comma);
+			if (bufferedreader.regionMatches(pos, REQ_HDR_b)) i_req_hdr = value;
+			else if (bufferedreader.regionMatches(pos, RES_HDR_b)) i_res_hdr = value;
+			else if (bufferedreader.regionMatches(pos, REQ_BODY_b)) i_req_body = value;
+			else if (bufferedreader.regionMatches(pos, RES_BODY_b)) i_res_body = value;
+			else if (bufferedreader.regionMatches(pos, NULL_BODY_b)) i_null_body = value;
+			pos = comma+1;
+		}
+	}
+//	<------------------------------------------------------------------------------------------>
 	
 
 //<------------------------------------------------------------------------------------------>
@@ -352,14 +368,14 @@ public TYPE getType(){
 	 * Returns the HTTP request body
 	 * @return Returns the HTTP request body, or null if not available.
 	 */
-	public ExtendedByteArrayOutputStream getReqBody() {
+	public SegmentedBuffer getReqBody() {
 		return reqBody;
 	}
 	/**
 	 * Returns the HTTP response body
 	 * @return Returns the HTTP response body, or null if not available.
 	 */
-	public ExtendedByteArrayOutputStream getRespBody() {
+	public SegmentedBuffer getRespBody() {
 		return resBody;
 	}
 	/**
@@ -398,12 +414,12 @@ public TYPE getType(){
 	}
 	/**
 	 * Retrieve a specific header value from HTTP request header
-	 * Headers are stored in lowercase to be case insensitive
+	 * Headers names are case insensitive
 	 * @param headername HTTP header name to retrieve from request
 	 * @return Returns the header value of given header name (or null if none) in HTTP request.
 	 */
 	public String getReqHeader(String headername) {
-		return this.httpReqHeaders.get(headername);
+		return this.reqHeader.get(headername);
 	}
 	/**
 	 * Returns the complete HTTP request header 
@@ -414,20 +430,26 @@ public TYPE getType(){
 	}
 	/**
 	 * Replace HTTP request headers by the provided String
+	 * (lines are normalized, see HttpHeader.setText())
 	 * @param requestHeaders String containing the new request header to set
 	 */
 	public void setRequestHeaders(String requestHeaders){
-		this.reqHeader.setLength(0);
-		this.reqHeader.append(requestHeaders);
+		this.reqHeader.setText(requestHeaders);
+	}
+	/**
+	 * @return HTTP request header, for in place edition
+	 */
+	public HttpHeader getHttpRequestHeader(){
+		return this.reqHeader;
 	}
 	/**
 	 * Retrieve a specific header value from HTTP response header
-	 * Headers are stored in lowercase to be case insensitive
+	 * Headers names are case insensitive
 	 * @param headername HTTP header name to retrieve from HTTP response
 	 * @return The value of provided header name (or null if not available) 
 	 */
 	public String getRespHeader(String headername) {
-		return this.httpRespHeaders.get(headername);
+		return this.resHeader.get(headername);
 	}
 	
 	/**
@@ -436,7 +458,7 @@ public TYPE getType(){
 	 * @param value the value to set
 	 */
 	public void updateRespHeader(String headername,String value) {
-		this.httpRespHeaders.put(headername,value);
+		this.resHeader.put(headername,value);
 	}
 	/**
 	 * Update request header with given value
@@ -444,7 +466,7 @@ public TYPE getType(){
 	 * @param value the value to set
 	 */
 	public void updateReqHeader(String headername,String value) {
-		this.httpReqHeaders.put(headername,value);
+		this.reqHeader.put(headername,value);
 	}
 	
 	/**
@@ -456,11 +478,17 @@ public TYPE getType(){
 	}
 	/**
 	 * Replace HTTP response headers by the provided String
+	 * (lines are normalized, see HttpHeader.setText())
 	 * @param responseHeaders String containing the new response header to set
 	 */
 	public void setResponseHeaders(String responseHeaders){
-		this.resHeader.setLength(0);
-		this.resHeader.append(responseHeaders);
+		this.resHeader.setText(responseHeaders);
+	}
+	/**
+	 * @return HTTP response header, for in place edition
+	 */
+	public HttpHeader getHttpResponseHeader(){
+		return this.resHeader;
 	}
 	/**
 	 * Returns the full HTTP URL of parsed HTTP message.<br>
@@ -0,0 +1,117 @@
+/**----------------------------------------------------------------------------
+ * GreasySpoon
+ * Copyright (C) 2008 Karel Mittig
+ *-----------------------------------------------------------------------------
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  Please refer to the LICENSE.txt file that comes along with this source file
+ *  or to http://www.gnu.org/licenses/gpl.txt for a full version of the license.
+ *
+ *-----------------------------------------------------------------------------
+ * For any comment, question, suggestion, bugfix or code contribution please
+ * contact Karel Mittig : karel [dot] mittig [at] gmail [dot] com
+ *---------------------------------------------------------------------------*/
+package icap.core;
+
+///////////////////////////////////
+//Import
+import java.io.IOException;
+import java.io.OutputStream;
+///////////////////////////////////
+
+/**
+ * ICAP responses parts pre-encoded for a given ICAP server (listener).<br>
+ * Status lines followed by ISTag and Host headers, and OPTIONS response, are encoded once
+ * and written as is in responses. Instances are immutable: when ISTag changes, server
+ * replaces its templates by a new instance (see IcapServer.setISTAG()), so that a response
+ * never mixes parts from different ISTags.<br>
+ * Class also provides server independent header parts, and allocation-free encoders for
+ * chunk sizes and encapsulated offsets.
+ * @author mittig
+ */
+public final class ResponseTemplates implements Icap {
+
+	/**Encapsulated header starts, to complete with HTTP header length*/
+	public final static byte[] REQ_BODY = "Encapsulated: req-hdr=0, req-body=".getBytes(),
+		REQ_NULLBODY = "Encapsulated: req-hdr=0, null-body=".getBytes(),
+		RES_BODY = "Encapsulated: res-hdr=0, res-body=".getBytes(),
+		RES_NULLBODY = "Encapsulated: res-hdr=0, null-body=".getBytes();
+	/**Connection headers, followed by ICAP header end*/
+	public final static byte[] KEEPALIVE_END = (HEAD_CONNECTION_KEEPALIVE+CRLF).getBytes(),
+		CLOSE_END = (HEAD_CONNECTION_CLOSED+CRLF).getBytes();
+
+	/**hexadecimal digits*/
+	private final static byte[] DIGITS = "0123456789abcdef".getBytes();
+
+	/**ISTag header (without trailing CRLF)*/
+	public final String istag;
+	/**200 OK status line, ISTag and Host headers*/
+	public final byte[] ok;
+	/**206 Partial Content status line, ISTag and Host headers*/
+	public final byte[] partial;
+	/**complete 204 No Content response*/
+	public final byte[] noContent;
+	/**complete OPTIONS response*/
+	public final byte[] options;
+	/**complete 503 Service Unavailable response, closing connection (sent when server is overloaded)*/
+	public final byte[] unavailable;
+	/**complete 204 No Content response, closing connection (sent when server is overloaded)*/
+	public final byte[] overloaded;
+
+//	<------------------------------------------------------------------------->
+	/**
+	 * Encode responses parts for a server
+	 * @param istag ISTag header (without trailing CRLF)
+	 * @param icaphost Host header (with trailing CRLF)
+	 * @param options complete OPTIONS response
+	 */
+	public ResponseTemplates(String istag, String icaphost, String options){
+		this.istag = istag;
+		this.ok = (_200_OK+istag+CRLF+icaphost).getBytes();
+		this.partial = (_206_PARTIALCONTENT+istag+CRLF+icaphost).getBytes();
+		this.noContent = (_204_NOCONTENT+istag+CRLF+CRLF).getBytes();
+		this.options = options.getBytes();
+		this.unavailable = ("ICAP/1.0 503 Service Unavailable"+CRLF+istag+CRLF+HEAD_CONNECTION_CLOSED+CRLF).getBytes();
+		this.overloaded = (_204_NOCONTENT+istag+CRLF+HEAD_CONNECTION_CLOSED+CRLF).getBytes();
+	}
+//	<------------------------------------------------------------------------->
+
+//	<------------------------------------------------------------------------->
+	/**
+	 * Write a chunk size (hexadecimal, without CRLF), without allocating any object
+	 * @param out the stream to write to
+	 * @param size the chunk size
+	 * @throws IOException
+	 */
+	public static void writeHex(OutputStream out, int size) throws IOException {
+		int shift = 28;
+		while (shift > 0 && (size >>> shift) == 0) shift -= 4;
+		for (; shift >= 0; shift -= 4) out.write(DIGITS[(size >>> shift) & 0xf]);
+	}
+
+	/**
+	 * Write a positive decimal number (encapsulated offset), without allocating any object
+	 * @param out the stream to write to
+	 * @param value the number
+	 * @throws IOException
+	 */
+	public static void writeDecimal(OutputStream out, int value) throws IOException {
+		int divisor = 1;
+		while (divisor <= value/10) divisor *= 10;
+		for (; divisor > 0; divisor /= 10) out.write(DIGITS[(value/divisor) % 10]);
+	}
+//	<------------------------------------------------------------------------->
+}
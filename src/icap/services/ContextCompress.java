@@ -241,7 +241,7 @@ public class ContextCompress extends AbstractService {
 	 * @return	ICAP valasz statuszkod
 	 * @throws Exception
 	 */
-	public synchronized int getReqmodResponse(ByteArrayOutputStream bas) throws Exception {
+	public int getReqmodResponse(ByteArrayOutputStream bas) throws Exception {
 		
 		/* Toltsuk le a keres teljes tartalmat */	
         if (i_req_body > 0){
@@ -261,12 +261,12 @@ public class ContextCompress extends AbstractService {
 		StringBuilder sb = new StringBuilder();
 		
 		/* Hozzaadjuk az ICAP hostot, majd a HTTP fejlecet a 0. pozicioba */
-		sb.append("ICAP/1.0 200 OK\r\n").append(server.getISTAG()).append(CRLF);//.append("Server: ICAP-Server-Software/1.0\r\n"); 
+		bas.write(server.getTemplates().ok);
 		
 		/* A keres valassza valt, (HTTP/xxx -vel kezdodik GET/POST/.... helyett) */
 		boolean turnedIntoResponse = reqHeader.subSequence(0, 5).equals("HTTP/"); 
 		
-		sb.append(server.icaphost).append(turnedIntoResponse?"Encapsulated: res-hdr=0":"Encapsulated: req-hdr=0"); 
+		sb.append(turnedIntoResponse?"Encapsulated: res-hdr=0":"Encapsulated: req-hdr=0"); 
 		
 		if (reqBody!=null && reqBody.size()>0){
 			sb.append(turnedIntoResponse?", res-body=":", req-body="); /* Ha van body, megadjuk */ 
@@ -294,10 +294,7 @@ public class ContextCompress extends AbstractService {
 
 		/* A body resz, chunked megoldassal kodolva */
 		if (reqBody!=null && reqBody.size()>0) {
-			bas.write((Integer.toHexString(reqBody.size())+CRLF).getBytes());
-			reqBody.writeTo(bas);
-			bas.write(CRLF.getBytes());
-			bas.write(ENDCHUNK);
+			writeBody(bas, reqBody);
 		}
 	
 		/* Minden kesz, minden jo, 200-as kod */
@@ -310,7 +307,7 @@ public class ContextCompress extends AbstractService {
 	 * a szerver majdani valaszanak tomoritesere.
 	 * @return igaz erteket ad vissza, ha a tomorites aktiv, hamisat egyebkent
 	 */
-	public synchronized boolean getContextCompression() {
+	public boolean getContextCompression() {
 		String useragent = getReqHeader("user-agent");
 		if (useragent.matches(confCompressibleUserAgents)) {
 				return true;
@@ -333,7 +330,7 @@ public class ContextCompress extends AbstractService {
 	 * @return	ICAP valasz statuszkod
 	 * @throws Exception 
 	 */
-	public synchronized int getRespModResponse(ByteArrayOutputStream bas) throws Exception {
+	public int getRespModResponse(ByteArrayOutputStream bas) throws Exception {
 
 		String contenttype = this.getRespHeader("content-type");
 		boolean disablecompression = false;
@@ -380,11 +377,11 @@ public class ContextCompress extends AbstractService {
 			
 			if (isMimeTypeSupported(contenttype, confImageContentTypes)) {
 				if (confCompressFlags.containsKey("image")) {
-					byte[] binaryContent = this.resBody.toByteArray();
 					/* Csak akkor tomoritunk at, ha 200 byte-nal nagyobb a kep */
-					if (binaryContent.length > 200) {
+					if (this.resBody.size() > 200) {
 						/* Az ImageMagick sajnos nem thread-safe, igy szinkronizalni kell */
-						/*synchronized (imagemagicklock) {
+						/*byte[] binaryContent = this.resBody.toByteArray();
+						synchronized (imagemagicklock) {
 							MagickImage image = new MagickImage();
 							ImageInfo info = new ImageInfo();
 							try {
@@ -418,7 +415,7 @@ public class ContextCompress extends AbstractService {
 						return unchangedResponse(bas);
 					}
 				}
-				content = new String (this.resBody.toByteArray(),encoding);
+				content = this.resBody.toString(encoding);
 
 				/* Meghatarozzuk a tartalom hash-et, hogy csak akkor modositsuk, ha modosult */
 				int initialcontenthash = content==null?0:content.hashCode();
@@ -473,11 +470,10 @@ public class ContextCompress extends AbstractService {
 		
 		/* Adjuk hozza a tartalmat */
 		if (this.resBody!=null && this.resBody.size()>0) {
-			bas.write((Integer.toHexString(this.resBody.size())+CRLF).getBytes());
-			this.resBody.writeTo(bas);
-			bas.write(CRLF.getBytes());
+			writeBody(bas, this.resBody);
+		} else {
+			bas.write(ENDCHUNK);
 		}
-		bas.write(ENDCHUNK);
 
 		/* Minden kesz, 200-as kod */
 		return 200;
@@ -496,12 +492,11 @@ public class ContextCompress extends AbstractService {
 		sb.append("Encapsulated: res-hdr=0, res-body=").append(this.resHeader.length()).append(CRLF); 
 		sb.append(CRLF).append(this.resHeader);
 		bas.write(sb.toString().getBytes());
-		if (this.resBody!=null) {
-			bas.write((Integer.toHexString(this.resBody.size())+CRLF).getBytes());
-			this.resBody.writeTo(bas);
-			bas.write(CRLF.getBytes());
+		if (this.resBody!=null && this.resBody.size()>0) {
+			writeBody(bas, this.resBody);
+		} else {
+			bas.write(ENDCHUNK);
 		}
-		bas.write(ENDCHUNK);
 		return 200;
 	}
 	
@@ -514,34 +509,22 @@ public class ContextCompress extends AbstractService {
 	private void updateHttpHeader(String header, String value, boolean add) {
 		String normalheader = header;
 		header = header.toLowerCase();
+		HttpHeader httpheader;
 		switch (this.type){
 		case REQMOD:
-			if (this.httpReqHeaders.containsKey(header)){
-				int pos1 = this.reqHeader.toString().toLowerCase().indexOf(header) + header.length() + 1;
-				int pos2 = this.reqHeader.indexOf("\r\n", pos1);
-				if (add) {
-					this.reqHeader = this.reqHeader.replace(pos2,pos2, "," + value + "");				
-				} else {
-					this.reqHeader = this.reqHeader.replace(pos1,pos2, " " + value + "");
-				}
-			} else {
-				this.reqHeader.insert(this.reqHeader.length()-2, normalheader+": " + value + "\r\n");
-			}
+			httpheader = this.reqHeader;
 			break;
 		case RESPMOD:
-			if (this.httpRespHeaders.containsKey(header)) {
-				int pos1 = this.resHeader.toString().toLowerCase().indexOf(header) + header.length() + 1;
-				int pos2 = this.resHeader.indexOf("\r\n", pos1);
-				if (add) {
-					this.resHeader = this.resHeader.replace(pos2,pos2, ","+value+"");					
-				} else {
-					this.resHeader = this.resHeader.replace(pos1,pos2, " "+value+"");					
-				}
-			} else {
-				this.resHeader.insert(this.resHeader.length()-2, normalheader+": " + value+ "\r\n");
-			}
+			httpheader = this.resHeader;
 			break;
 		default:
+			return;
+		}
+		int field = httpheader.find(header);
+		if (field!=-1 && add) {
+			httpheader.insert(httpheader.getValueEnd(field), "," + value);
+		} else {
+			httpheader.set(normalheader, value);
 		}
 	}
 
@@ -31,17 +31,26 @@ package icap.services;
 //Import
 import icap.IcapServer;
 import icap.core.*;
+import icap.services.resources.gs.ScriptRegistry;
+import icap.services.resources.gs.ScriptRunnerPool;
 import icap.services.resources.gs.SpoonScript;
 import icap.services.resources.gs.SpoonScriptException;
+import icap.services.resources.gs.ScriptChain;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.nio.file.FileSystems;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import javax.script.ScriptEngineFactory;
 import javax.script.ScriptEngineManager;
 import tools.logger.Log;
 import tools.general.ClassPathLoader;
 import tools.general.MimeMagic;
-import tools.general.ExtendedByteArrayOutputStream;
+import tools.general.SegmentedBuffer;
 ///////////////////////////////////
 
 /**
@@ -62,6 +71,17 @@ public class GreasySpoon extends AbstractService {
 	//------------------------------------------------------
 	StringBuilder logstr = new StringBuilder();
 
+	/** Body read on demand for scripts using lazy body access (null until read), its content type and encoding*/
+	private String lazyContent, lazyContentType, lazyEncoding;
+	/**charset of body text provided to scripts (null for platform charset)*/
+	private String bodyCharset;
+	/** Set if body read on demand was available*/
+	private boolean lazyBodyAvailable;
+	/**set once body has been retrieved (and uncompressed) for lazy body scripts*/
+	private boolean lazyLoaded;
+	/**modifications count of HTTP header sent back to client, before scripts (see markHeader())*/
+	private int headerMark;
+
 	/** Set if MIME magic must be used to control server responses MIME types */
 	private static boolean mimemagiccheck = false;
 	private static boolean trustServiceMimeTypePerDefault = true;
@@ -129,10 +149,12 @@ public class GreasySpoon extends AbstractService {
 		return compressibleContentTypes;
 	}
 
-	/** GreasySpoon REQUEST scripts managed by the GreasySpoon service */
-	public static SpoonScript[] reqSpoonScripts = new SpoonScript[0];
-	/** GreasySpoon RESPONSE scripts managed by the GreasySpoon service */
-	public static SpoonScript[] respSpoonScripts = new SpoonScript[0];
+	/** GreasySpoon REQUEST scripts managed by the GreasySpoon service (read only, see publish()) */
+	public static volatile SpoonScript[] reqSpoonScripts = new SpoonScript[0];
+	/** GreasySpoon RESPONSE scripts managed by the GreasySpoon service (read only, see publish()) */
+	public static volatile SpoonScript[] respSpoonScripts = new SpoonScript[0];
+	/** Current scripts generation used by service threads (replaced as a whole on reload)*/
+	private static volatile ScriptRegistry registry = ScriptRegistry.EMPTY;
 
 	/**Threaded timer used to monitor scripts directory and call reload method in case of changes*/
 	//static Timer timer = new Timer();
@@ -228,6 +250,7 @@ public class GreasySpoon extends AbstractService {
 		SpoonScript.setScriptMaxTimeout(Integer.parseInt(this.server.serviceconfig.getProperty("maxtimeout", ""+SpoonScript.getScriptMaxTimeout())));
 		SpoonScript.setErrorThreshold(Integer.parseInt(this.server.serviceconfig.getProperty("errorthreshold", "0")));
 		bypassOnError = Boolean.parseBoolean(this.server.serviceconfig.getProperty("bypassonerror", "true"));
+		ScriptRunnerPool.configure(Integer.parseInt(this.server.serviceconfig.getProperty("scriptrunners", ""+ScriptRunnerPool.DEFAULTRUNNERS).trim()));
 		SpoonScript.path = libsPath;
 		forceReload();
 		return true;
@@ -256,15 +279,17 @@ public class GreasySpoon extends AbstractService {
 				tmprespvector.add(sps);
 			}
 		}
-		reqSpoonScripts = orderScripts(tmpreqvector);
-		respSpoonScripts = orderScripts(tmprespvector);
+		publish(orderScripts(tmpreqvector), orderScripts(tmprespvector));
 		initialized = true;
 		_reload_pending = false;
 	}
 	//<------------------------------------------------------------------------->
 
 	/**
-	 * Scripts reloading => Parse script directory and update modified/new scripts
+	 * Scripts reloading => Parse script directory and update modified/new scripts.<br>
+	 * Modified scripts are loaded as new SpoonScript objects, and published with
+	 * unmodified ones as a new scripts generation: service threads keep using
+	 * previous generation until the new one is complete.
 	 */
 	public static synchronized void reload(){
 		if (_reload_pending) return;
@@ -283,8 +308,14 @@ public class GreasySpoon extends AbstractService {
 				tmprespvector.add(sps);
 			}
 		}
-		reqSpoonScripts = orderScripts(tmpreqvector);
-		respSpoonScripts = orderScripts(tmprespvector);
+		SpoonScript[] newreqscripts = orderScripts(tmpreqvector);
+		SpoonScript[] newrespscripts = orderScripts(tmprespvector);
+		boolean updated = !Arrays.equals(newreqscripts, reqSpoonScripts) || !Arrays.equals(newrespscripts, respSpoonScripts);
+		if (updated) {
+			publish(newreqscripts, newrespscripts);
+			//scripts changed: change ISTag so that ICAP clients do not reuse previous responses
+			IcapServer.serviceUpdated(GreasySpoon.class);
+		}
 		initialized = true;
 		_reload_pending = false;
 	}
@@ -337,12 +368,24 @@ public class GreasySpoon extends AbstractService {
 		for (SpoonScript sps:GreasySpoon.reqSpoonScripts){
 			tmpreqvector.add(sps);
 		}
-		reqSpoonScripts = orderScripts(tmpreqvector);
-
 		for (SpoonScript sps:GreasySpoon.respSpoonScripts){
 			tmprespvector.add(sps);
 		}
-		respSpoonScripts = orderScripts(tmprespvector);
+		publish(orderScripts(tmpreqvector), orderScripts(tmprespvector));
+	}
+	//<------------------------------------------------------------------------->
+
+	//<------------------------------------------------------------------------->
+	/**
+	 * Publish a new scripts generation: scripts lists are indexed, then made
+	 * visible to service threads at once
+	 * @param newreqscripts REQMOD scripts, in application order
+	 * @param newrespscripts RESPMOD scripts, in application order
+	 */
+	public static synchronized void publish(SpoonScript[] newreqscripts, SpoonScript[] newrespscripts){
+		registry = new ScriptRegistry(newreqscripts, newrespscripts);
+		reqSpoonScripts = newreqscripts;
+		respSpoonScripts = newrespscripts;
 	}
 	//<------------------------------------------------------------------------->
 
@@ -362,7 +405,9 @@ public class GreasySpoon extends AbstractService {
 	//<------------------------------------------------------------------------->
 	/**
 	 * Simple thread that check script directory and update it if changes are
-	 * detected. 
+	 * detected.<br>
+	 * Changes are notified by file system (WatchService). If notifications are not
+	 * available, directory is checked every second.
 	 */
 	public static class CleanerThread extends Thread{
 
@@ -379,16 +424,34 @@ public class GreasySpoon extends AbstractService {
 		 */
 		@SuppressWarnings("static-access") 
 		public void run(){
+			_timer_initialized = true;
+			WatchService watcher = null;
+			try {
+				watcher = FileSystems.getDefault().newWatchService();
+				Paths.get(getApplicationPath()+scriptsDirectory).register(watcher, 
+						StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+			} catch (Exception e){
+				Log.error(Log.WARNING, "GreasySpoon script watcher: file system notifications not available, using polling", e);
+				watcher = null;
+			}
 			try{
-				File f_directory = new File(getApplicationPath()+scriptsDirectory);
-				_timer_initialized = true;
 				while (_timer_initialized){
 					try{
-						//Don't use refreshScripts() method because of lock issues
-						if (scriptslistdate != f_directory.lastModified()){
+						if (watcher == null){
+							//reload() only publishes scripts if some have changed
 							reload();
+							this.sleep(1000);
+							continue;
 						}
-						this.sleep(1000);
+						WatchKey key = watcher.poll(1, TimeUnit.SECONDS);
+						if (key == null) continue;
+						//a file save often generates several events: wait for the last one, then reload once
+						while (key != null){
+							key.pollEvents();
+							key.reset();
+							key = watcher.poll(200, TimeUnit.MILLISECONDS);
+						}
+						reload();
 					} catch (InterruptedException e){
 						//on interruption, just continue
 					}
@@ -396,6 +459,11 @@ public class GreasySpoon extends AbstractService {
 			}catch (Exception e1){
 				Log.error(Log.WARNING, "GreasySpoon script watcher interruption", e1);
 			}
+			try {
+				if (watcher != null) watcher.close();
+			} catch (IOException e){
+				//ignore
+			}
 			_timer_initialized = false;
 		}
 	} 
@@ -519,7 +587,7 @@ public class GreasySpoon extends AbstractService {
 	 * @return	ICAP response code
 	 * @throws Exception 
 	 */
-	public synchronized int getRespModResponse(ByteArrayOutputStream bas) throws Exception {
+	public int getRespModResponse(ByteArrayOutputStream bas) throws Exception {
 
 		String contenttype = this.getRespHeader("content-type"); 
 		if (contenttype!=null) {
@@ -547,14 +615,7 @@ public class GreasySpoon extends AbstractService {
 
 		//----------------------------------------------------------
 		// Check if there are applicable scripts
-		Vector<SpoonScript> scriptsToApply = new Vector<SpoonScript>();
-		for (SpoonScript sps:respSpoonScripts){
-			if (sps.mode != this.type) continue;
-			//if (sps.getStatus() && sps.isApplicable(this.getAbsolutePath().toLowerCase(),this.rescode)) {
-			if (sps.getStatus() && sps.isApplicable(this.getReqUrl().toLowerCase(),this.rescode)) {
-				scriptsToApply.add(sps);
-			}
-		}
+		Vector<SpoonScript> scriptsToApply = registry.getRespmodScripts(this.getReqUrl().toLowerCase(), this.rescode);
 		// In case no script is applicable, return a 204 (abort response processing)  
 		if (scriptsToApply.size()==0) {
 			if (Log.isEnable()) logstr.append(" [no matching scripts]");
@@ -581,80 +642,107 @@ public class GreasySpoon extends AbstractService {
 		//----------------------------------------------------------
 
 		//----------------------------------------------------------
-		//If here, there are actions to perform
-		//Retrieve the body
-		this.getAllBody();
-		//----------------------------------------------------------
-
-		boolean bodyavailable = true;
-		if (resBody==null) bodyavailable = false;
-		//----------------------------------------------------------
-		// Deflate the body if gzipped
-		boolean initiallyGzipped = isCompressed();
-		if (bodyavailable){
-			if ( initiallyGzipped ) resBody = uncompress(resBody);
+		// Scripts with a preview callback (@preview): drop the ones not interested in response,
+		// and answer within preview if none is left
+		scriptsToApply = previewScripts(scriptsToApply, contenttype);
+		if (scriptsToApply.size()==0) {
+			if (Log.isEnable()) logstr.append(" [preview: no interested scripts]");
+			return earlyResponse(bas);
 		}
 		//----------------------------------------------------------
 
 		//----------------------------------------------------------
-		//Double MIME type check using MIME Magic
-		if (mimemagic==null && mimemagiccheck && bodyavailable && (resBody.size()>100 || !resBody.toString().trim().equals("")) ){
-			mimemagic = MimeMagic.detectMime(contenttype, this.req_url_path, this.resBody,trustServiceMimeTypePerDefault);
-			//Check supported content types => skip srv and return 204
-			if (!contenttype.startsWith(mimemagic)){
-				/* Uncomment next lines if you want to update provided MIME type with magic */
-				/*
-				String charset = MimeMagic.getEncodingFromContentType(contenttype);
-				contenttype = mimemagic;
-				if (charset!=null) contenttype+="; charset="+charset;
-				this.updateContentType(contenttype);
-				*/
-				if (!isMimeTypeSupported(mimemagic, supportedContentTypes)){ //send unmodified response in 200
-					if (Log.isEnable()) logstr.append(" [mimemagic<>").append(mimemagic).append("][unsupported mime-type]");
-					if (initiallyGzipped) this.resBody = compress(this.resBody);
-					return earlyResponse(bas);
+		// Scripts not using the body (@body none or lazy): run them before retrieving the body,
+		// which is only read, uncompressed and decoded if a script asks for it
+		boolean bodyavailable = true;
+		boolean initiallyGzipped = isCompressed();
+		String content, encoding;
+		ScriptChain chain;
+		if (SpoonScript.getBodyMode(scriptsToApply) != SpoonScript.BODY_FULL){
+			startLazyBody(contenttype);
+			markHeader();
+			chain = new ScriptChain(this, this.getReqUrl(), null);
+			content = applyScripts(logstr, chain, null, scriptsToApply);
+			if (!this.lazyLoaded) {
+				if (!chain.isBodyModified()) return headersResponse(bas, chain);
+				//body replaced by scripts without reading it: original body is only retrieved (not decoded)
+				this.getAllBody();
+			}
+			if (Log.isEnable()) logstr.append(" [lazy body]");
+			encoding = this.lazyEncoding;
+		} else {
+			//----------------------------------------------------------
+			//If here, there are actions to perform
+			//Retrieve the body
+			this.getAllBody();
+			//----------------------------------------------------------
+
+			if (resBody==null) bodyavailable = false;
+			//----------------------------------------------------------
+			// Deflate the body if gzipped
+			if (bodyavailable){
+				if ( initiallyGzipped ) resBody = uncompress(resBody);
+			}
+			//----------------------------------------------------------
+
+			//----------------------------------------------------------
+			//Double MIME type check using MIME Magic
+			if (mimemagic==null && mimemagiccheck && bodyavailable && (resBody.size()>100 || !resBody.toString().trim().equals("")) ){
+				mimemagic = MimeMagic.detectMime(contenttype, this.req_url_path, this.resBody,trustServiceMimeTypePerDefault);
+				//Check supported content types => skip srv and return 204
+				if (!contenttype.startsWith(mimemagic)){
+					/* Uncomment next lines if you want to update provided MIME type with magic */
+					/*
+					String charset = MimeMagic.getEncodingFromContentType(contenttype);
+					contenttype = mimemagic;
+					if (charset!=null) contenttype+="; charset="+charset;
+					this.updateContentType(contenttype);
+					*/
+					if (!isMimeTypeSupported(mimemagic, supportedContentTypes)){ //send unmodified response in 200
+						if (Log.isEnable()) logstr.append(" [mimemagic<>").append(mimemagic).append("][unsupported mime-type]");
+						if (initiallyGzipped) this.resBody = compress(this.resBody);
+						return earlyResponse(bas);
+					}
 				}
 			}
-		}
-		//----------------------------------------------------------
-
-		//----------------------------------------------------------
-		// GreasySpoon scripts must be inserted => lets do it
-		String content, encoding;
+			//----------------------------------------------------------
+
+			//----------------------------------------------------------
+			// GreasySpoon scripts must be inserted => lets do it
+			try{//detect encoding for current content
+				encoding = this.getEncoding(contenttype);
+				this.bodyCharset = encoding;
+				if (Log.isEnable()) logstr.append(" [encoding/").append(encoding).append("]");
+				//Parse content as String with good(?) encoding
+				content = bodyavailable?this.resBody.toString(encoding):("");
+			} catch (Exception e){
+				if (Log.isEnable()) logstr.append(" [unknown encoding]");
+				if (initiallyGzipped) this.resBody = compress(this.resBody);
+				return fullResponse(bas);
+			}
 
-		try{//detect encoding for current content
-			encoding = this.getEncoding(contenttype);
-			if (Log.isEnable()) logstr.append(" [encoding/").append(encoding).append("]");
-			//Parse content as String with good(?) encoding
-			content = bodyavailable?(new String (this.resBody.toByteArray(),encoding)):("");
-		} catch (Exception e){
-			if (Log.isEnable()) logstr.append(" [unknown encoding]");
-			if (initiallyGzipped) this.resBody = compress(this.resBody);
-			return fullResponse(bas);
+			//scripts chain records body modifications
+			markHeader();
+			chain = new ScriptChain(this, this.getReqUrl(), content);
+			content = applyScripts(logstr, chain, content, scriptsToApply);
 		}
-
-		//computes hash for content in order to detect modifications
-		int intitialcontenthash = content==null?0:content.hashCode();
-		content = applyScripts(logstr, this, content, this.getReqUrl(), scriptsToApply);
 		//----------------------------------------------------------
 
 		//----------------------------------------------------------
 		// check if content has been modified - if yes, update it 
-		if (intitialcontenthash != (content==null?0:content.hashCode())){
+		if (chain.isBodyModified()){
 			if (!bodyavailable && content!=null && content.length()!=0) {
 				bodyavailable = true;
-				this.resBody = new ExtendedByteArrayOutputStream();
+				this.resBody = new SegmentedBuffer();
 			}
 
 			if (bodyavailable && content!=null) {
-				this.resBody.reset();//clear old body
+				this.resBody = rewriteBody();//clear old body (kept for partial response if supported)
 
 				try{//detect encoding for output content
-					String ct = this.getResponseHeaders().toLowerCase(); 
-					int pos1 =  ct.indexOf("content-type: ");
-					if (pos1!=-1) {
-						pos1+="content-type: ".length();
-						ct = ct.substring(pos1, ct.indexOf("\r\n",pos1));
+					String ct = this.getRespHeader("content-type"); 
+					if (ct!=null) {
+						ct = ct.toLowerCase();
 					} else {
 						ct = contenttype;
 					}
@@ -673,6 +761,16 @@ public class GreasySpoon extends AbstractService {
 			}
 		} else { //reset content to free memory
 			content = null;
+			//unmodified transaction: client can use its own copy of the whole response
+			if (!isHeaderModified() && isNoContentAllowed() && (initiallyGzipped || !compressanytime)){
+				if (Log.isEnable()) logstr.append(" [unmodified]");
+				return earlyResponse(bas);
+			}
+			//unmodified body: if client supports 206, let it reuse its own copy (even if compressed)
+			if (bodyavailable && this.allow_206 && (initiallyGzipped || !compressanytime)){
+				useOriginalBody();
+				return fullResponse(bas);
+			}
 		}
 		//----------------------------------------------------------
 
@@ -711,16 +809,10 @@ public class GreasySpoon extends AbstractService {
 	 * @return	ICAP response code
 	 * @throws Exception 
 	 */
-	public synchronized int getReqmodResponse(ByteArrayOutputStream bas) throws Exception {
+	public int getReqmodResponse(ByteArrayOutputStream bas) throws Exception {
 		//----------------------------------------------------------
 		// Check if there is applicable scripts
-		Vector<SpoonScript> scriptsToApply = new Vector<SpoonScript>();
-		for (SpoonScript sps:reqSpoonScripts){
-			if (sps.mode != this.type) continue;
-			if (sps.getStatus() && sps.isApplicable(this.getReqUrl().toLowerCase())) {
-				scriptsToApply.add(sps);
-			}
-		}
+		Vector<SpoonScript> scriptsToApply = registry.getReqmodScripts(this.getReqUrl().toLowerCase());
 		// In case no script is applicable, return a 204 (abort response processing)  
 		if (scriptsToApply.size()==0) {
 			if (Log.isEnable()) logstr.append(" [no scripts to apply]");
@@ -730,8 +822,8 @@ public class GreasySpoon extends AbstractService {
 				//add ICAP host, then HTTP header at position zero (constant)
 				sb.append(server.icaphost).append("Encapsulated: ").append(this.i_encapsulated).append(CRLF); 
 				sb.append("Cache-Control: no-cache").append(CRLF).append(CRLF); 
-				sb.append(this.reqHeader);
 				bas.write(sb.toString().getBytes());
+				this.reqHeader.writeTo(bas);
 				return 200;
 			}
 			// For ICAP clients supporting 204 in REQMOD, return 204
@@ -740,47 +832,85 @@ public class GreasySpoon extends AbstractService {
 		//----------------------------------------------------------
 
 		//----------------------------------------------------------
-		//If here, there are actions to perform
-		//Retrieve the body
-		boolean containsBody = false;
-		if (i_req_body>0){
-			containsBody = this.getAllBody();
+		// Scripts with a preview callback (@preview): drop the ones not interested in request,
+		// and answer within preview if none is left (204 not supported by netcache)
+		if (this.brand!=ClientBrand.NETAPP) scriptsToApply = previewScripts(scriptsToApply, null);
+		if (scriptsToApply.size()==0) {
+			if (Log.isEnable()) logstr.append(" [preview: no interested scripts]");
+			return earlyResponse(bas);
 		}
 		//----------------------------------------------------------
 
 		//----------------------------------------------------------
-		// Deflate the body if compressed
+		//If here, there are actions to perform
+		boolean containsBody = false;
 		boolean initiallyGzipped = isCompressed();
-		if (containsBody){ 
-			if (initiallyGzipped) reqBody = uncompress(reqBody);
-		}
-		//----------------------------------------------------------
-
-		//----------------------------------------------------------
-		// GreasySpoon scripts must be inserted => lets do it
-		//----------------------------------------------------------
 		String content=null;
-		if (containsBody) {
-			content = reqBody.toString();
-		}
+		ScriptChain chain;
+		if (SpoonScript.getBodyMode(scriptsToApply) != SpoonScript.BODY_FULL){
+			//Scripts not using the body (@body none or lazy): run them before retrieving the body
+			startLazyBody(null);
+			markHeader();
+			chain = new ScriptChain(this, this.getReqUrl(), null);
+			content = applyScripts(logstr, chain, null, scriptsToApply);
+			containsBody = this.lazyBodyAvailable;
+			if (chain.isBodyModified()) {
+				//body replaced by scripts without reading it: original body is only retrieved
+				if (!this.lazyLoaded && i_req_body>0) containsBody = this.getAllBody();
+			} else if (reqHeader.subSequence(0, 5).equals("HTTP/")) {
+				content = getLazyBody();//request turned into response: body is needed
+				containsBody = this.lazyBodyAvailable;
+			} else if (!this.lazyLoaded) {
+				return headersResponse(bas, chain);
+			}
+		} else {
+			//Retrieve the body
+			if (i_req_body>0){
+				containsBody = this.getAllBody();
+			}
+			//----------------------------------------------------------
+
+			//----------------------------------------------------------
+			// Deflate the body if compressed
+			if (containsBody){ 
+				if (initiallyGzipped) reqBody = uncompress(reqBody);
+			}
+			//----------------------------------------------------------
 
-		//store initial content hash 
-		int intitialcontenthash = content==null?0:content.hashCode();
-		content = applyScripts(logstr, this, content, this.getReqUrl(), scriptsToApply);
+			//----------------------------------------------------------
+			// GreasySpoon scripts must be inserted => lets do it
+			//----------------------------------------------------------
+			if (containsBody) {
+				content = reqBody.toString();
+			}
+			this.bodyCharset = null;
+
+			//scripts chain records body modifications
+			markHeader();
+			chain = new ScriptChain(this, this.getReqUrl(), content);
+			content = applyScripts(logstr, chain, content, scriptsToApply);
+		}
 
 
 		//----------------------------------------------------------
 		// Update request body only if it has been modified by scripts
 		// Avoid unnecessary manipulation, and also possible encoding issues
 		//----------------------------------------------------------
-		if (intitialcontenthash != (content==null?0:content.hashCode()) ){ // content has been changed by scripts
+		if (chain.isBodyModified()){ // content has been changed by scripts
 			if (content!=null && content.length()==0) content = null;
-			reqBody.reset();//clear old body
+			reqBody = rewriteBody();//clear old body (kept for partial response if supported)
 
 			if (content!=null) {
-				if (reqBody==null) reqBody=new ExtendedByteArrayOutputStream();
 				reqBody.write(content.getBytes());	
 			}
+		} else if (!isHeaderModified() && isNoContentAllowed() && this.brand!=ClientBrand.NETAPP){
+			//unmodified transaction: client can use its own copy of the whole request
+			if (Log.isEnable()) logstr.append(" [unmodified]");
+			return earlyResponse(bas);
+		} else if (containsBody && this.allow_206 && !reqHeader.subSequence(0, 5).equals("HTTP/")){
+			//unmodified body: client can reuse its own copy (even if compressed)
+			useOriginalBody();
+			return fullResponse(bas);
 		}
 		//----------------------------------------------------------
 
@@ -792,7 +922,7 @@ public class GreasySpoon extends AbstractService {
 		//----------------------------------------------------------
 
 		//Update length header with the new content length
-		updateContentLength(content==null?0:reqBody.size());
+		updateContentLength(reqBody==null?0:reqBody.size());
 
 
 		if (!reqHeader.subSequence(0, 5).equals("HTTP/")){
@@ -800,37 +930,13 @@ public class GreasySpoon extends AbstractService {
 		}
 
 		//HTTP Request has been changed into HTTP Response (starts with HTTP/xxx instead of GET/POST/....)
-		// Let's create ICAP response
-		StringBuilder sb = new StringBuilder();
-		sb.append("ICAP/1.0 200 OK\r\n").append(server.getISTAG()).append(CRLF);//.append("Server: ICAP-Server-Software/1.0\r\n"); 
-		sb.append(server.icaphost).append("Encapsulated: res-hdr=0"); 
-		if (reqBody!=null && reqBody.size()>0){
-			sb.append(", res-body="); //If body available, set tag req-body 
-		} else {
-			sb.append(", null-body="); //else null-body 
-		}
-		sb.append(reqHeader.length()).append(CRLF);
-		//Set if connection is persistent
-		if (server.useKeepAliveConnections()) {
-			sb.append(HEAD_CONNECTION_KEEPALIVE);
-		} else {
-			sb.append(HEAD_CONNECTION_CLOSED);
-			this.closeConnection();
-		}
-		//End of ICAP header
-		sb.append(CRLF);
-
-		//Add the complete HTTP header 
-		sb.append(reqHeader);
-
-		bas.write(sb.toString().getBytes());
+		// Let's create ICAP response, followed by the complete HTTP header
+		//If body available, set tag res-body, else null-body
+		writeIcapHeader(bas, server.getTemplates().ok, (reqBody!=null && reqBody.size()>0)?ResponseTemplates.RES_BODY:ResponseTemplates.RES_NULLBODY, reqHeader);
 
 		//If a body is available, add it using chunk
 		if (reqBody!=null && reqBody.size()>0) {
-			bas.write((Integer.toHexString(reqBody.size())+CRLF).getBytes());
-			reqBody.writeTo(bas);
-			bas.write(CRLF_b);
-			bas.write(ENDCHUNK);
+			writeBody(bas, reqBody);
 		}
 		//All done => return response
 		return 200;
@@ -840,26 +946,159 @@ public class GreasySpoon extends AbstractService {
 
 
 
+	//	<------------------------------------------------------------------------->
+	/**
+	 * Prepare current message body to be read on demand by scripts (see getLazyBody())
+	 * @param contenttype HTTP response content type (null in REQMOD)
+	 */
+	private void startLazyBody(String contenttype){
+		this.lazyContent = null;
+		this.lazyContentType = contenttype;
+		this.lazyEncoding = null;
+		this.lazyBodyAvailable = false;
+		this.lazyLoaded = false;
+		this.bodyCharset = null;
+	}
+
+	/**
+	 * @see icap.core.AbstractService#getBodyCharset()
+	 */
+	public String getBodyCharset(){
+		return this.bodyCharset;
+	}
+
+	/**
+	 * Retrieve and uncompress message body for scripts using lazy body access, without decoding it.
+	 * Body is proceeded on first call only.
+	 * @see icap.core.AbstractService#loadLazyBody()
+	 */
+	public boolean loadLazyBody() throws Exception {
+		if (this.lazyLoaded) return true;
+		if (this.type == TYPE.REQMOD){
+			if (i_req_body>0) this.lazyBodyAvailable = this.getAllBody();
+			if (this.lazyBodyAvailable && isCompressed()) reqBody = uncompress(reqBody);
+		} else {
+			this.getAllBody();
+			this.lazyBodyAvailable = resBody!=null;
+			if (this.lazyBodyAvailable && isCompressed()) resBody = uncompress(resBody);
+			this.lazyEncoding = this.getEncoding(this.lazyContentType);
+			this.bodyCharset = this.lazyEncoding;
+			if (Log.isEnable()) logstr.append(" [encoding/").append(this.lazyEncoding).append("]");
+		}
+		this.lazyLoaded = true;
+		return true;
+	}
+
+	/**
+	 * Retrieve, uncompress and decode message body for scripts using lazy body access.
+	 * Body is proceeded on first call only.
+	 * @see icap.core.AbstractService#getLazyBody()
+	 */
+	public String getLazyBody() throws Exception {
+		if (this.lazyContent != null) return this.lazyContent;
+		loadLazyBody();
+		if (this.type == TYPE.REQMOD){
+			this.lazyContent = this.lazyBodyAvailable?reqBody.toString():"";
+		} else {
+			this.lazyContent = this.lazyBodyAvailable?this.resBody.toString(this.lazyEncoding):"";
+		}
+		return this.lazyContent;
+	}
+
+	/**
+	 * Return a response where only HTTP headers may have been modified by scripts, without
+	 * processing the body. If ICAP client supports it, body is not sent back (ICAP 206), and
+	 * when still in preview, it is not even retrieved.<br>
+	 * Client copy of the body (ICAP 204 or 206) is only reused if scripts have not replaced body.
+	 * @param bas Byte stream containing ICAP response
+	 * @param chain the scripts chain applied to message
+	 * @return ICAP response code
+	 * @throws Exception
+	 */
+	private int headersResponse(ByteArrayOutputStream bas, ScriptChain chain) throws Exception {
+		boolean bodyModified = chain.isBodyModified();
+		if (!bodyModified && !isHeaderModified() && isNoContentAllowed() && (this.type!=TYPE.REQMOD || this.brand!=ClientBrand.NETAPP)){
+			if (Log.isEnable()) logstr.append(" [unmodified]");
+			return earlyResponse(bas);
+		}
+		if (Log.isEnable()) logstr.append(" [headers only]");
+		if (!this.allow_206 || this.preview == -1 || bodyModified) this.getAllBody();
+		if (!bodyModified) useOriginalBody();
+		return fullResponse(bas);
+	}
+
+	/**
+	 * Preview phase: while ICAP client is still in preview, ask scripts declaring a preview
+	 * callback if they are interested in current message, from its headers and body preview.
+	 * Preview body is decoded as full body would be (not provided if compressed).
+	 * @param scripts scripts applicable to message
+	 * @param contenttype HTTP response content type (null in REQMOD)
+	 * @return scripts interested in message (given list if preview phase does not apply)
+	 */
+	private Vector<SpoonScript> previewScripts(Vector<SpoonScript> scripts, String contenttype){
+		if (!this.isInPreview() || !SpoonScript.usesPreview(scripts)) return scripts;
+		SegmentedBuffer preview = this.type == TYPE.REQMOD ? this.reqBody : this.resBody;
+		String previewText = null;
+		this.bodyCharset = null;
+		if (preview != null && !isCompressed()){
+			try {
+				if (this.type == TYPE.RESPMOD) this.bodyCharset = this.getEncoding(contenttype);
+				previewText = this.bodyCharset == null ? preview.toString() : preview.toString(this.bodyCharset);
+			} catch (Exception e){
+				//unknown encoding: no body preview
+				this.bodyCharset = null;
+			}
+		}
+		ScriptChain chain = new ScriptChain(this, this.getReqUrl(), previewText);
+		Vector<SpoonScript> interested = new Vector<SpoonScript>(scripts.size());
+		for (SpoonScript sps:scripts){
+			if (sps.wants(chain)) {
+				interested.add(sps);
+			} else if (Log.isEnable()) {
+				logstr.append(" [").append(sps.getScriptName()).append(":skip]");
+			}
+		}
+		return interested;
+	}
+
+	/**
+	 * Record modifications count of HTTP header sent back to client (request header in REQMOD,
+	 * response header in RESPMOD), before applying scripts
+	 */
+	private void markHeader(){
+		this.headerMark = (this.type == TYPE.REQMOD ? this.reqHeader : this.resHeader).getModifications();
+	}
+
+	/**
+	 * @return true if HTTP header sent back to client has been modified since markHeader()
+	 */
+	private boolean isHeaderModified(){
+		return (this.type == TYPE.REQMOD ? this.reqHeader : this.resHeader).getModifications() != this.headerMark;
+	}
+	//	<------------------------------------------------------------------------->
+
 	//	<------------------------------------------------------------------------->
 	/**
 	 * Call scripts to apply on given content/context
 	 * @param logstr			Log string that will be enriched by called services
-	 * @param serverThread		The service thread handling the ICAP request
+	 * @param chain				The scripts chain context (service thread handling the ICAP request, URL), 
+	 * 							recording whether scripts have modified the content
 	 * @param originalContent	The original content of the request/response (request in REQMOD, response in RESPMOD) 
-	 * @param url				The complete requested URL (http://fqdn/path?parameters)
 	 * @param scriptsToApply	The list of scripts to call on the provided request/response
 	 * @return					The request/response content potentially modified by script(s)
 	 * @throws Exception		In case of script error without Error bypass activated
 	 */
-	public static String applyScripts(StringBuilder logstr, AbstractService serverThread, String originalContent, String url, Vector<SpoonScript> scriptsToApply) throws Exception{
+	public static String applyScripts(StringBuilder logstr, ScriptChain chain, String originalContent, Vector<SpoonScript> scriptsToApply) throws Exception{
 		if (scriptsToApply.size()==0) return originalContent;
-		String newcontent = originalContent==null ? null: new String (originalContent);
+		//strings are immutable: no copy needed, modifications are recorded by chain
+		String newcontent = originalContent;
+		String url = chain.getUrl();
 		long timing;
 		boolean error = false;
 		for (SpoonScript sps:scriptsToApply){
 			timing = System.nanoTime();
 			try {
-				newcontent = sps.apply(serverThread, newcontent, url);
+				newcontent = sps.apply(chain, newcontent);
 			} catch (SpoonScriptException e) {
 				error = true;
 			}
@@ -28,9 +28,17 @@ package icap.services.resources.gs;
 
 ////////////////////////////
 //Import
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.util.concurrent.ConcurrentHashMap;
 import icap.core.*;
 import tools.general.Compressor;
+import tools.general.SegmentedBuffer;
 import org.json.*;
 ////////////////////////////
 
@@ -43,13 +51,38 @@ import org.json.*;
 public class HttpMessage {
 	
 	private icap.core.Icap.TYPE type;
-	private StringBuilder requestHeaders;
+	/**HTTP request header, shared with ICAP service*/
+	private HttpHeader requestHeaders;
 	protected String requestBody;
-	private StringBuilder responseHeaders;
+	/**HTTP response header, shared with ICAP service*/
+	private HttpHeader responseHeaders;
 	protected String responseBody;
 	private String username;
 	private String usergroup;
 	private AbstractService service;
+	/**set if body has not been provided yet and must be retrieved from service on first access (lazy body scripts)*/
+	boolean bodyPending = false;
+	/**set when body is replaced (setBody(), body sink, minify(), ...): service only encodes body back when set*/
+	boolean bodyModified = false;
+	/**body text decoded from service stored body: while body is this text, body views read stored bytes*/
+	String storedBody;
+	/**set when service stored body has been retrieved for a pending body, without building body text*/
+	private boolean storedLoaded = false;
+	/**text decoded from service stored body for a pending body, null until needed*/
+	private CharBuffer storedChars;
+	/**body bytes written by script through body sink, decoded into body text only when needed*/
+	private SegmentedBuffer replacement;
+	/**decoded text of replacement bytes, null until needed*/
+	private CharBuffer replacementChars;
+	/**set once views on replacement bytes have been given to script: storage must then outlive replacement*/
+	private boolean replacementViewed = false;
+
+	/**charset decoders, cached per thread (one per thread, for last used charset)*/
+	private final static ThreadLocal<CharsetDecoder[]> decoders = new ThreadLocal<CharsetDecoder[]>(){
+		protected CharsetDecoder[] initialValue(){
+			return new CharsetDecoder[1];
+		}
+	};
 	
 	ConcurrentHashMap<String, Object> sharedCache;
 	
@@ -69,10 +102,31 @@ public class HttpMessage {
 	public HttpMessage(AbstractService service, icap.core.Icap.TYPE type, String requestHeaders, String requestBody,
 			String responseHeaders, String responseBody, String username,
 			String usergroup, ConcurrentHashMap<String, Object> sharedCache) {
+		this(service, type, new HttpHeader(), requestBody, new HttpHeader(), responseBody, username, usergroup, sharedCache);
+		this.requestHeaders.setText(requestHeaders==null?"":requestHeaders);
+		this.responseHeaders.setText(responseHeaders==null?"":responseHeaders);
+	}
+
+	/**
+	 * Construct an HTTP message instance that will be processed by a Java native script.<br>
+	 * Headers are edited in place: modifications made by the script are directly visible to the ICAP service.
+	 * @param service ICAP service called
+	 * @param type ICAP message type (either REQ or RESP)
+	 * @param requestHeaders HTTP Request headers
+	 * @param requestBody HTTP Request body (for POST mainly)
+	 * @param responseHeaders HTTP Response headers
+	 * @param responseBody HTTP Response body (if any)
+	 * @param username User Name as extracted from ICAP or HTTP headers (see services.properties)
+	 * @param usergroup User Group as extracted from ICAP or HTTP headers (see services.properties)
+	 * @param sharedCache shared hash map used to store data to share between scripts
+	 */
+	public HttpMessage(AbstractService service, icap.core.Icap.TYPE type, HttpHeader requestHeaders, String requestBody,
+			HttpHeader responseHeaders, String responseBody, String username,
+			String usergroup, ConcurrentHashMap<String, Object> sharedCache) {
 		this.type = type;
-		this.requestHeaders = new StringBuilder(requestHeaders==null?"":requestHeaders);
+		this.requestHeaders = requestHeaders;
 		this.requestBody = requestBody;
-		this.responseHeaders = new StringBuilder(responseHeaders==null?"":responseHeaders);
+		this.responseHeaders = responseHeaders;
 		this.responseBody =  responseBody;
 		this.username = username;
 		this.usergroup = usergroup;
@@ -92,11 +146,11 @@ public class HttpMessage {
 	 * @param sharedCache shared hash map used to store data to share between scripts
 	 * @return HttpMessage
 	 */
-	public static HttpMessage newRequest(AbstractService service, String requestHeaders, String requestBody,
+	public static HttpMessage newRequest(AbstractService service, HttpHeader requestHeaders, String requestBody,
 			String username,
 			String usergroup, ConcurrentHashMap<String, Object> sharedCache) {
 		return new HttpMessage(service, icap.core.Icap.TYPE.REQMOD, requestHeaders, requestBody,
-				null, null, username,usergroup, sharedCache);
+				new HttpHeader(), null, username,usergroup, sharedCache);
 	}
 	
 	/**
@@ -110,8 +164,8 @@ public class HttpMessage {
 	 * @param sharedCache shared hash map used to store data to share between scripts
 	 * @return HttpMessage
 	 */
-	public static HttpMessage newResponse(AbstractService service, String requestHeaders,
-			String responseHeaders, String responseBody, String username,
+	public static HttpMessage newResponse(AbstractService service, HttpHeader requestHeaders,
+			HttpHeader responseHeaders, String responseBody, String username,
 			String usergroup, ConcurrentHashMap<String, Object> sharedCache) {
 		return new HttpMessage(service, icap.core.Icap.TYPE.RESPMOD, requestHeaders, null,
 				responseHeaders, responseBody, username,usergroup, sharedCache);
@@ -149,21 +203,21 @@ public class HttpMessage {
 	public ConcurrentHashMap<String, Object> getSharedCache() {return sharedCache;}
 
 	/**
-	 * @return the HTTP body underlying bytes
+	 * @return a copy of the HTTP body underlying bytes (see getBodyBuffers() for a view without copy)
 	 */
 	public byte[] getUnderlyingBytes(){
-		if (this.type == Icap.TYPE.REQMOD){
-			return this.service.getReqBody().toByteArray();
-		} else {
-			return this.service.getRespBody().toByteArray();
-		}
+		if (this.replacement != null) return this.replacement.toByteArray();
+		SegmentedBuffer stored = getStoredBytes();
+		if (stored != null) return stored.toByteArray();
+		return encodeBody();
 	}
 	/**
 	 * @return The requested URL
 	 */
 	public String getUrl(){
 		if (service!=null) return service.getReqUrl();
-		return this.requestHeaders.substring(this.requestHeaders.indexOf(" ")+1, this.requestHeaders.indexOf("HTTP/"));
+		String firstline = this.requestHeaders.getFirstLine();
+		return firstline.substring(firstline.indexOf(" ")+1, firstline.indexOf("HTTP/"));
 	}
 	
 	/**
@@ -172,7 +226,7 @@ public class HttpMessage {
 	 * @return request header value, or null if non existing
 	 */
 	public String getRequestHeader(String key){
-		return service!=null?service.getReqHeader(key.toLowerCase()):null;
+		return requestHeaders.get(key);
 	}
 	/**
 	 * Return HTTP response header value
@@ -180,7 +234,7 @@ public class HttpMessage {
 	 * @return response header value, or null if non existing
 	 */
 	public String getResponseHeader(String key){
-		return service!=null?service.getRespHeader(key.toLowerCase()):null;
+		return responseHeaders.get(key);
 	}
 
 //	<------------------------------------------------------------------------->  
@@ -194,13 +248,111 @@ public class HttpMessage {
 	 * @return HTTP Message body (either request or response body depending on the message type)
 	 */
 	public String getBody() {
-		if (this.type == Icap.TYPE.REQMOD){
-			return this.requestBody;
-		} else {
-			return this.responseBody;
+		if (this.bodyPending) {
+			this.bodyPending = false;
+			String body = null;
+			try {
+				body = this.service.getLazyBody();
+			} catch (Exception e){
+				throw new RuntimeException("Unable to retrieve HTTP body", e);
+			}
+			if (this.type == Icap.TYPE.REQMOD){
+				this.requestBody = body;
+			} else {
+				this.responseBody = body;
+			}
+			this.storedBody = body;
+		}
+		return getCurrentBody();
+	}
+ 
+	/**
+	 * @return current message body, without retrieving it if it has not been provided yet
+	 */
+	String getCurrentBody(){
+		if (this.replacement != null) {
+			String body = getBodyChars().toString();
+			dropReplacement();
+			if (this.type == Icap.TYPE.REQMOD){
+				this.requestBody = body;
+			} else {
+				this.responseBody = body;
+			}
+		}
+		return this.type == Icap.TYPE.REQMOD ? this.requestBody : this.responseBody;
+	}
+//	<------------------------------------------------------------------------->
+
+//	<------------------------------------------------------------------------->
+	/**
+	 * Read-only views of message body bytes (uncompressed), without copy as long as body has
+	 * not been replaced by a script.<br>
+	 * Views are only valid during current script execution, and must not be kept.
+	 * @return body bytes, as a sequence of buffers (empty array if message has no body)
+	 */
+	public ByteBuffer[] getBodyBuffers(){
+		if (this.replacement != null) {
+			this.replacementViewed = true;
+			return this.replacement.getByteBuffers();
+		}
+		SegmentedBuffer stored = getStoredBytes();
+		if (stored != null) return stored.getByteBuffers();
+		byte[] bytes = encodeBody();
+		return bytes.length == 0 ? new ByteBuffer[0] : new ByteBuffer[]{ByteBuffer.wrap(bytes).asReadOnlyBuffer()};
+	}
+
+	/**
+	 * Stream reading message body bytes (uncompressed), without copy as long as body has
+	 * not been replaced by a script.<br>
+	 * Stream is only valid during current script execution.
+	 * @return stream on body bytes
+	 */
+	public InputStream getBodyStream(){
+		if (this.replacement != null) {
+			this.replacementViewed = true;
+			return this.replacement.getInputStream();
+		}
+		SegmentedBuffer stored = getStoredBytes();
+		if (stored != null) return stored.getInputStream();
+		return new ByteArrayInputStream(encodeBody());
+	}
+
+	/**
+	 * Message body as text. Bytes are decoded on first call only, without building a String,
+	 * when body has been replaced through body sink, or when body has not been provided yet
+	 * (lazy body scripts). Otherwise, body text already built by service is returned.
+	 * @return body text (empty if message has no body)
+	 */
+	public CharSequence getBodyChars(){
+		if (this.replacement != null) {
+			if (this.replacementChars == null) this.replacementChars = decodeChars(this.replacement);
+			return this.replacementChars.asReadOnlyBuffer();
+		}
+		if (this.bodyPending) {
+			SegmentedBuffer stored = getStoredBytes();
+			if (this.bodyPending) {
+				if (this.storedChars == null) this.storedChars = decodeChars(stored);
+				return this.storedChars.asReadOnlyBuffer();
+			}
+		}
+		String body = getBody();
+		return body == null ? "" : body;
+	}
+
+	/**
+	 * @param bytes body bytes
+	 * @return text decoded with body charset
+	 */
+	private CharBuffer decodeChars(SegmentedBuffer bytes){
+		try {
+			return decode(bytes, getCharset());
+		} catch (IOException e){
+			//cannot happen on an in-memory stream
+			return CharBuffer.allocate(0);
 		}
 	}
 //	<------------------------------------------------------------------------->
+//	<------------------------------------------------------------------------->
 	
 
 	/*************************************************
@@ -215,9 +367,9 @@ public class HttpMessage {
 	 */
 	public void setHeaders(StringBuilder newHeader) {
 		if (this.type == Icap.TYPE.REQMOD){
-			this.requestHeaders = newHeader;
+			this.requestHeaders.setText(newHeader);
 		} else {
-			this.responseHeaders = newHeader;
+			this.responseHeaders.setText(newHeader);
 		}
 		
 	}
@@ -227,7 +379,11 @@ public class HttpMessage {
 	 * @param newHeader the new header to set
 	 */
 	public void setHeaders(String newHeader) {
-		setHeaders(new StringBuilder(newHeader));
+		if (this.type == Icap.TYPE.REQMOD){
+			this.requestHeaders.setText(newHeader);
+		} else {
+			this.responseHeaders.setText(newHeader);
+		}
 	}
 //	<------------------------------------------------------------------------->  
 
@@ -239,39 +395,25 @@ public class HttpMessage {
 	 * @param headerValue the header value to add
 	 */
 	public void addHeader(String headerName, String headerValue){
-		StringBuilder h;
 		if (this.type == Icap.TYPE.REQMOD){
-			h = this.requestHeaders;
-			if (service!=null) service.updateReqHeader(headerName.toLowerCase(),headerValue);
+			this.requestHeaders.add(headerName, headerValue);
 		} else {
-			 h = this.responseHeaders;
-			 if (service!=null) service.updateRespHeader(headerName.toLowerCase(),headerValue);
+			this.responseHeaders.add(headerName, headerValue);
 		}
-		h.append(headerName).append(": ").append(headerValue).append("\r\n");
 	}
 //	<------------------------------------------------------------------------->
 
 //	<------------------------------------------------------------------------->
 	/**
 	 * Delete given header in HTTP Message header
-	 * @param headerName the header to delete (case sensitive)
+	 * @param headerName the header to delete (case insensitive)
 	 */
 	public void deleteHeader(String headerName){
-		String lhtf = "\r\n"+headerName.toLowerCase();
-		String hlc;
-		StringBuilder h;
 		if (this.type == Icap.TYPE.REQMOD){
-			hlc = requestHeaders.toString().toLowerCase();
-			h = requestHeaders;
-			
+			this.requestHeaders.remove(headerName);
 		} else {
-			hlc = responseHeaders.toString().toLowerCase();
-			h = responseHeaders;
+			this.responseHeaders.remove(headerName);
 		}
-		int p1 = hlc.indexOf(lhtf);
-		if (p1==-1) return;
-		int p2 = hlc.indexOf("\r\n",p1+headerName.length());
-		h.delete(p1, p2);
 	}
 //	<------------------------------------------------------------------------->
 	
@@ -282,23 +424,11 @@ public class HttpMessage {
 	 * @param newValue
 	 */
 	public void rewriteHeader(String headerName, String newValue){
-		StringBuilder h;
 		if (this.type == Icap.TYPE.REQMOD){
-			h = this.requestHeaders;
-			if (service!=null) service.updateReqHeader(headerName.toLowerCase(),newValue);
-		} else {
-			 h = this.responseHeaders;
-			 if (service!=null) service.updateRespHeader(headerName.toLowerCase(),newValue);
-		}
-		int p1 = h.indexOf("\r\n"+headerName);
-		if (p1==-1){
-			h.append(headerName).append(": ").append(newValue).append("\r\n");
-			return;
+			this.requestHeaders.set(headerName, newValue);
 		} else {
-			p1+=headerName.length()+4; //skip previous \r\n and trailing ":_", so +4
+			this.responseHeaders.set(headerName, newValue);
 		}
-		int p2 = h.indexOf("\r\n",p1);
-		h.replace(p1, p2, newValue);
 	}
 //	<------------------------------------------------------------------------->
 	
@@ -311,8 +441,7 @@ public class HttpMessage {
 		try{
 		if (this.type != Icap.TYPE.REQMOD || service==null) return;
 
-		int p1 = requestHeaders.indexOf("\r\n");
-		String url = requestHeaders.substring(0, p1);
+		String url = requestHeaders.getFirstLine();
 		int old_start = url.indexOf(' ')+1;
 		int old_end = url.lastIndexOf(' ');
 		String oldhost = service.getHost();
@@ -329,7 +458,7 @@ public class HttpMessage {
 			rewriteHeader("Host", newUrl);
 			return;
 		}
-		p1 = newUrl.indexOf("://")+3;
+		int p1 = newUrl.indexOf("://")+3;
 		int p2 = newUrl.indexOf("/", p1+4);
 		String newHost =  newUrl.substring(p1,p2);
 		requestHeaders.replace(old_start, old_end, newUrl);
@@ -358,6 +487,10 @@ public class HttpMessage {
 	 * @param newBody the new body to set
 	 */
 	public void setBody(String newBody) {
+		this.bodyPending = false;
+		this.bodyModified = true;
+		this.storedChars = null;
+		dropReplacement();
 		if (this.type == Icap.TYPE.REQMOD){
 			this.requestBody = newBody;
 		} else {
@@ -366,24 +499,148 @@ public class HttpMessage {
 	}
 //	<------------------------------------------------------------------------->
 	
+//	<------------------------------------------------------------------------->
+	/**
+	 * Replace message body by bytes written to returned stream (uncompressed, encoded
+	 * with body charset). Bytes are decoded only if body is then read as text.<br>
+	 * Each call starts a new replacement body. In lazy body mode, body is retrieved first
+	 * (so that its charset is known).
+	 * @return stream receiving new body bytes
+	 */
+	public OutputStream getBodySink(){
+		if (this.bodyPending) getBody();
+		dropReplacement();
+		this.bodyModified = true;
+		this.replacement = new SegmentedBuffer(){
+			public void write(int b){
+				replacementChars = null;
+				super.write(b);
+			}
+			public void write(byte[] b, int off, int len){
+				replacementChars = null;
+				super.write(b, off, len);
+			}
+		};
+		return this.replacement;
+	}
+
+	/**
+	 * Discard replacement bytes (releasing their storage). If views on these bytes have been
+	 * given to script, storage is only released at transaction end (or left to garbage collector
+	 * without service), as releasing it would unmap or recycle memory still readable by views
+	 */
+	private void dropReplacement(){
+		if (this.replacement != null) {
+			if (!this.replacementViewed) this.replacement.reset();
+			else if (this.service != null) this.service.discardAtTransactionEnd(this.replacement);
+		}
+		this.replacement = null;
+		this.replacementChars = null;
+		this.replacementViewed = false;
+	}
+//	<------------------------------------------------------------------------->
+
+//	<------------------------------------------------------------------------->
+	/**
+	 * Retrieve service stored body. A pending body is retrieved by service without building
+	 * body text (body stays pending), if service supports it.
+	 * @return service stored body, if current body text is its decoded content (null otherwise)
+	 */
+	private SegmentedBuffer getStoredBytes(){
+		if (this.service == null) return null;
+		if (this.bodyPending) {
+			if (!this.storedLoaded) {
+				try {
+					this.storedLoaded = this.service.loadLazyBody();
+				} catch (Exception e){
+					throw new RuntimeException("Unable to retrieve HTTP body", e);
+				}
+			}
+			if (!this.storedLoaded) getBody();
+		}
+		if (!this.bodyPending) {
+			String body = getCurrentBody();
+			if (body == null || body != this.storedBody) return null;
+		}
+		SegmentedBuffer stored = this.type == Icap.TYPE.REQMOD ? this.service.getReqBody() : this.service.getRespBody();
+		return stored != null ? stored : new SegmentedBuffer();
+	}
+
+	/**
+	 * @return current body text, encoded with body charset
+	 */
+	private byte[] encodeBody(){
+		String body = getCurrentBody();
+		if (body == null) return new byte[0];
+		return body.getBytes(getCharset());
+	}
+
+	/**
+	 * @return charset of body text (as decoded by service)
+	 */
+	private Charset getCharset(){
+		String charset = this.service == null ? null : this.service.getBodyCharset();
+		try {
+			if (charset != null) return Charset.forName(charset);
+		} catch (Exception e){
+			//unknown charset: platform charset, as service
+		}
+		return Charset.defaultCharset();
+	}
+
+	/**
+	 * Decode bytes using a decoder cached for current thread
+	 * @param bytes the bytes to decode
+	 * @param charset charset of bytes
+	 * @return decoded text
+	 * @throws IOException
+	 */
+	private static CharBuffer decode(SegmentedBuffer bytes, Charset charset) throws IOException {
+		CharsetDecoder[] cached = decoders.get();
+		if (cached[0] == null || !cached[0].charset().equals(charset)) {
+			cached[0] = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		}
+		CharsetDecoder decoder = cached[0];
+		decoder.reset();
+		Reader reader = Channels.newReader(Channels.newChannel(bytes.getInputStream()), decoder, -1);
+		CharBuffer chars = CharBuffer.allocate((int)(bytes.size()*decoder.averageCharsPerByte())+16);
+		while (true){
+			if (!chars.hasRemaining()) {
+				CharBuffer larger = CharBuffer.allocate(chars.capacity()*2);
+				chars.flip();
+				larger.put(chars);
+				chars = larger;
+			}
+			if (reader.read(chars) == -1) break;
+		}
+		chars.flip();
+		return chars;
+	}
+//	<------------------------------------------------------------------------->
+
 //	<------------------------------------------------------------------------->
 	/**
 	 * Experimental: minify response content for CSS, HTML and JavaScript
 	 */
 	public void minify(){
 		if (this.type != Icap.TYPE.RESPMOD || service==null) return;
-		String contenttype = service.getRespHeader("content-type").toLowerCase(); 
+		String contenttype = responseHeaders.get("content-type").toLowerCase(); 
+		getBody();
 		if (contenttype.contains("css")){
 			this.responseBody = Compressor.cleanupCSS(this.responseBody);
+			this.bodyModified = true;
 			return;
 		}
 		if (contenttype.contains("html")){
 			this.responseBody = Compressor.cleanupHTML(this.responseBody);
+			this.bodyModified = true;
 			//this.responseBody = Compressor.compressHtml(this.responseBody);
 			return;
 		}
 		if (contenttype.contains("javascript")){
 			this.responseBody = Compressor.cleanupJavaScript(this.responseBody);
+			this.bodyModified = true;
 			return;
 		}
 	}
@@ -396,10 +653,12 @@ public class HttpMessage {
 	 */
 	public void toJson(){
 		if (this.type != Icap.TYPE.RESPMOD || service == null) return;
-		String contenttype = service.getRespHeader("content-type").toLowerCase();
+		String contenttype = responseHeaders.get("content-type").toLowerCase();
         if (contenttype==null || !contenttype.contains("xml")) return;
+        getBody();
         try{
         	this.responseBody = XML.toJSONObject(this.responseBody).toString();
+        	this.bodyModified = true;
             this.rewriteHeader("Content-Type","application/json; charset=UTF-8");
         } catch (Exception e){
         }
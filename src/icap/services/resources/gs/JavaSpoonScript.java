@@ -32,6 +32,7 @@ package icap.services.resources.gs;
 //IMPORTS
 import tools.logger.Log;
 import icap.core.Icap;
+import icap.core.HttpHeader;
 import tools.general.JavaRtCompiler;
 import java.lang.reflect.*;
 //////////////////////////////////////////
@@ -82,67 +83,38 @@ public class JavaSpoonScript extends SpoonScript {
 	/**
 	 * Apply current spoonscript to server response
 	 * For now, this method is only applicable on String content (response body is handled as a String)
-	 * @param service	The ICAP service providing the response
+	 * @param chain		The scripts chain context (ICAP service, URL, shared HTTP message, ...)
 	 * @param content 	The response body
-	 * @param url		The requested URL
 	 * @return	Modified response body
 	 */
-	public String apply(icap.core.AbstractService service, String content, String url) throws Exception {
+	public String apply(ScriptChain chain, String content) throws Exception {
+		String url = chain.url;
 		try{
 			if (constructor == null) return content;
-			String username = service.getIcapHeader(icapuserheader);
-			try{
-				if (username !=null && username.length()!=0) {
-					if (username.startsWith("LDAP")){ 
-						int a = username.toLowerCase().indexOf("cn="); 
-						int b = username.indexOf(",",a);
-						if (b==-1) b =username.length(); 
-						username = username.substring(a, b);
-					} else {
-						username = username.substring(username.indexOf("/")+1);
-					}
-				} else {
-					username = service.getIcapHeader(userfallbackheader);
-					if (username==null) username = service.getReqHeader(userfallbackheader);
-					if (username==null) username = service.getRespHeader(userfallbackheader);
-					if (username==null) username = "";
-				}
-			}catch (Exception e){//user unavailable => let it to null
-			}
-			String usergroup = service.getIcapHeader(icapgroupheader);
-			try{
-				if (usergroup ==null || usergroup.length()==0) {
-					//usergroup = InetAddress.getByName(username.trim()).getCanonicalHostName();
-					usergroup = service.getReqHeader(groupfallbackheader);
-					if (usergroup==null) usergroup = service.getRespHeader(groupfallbackheader);
-					if (usergroup==null) usergroup = "";
-				}
-			}catch (Exception e){
-				//group unavailable => let it to null  
-			}
-			HttpMessage httpmessage;
-			switch (service.getType()){
-				case RESPMOD:
-					httpmessage = HttpMessage.newResponse(service, service.getRequestHeaders(),
-							service.getResponseHeaders(), content, username, usergroup, sharedCache) ;
-					break;
-				case REQMOD:
-					httpmessage = HttpMessage.newRequest(service, service.getRequestHeaders(),  content==null?"":content
-							, username, usergroup, sharedCache);
-					break;
-				default:
-					return content;
-			}
+			//message (and its headers) is shared by all native scripts of the chain
+			HttpMessage httpmessage = chain.getMessage(content, this.bodyMode == BODY_LAZY);
+			if (httpmessage == null) return content;
 			
 			String result ="";
-			NativeScript script = constructor.newInstance();
-			ScriptRunner scriptrunner = new ScriptRunner(script, httpmessage);
-			scriptrunner.join(scriptTimeout);
+			//headers are edited in place: record edits to cancel them if script is aborted
+			HttpHeader reqHeader = chain.service.getHttpRequestHeader(), resHeader = chain.service.getHttpResponseHeader();
+			StackTraceElement[] traces;
+			reqHeader.mark();
+			resHeader.mark();
+			try {
+				NativeScript script = constructor.newInstance();
+				traces = run(script, httpmessage, scriptTimeout);
+				if (traces != null) {
+					reqHeader.rollback();
+					resHeader.rollback();
+				}
+			} finally {
+				reqHeader.commit();
+				resHeader.commit();
+			}
 
-			if (scriptrunner.isAlive()) {
-				StackTraceElement[] traces = scriptrunner.getStackTrace();
-				int errorline = traces[0].getLineNumber()+linecorrection;
-				scriptrunner.forceKill();
+			if (traces != null) {
+				int errorline = getScriptLine(traces);
 				errorcounter++;
 				if (errorThreshold!=0 && errorcounter>errorThreshold) {
 					this.setStatus(false);
@@ -154,19 +126,9 @@ public class JavaSpoonScript extends SpoonScript {
 			} else {
 				if (errorcounter>0) errorcounter=0;
 	
-				// retrieve the potential response header and body
-				// request headers and body are not updated for now (should be added for service in reqmod)
-				switch (service.getType()){
-					case RESPMOD:
-						result = httpmessage.responseBody;
-						service.setResponseHeaders(httpmessage.getResponseHeaders().replace("\r\n\r\n", "\r\n").concat("\r\n"));
-						break;
-					case REQMOD:
-						result = httpmessage.requestBody;
-						service.setRequestHeaders(httpmessage.getRequestHeaders().replace("\r\n\r\n", "\r\n").concat("\r\n"));
-						break;
-					default: break;
-				}
+				// retrieve the potential response body (unchanged if still not retrieved in lazy mode)
+				// headers are shared with service and have been updated in place by script
+				result = httpmessage.bodyPending ? content : httpmessage.getCurrentBody();
 				content = result;
 				return result;
 			}
@@ -182,74 +144,81 @@ public class JavaSpoonScript extends SpoonScript {
 	}
 //	<------------------------------------------------------------------------->
 
-
-
 //	<------------------------------------------------------------------------->
 	/**
-	 * Thread used to run script
-	 * Allows to implement timeouts on script execution
+	 * Call script preview callback (NativeScript.wants()), in calling thread.<br>
+	 * Script is considered as interested if it does not declare @preview,
+	 * or if callback fails or exceeds script timeout.
+	 * @param chain		The preview scripts chain context (headers and body preview)
+	 * @return false if script is not interested in message
 	 */
-	public class ScriptRunner extends Thread implements UncaughtExceptionHandler{
-		NativeScript scriptToRun;
-		HttpMessage httpmessage;
-		/**
-		 * Launch script evaluation using a dedicated thread<br>
-		 * Allows to interrupt evaluation if needed (infinite loop, timeout, ...)
-		 * @param script The script to evaluate
-		 * @param httpmessage HTTP Message object to process
-		 */
-		public ScriptRunner(NativeScript script, HttpMessage httpmessage){
-			super("JavaSpoonScript - runner");
-			this.setPriority(Thread.MIN_PRIORITY);
-			this.scriptToRun = script;
-			this.httpmessage = httpmessage;
-			this.setUncaughtExceptionHandler(this);
-			this.start();
-		}
-		/**
-		 * Destroy running script
-		 */
-		@SuppressWarnings("deprecation")
-		public void forceKill(){
-			try{
-				//heavy interruption method, required as there is no direct stop method in ScriptEngines
-				this.suspend();
-				this.interrupt();
-				this.stop();
-				this.finalize();
-				//done
-			} catch (Exception e){
-			} catch (Throwable e){
+	public boolean wants(ScriptChain chain){
+		if (!this.previewMode || constructor == null) return true;
+		boolean wanted = true;
+		NativeScript.startDeadline(scriptTimeout);
+		try{
+			HttpMessage preview = chain.getPreviewMessage();
+			if (preview != null) wanted = constructor.newInstance().wants(preview);
+		} catch (ScriptTimeoutError ste){
+			wanted = true;
+		} catch (Throwable e){
+			wanted = true;
+			if (Log.warning()) Log.service(Log.WARNING,String.format("%1$-20s Error in preview on URL [%2$s] : %3$s ",name, chain.url, e));
+		} finally {
+			if (NativeScript.stopDeadline()) {
+				wanted = true;
+				if (Log.warning()) Log.error(Log.WARNING, String.format("%1$-20s  timeout - threshold of %2$6s ms exceeded in preview - URL: [%3$s]", name,scriptTimeout,chain.url));
 			}
 		}
+		return wanted;
+	}
+//	<------------------------------------------------------------------------->
 
-		/**
-		 * @see java.lang.Thread#run()
-		 */
-		public void run(){
+//	<------------------------------------------------------------------------->
+	/**
+	 * Script evaluation, run in calling thread<br>
+	 * Script has been compiled with timeout check points (see ScriptInstrumenter): it
+	 * aborts by itself when its timeout is exceeded (infinite loop, ...)
+	 * @param script The script to evaluate
+	 * @param httpmessage HTTP Message object to process
+	 * @param timeout maximum execution time, in milliseconds (0 for none)
+	 * @return null if script has completed (or failed), or its stack trace when it has been aborted on timeout
+	 */
+	private StackTraceElement[] run(NativeScript script, HttpMessage httpmessage, int timeout){
+		StackTraceElement[] traces = null;
+		NativeScript.startDeadline(timeout);
+		try{
+			script.main(httpmessage);
+		} catch (ScriptTimeoutError ste){
+			traces = ste.getStackTrace();
+		} catch (java.lang.NoSuchMethodError nse){
+			if (Log.warning()) Log.service(Log.WARNING,String.format("%1$-20s Error (233) in script : %2$s",name, nse.getStackTrace()[0]).toString());
+		} catch (java.lang.NoClassDefFoundError ncdf){
+			if (Log.warning()) Log.service(Log.WARNING,String.format("%1$-20s Error (235) in script : %2$s",name, ncdf.getStackTrace()[0]).toString());
+		} catch (Throwable e){
+			if (Log.warning()) 
 			try{
-				scriptToRun.main(httpmessage);
-			} catch (java.lang.NoSuchMethodError nse){
-				if (Log.warning()) Log.service(Log.WARNING,String.format("%1$-20s Error (233) in script : %2$s",name, nse.getStackTrace()[0]).toString());
-			} catch (java.lang.NoClassDefFoundError ncdf){
-				if (Log.warning()) Log.service(Log.WARNING,String.format("%1$-20s Error (235) in script : %2$s",name, ncdf.getStackTrace()[0]).toString());
-			} catch (Throwable e){
-				if (Log.warning()) 
-				try{
-					Log.service(Log.WARNING,String.format("%1$-20s Error (237) in script : %2$s",name, e.getLocalizedMessage() +':' +e.getStackTrace()[0]).toString());
-				} catch (Exception e1){
-					Log.service(Log.WARNING,String.format("%1$-20s Error (237) in script : %2$s",name, e.getLocalizedMessage()));
-				}
-				//abort
+				Log.service(Log.WARNING,String.format("%1$-20s Error (237) in script : %2$s",name, e.getLocalizedMessage() +':' +e.getStackTrace()[0]).toString());
+			} catch (Exception e1){
+				Log.service(Log.WARNING,String.format("%1$-20s Error (237) in script : %2$s",name, e.getLocalizedMessage()));
 			}
+			//abort
+		} finally {
+			//script may have swallowed timeout error
+			if (NativeScript.stopDeadline() && traces == null) traces = new StackTraceElement[0];
 		}
-		/**
-		 * Intercept all possible thread exceptions
-		 */
-		public void uncaughtException(Thread arg0, Throwable t) {
-			// TODO Auto-generated method stub
-			if (Log.warning()) Log.service(Log.WARNING,String.format("%1$-20s Error (246) in script : %2$s",name, t.getLocalizedMessage()));
+		return traces;
+	}
+
+	/**
+	 * @param traces stack trace of an aborted script
+	 * @return script line on which script has been aborted, -1 if unknown
+	 */
+	private static int getScriptLine(StackTraceElement[] traces){
+		for (StackTraceElement trace:traces){
+			if (trace.getClassName().startsWith(nativepackage)) return trace.getLineNumber()+linecorrection;
 		}
+		return -1;
 	}
 //	<------------------------------------------------------------------------->
 
@@ -312,12 +281,9 @@ public class JavaSpoonScript extends SpoonScript {
 			ScriptChecker test = new ScriptChecker(this.mode);
 			if (constructor == null) return;
 			NativeScript script = constructor.newInstance();
-			ScriptRunner scriptrunner = new ScriptRunner(script, test.httpMessage);
-			scriptrunner.join(ScriptChecker.scriptTestTimeOut);
-			if (scriptrunner.isAlive()) {
-				StackTraceElement[] traces = scriptrunner.getStackTrace();
-				scriptrunner.forceKill();
-				this.error = "Error in script ["+this.getScriptName()+"]: infinite loop or contention detected on line "+(traces[0].getLineNumber()+linecorrection)+"<br>";
+			StackTraceElement[] traces = run(script, test.httpMessage, ScriptChecker.scriptTestTimeOut);
+			if (traces != null) {
+				this.error = "Error in script ["+this.getScriptName()+"]: infinite loop or contention detected on line "+getScriptLine(traces)+"<br>";
 			} else {
 				//script.main(test.httpMessage);
 				this.error = "";
@@ -368,12 +334,16 @@ public class JavaSpoonScript extends SpoonScript {
 	
 //	<------------------------------------------------------------------------->
 	/**
-	 * Package a Java script so it complies to NativeScript interface
+	 * Package a Java script so it complies to NativeScript interface<br>
+	 * Timeout check points are inserted in script (see ScriptInstrumenter)
 	 * @param sb the Java source script to package
 	 * @param scriptname the class name (to generate)
 	 * @return Packaged source code
 	 */
 	public static String packageScript(StringBuilder sb, String scriptname){
+		String instrumented = ScriptInstrumenter.instrument(sb.toString());
+		sb.setLength(0);
+		sb.append(instrumented);
 		sb.insert(0, "package "+nativepackage+";\r\nimport icap.services.resources.gs.*;\r\n");
 		int lastimport = sb.indexOf(";", sb.lastIndexOf("import ")+1);
 		sb.insert(lastimport+1, "\r\npublic class " +  scriptname+ " extends NativeScript {");
@@ -31,6 +31,7 @@ package icap.services.resources.gs;
 //////////////////////////////////////////
 //IMPORTS
 import java.io.*;
+import java.util.ArrayList;
 import javax.script.*;
 import tools.logger.Log;
 import icap.core.Icap;
@@ -74,7 +75,13 @@ public class Jsr223SpoonScript extends SpoonScript {
 	ScriptEngine engine;
 	Compilable compilable;
 	CompiledScript compiledscript;
-	StringWriter errwriter = new StringWriter();
+	/**set if engine can be used by several threads at once (engine THREADING parameter is not null)*/
+	boolean shareEngine = false;
+
+	/**evaluation environments ready to use (at most one per script runner)*/
+	private final ArrayList<Slot> slots = new ArrayList<Slot>();
+	/**compiled script version: environments of previous versions are dropped*/
+	private int generation = 0;
 	
 
 //	<------------------------------------------------------------------------->
@@ -117,7 +124,8 @@ public class Jsr223SpoonScript extends SpoonScript {
 			} catch (java.lang.ClassCastException e){
 				//compiler is not available
 			}
-			this.engine.getContext().setErrorWriter(errwriter);
+			//engines without threading guarantee are never used by two threads at once
+			shareEngine = engine.getFactory().getParameter("THREADING") != null;
 			//invocableEngine = (Invocable)engine;
 		} catch (java.lang.NoClassDefFoundError nc){
 			if (Log.warning()) Log.service(Log.WARNING,"["+this.file.getName()+"]"+" unable to instantiate script engine for \""+this.file.getName().substring(this.file.getName().lastIndexOf(".")+1)+"\" extension"+ 
@@ -133,52 +141,29 @@ public class Jsr223SpoonScript extends SpoonScript {
 	/**
 	 * Apply current spoonscript to server response
 	 * For now, this method is only applicable on String content (response body is handled as a String)
-	 * @param service	The ICAP service providing the response
+	 * @param chain		The scripts chain context (ICAP service, URL, user, ...)
 	 * @param content 	The response body
-	 * @param url		The requested URL
 	 * @return	Modified response body
 	 */
-	public String apply(icap.core.AbstractService service, String content, String url) throws Exception{
+	public String apply(ScriptChain chain, String content) throws Exception{
+		icap.core.AbstractService service = chain.service;
+		String url = chain.url;
+		Slot slot = null;
 		try{
-			String username = service.getIcapHeader(icapuserheader);
-			try{
-				if (username !=null && username.length()!=0) {
-					if (username.startsWith("LDAP")){ 
-						int a = username.toLowerCase().indexOf("cn="); 
-						int b = username.indexOf(",",a);
-						if (b==-1) b =username.length(); 
-						username = username.substring(a, b);
-					} else {
-						username = username.substring(username.indexOf("/")+1);
-					}
-				} else {
-					username = service.getIcapHeader(userfallbackheader);
-					if (username==null) username = service.getReqHeader(userfallbackheader);
-					if (username==null) username = service.getRespHeader(userfallbackheader);
-					if (username==null) username = "";
-				}
-			}catch (Exception e){//user unavailable => let it to null
-			}
-			String usergroup = service.getIcapHeader(icapgroupheader);
-			try{
-				if (usergroup ==null || usergroup.length()==0) {
-					//usergroup = InetAddress.getByName(username.trim()).getCanonicalHostName();
-					usergroup = service.getReqHeader(groupfallbackheader);
-					if (usergroup==null) usergroup = service.getRespHeader(groupfallbackheader);
-					if (usergroup==null) usergroup = "";
-				}
-			}catch (Exception e){
-				//group unavailable => let it to null  
-			}
-			errwriter.flush();
-			Bindings bindings = this.engine.createBindings();
-			//this.engine.getContext().setErrorWriter(errwriter);
-			//this.engine.getContext().setWriter(errwriter);
+			String username = chain.getUsername();
+			String usergroup = chain.getUsergroup();
+			slot = acquireSlot();
+			Bindings bindings = slot.bindings;
+			bindings.clear();
+			String headers = null;
+			//body as given to script: a script modifies body by binding another value
+			String body = content;
 			switch (service.getType()){
 				case RESPMOD:
 					bindings.put(urltag, service.getReqUrl());
 					bindings.put(responsebodytag,  content);
-					bindings.put(responseheadertag, service.getResponseHeaders());
+					headers = service.getResponseHeaders();
+					bindings.put(responseheadertag, headers);
 					//bindings.put(requestbodytag,service.getReqBody());
 					bindings.put(requestheadertag, service.getRequestHeaders());
 					bindings.put(useridtag, username);
@@ -188,8 +173,10 @@ public class Jsr223SpoonScript extends SpoonScript {
 					break;
 				case REQMOD:
 					bindings.put(urltag, service.getReqUrl());
-					bindings.put(requestbodytag, content==null?"":content);
-					bindings.put(requestheadertag, service.getRequestHeaders());
+					body = content==null?"":content;
+					bindings.put(requestbodytag, body);
+					headers = service.getRequestHeaders();
+					bindings.put(requestheadertag, headers);
 					bindings.put(useridtag, username);
 					bindings.put(usergrouptag, usergroup);
 					bindings.put(cachetag, sharedCache);
@@ -199,13 +186,12 @@ public class Jsr223SpoonScript extends SpoonScript {
 			}
 			String result ="";
 
-			ScriptRunner scriptrunner = new ScriptRunner(serverScript, bindings);
-			scriptrunner.join(scriptTimeout);
+			boolean aborted = ScriptRunnerPool.run(slot.runner, scriptTimeout) != null;
 			String debug = bindings.get(debugstring).toString().trim();
 			if (Log.fine()) if (debug != null && debug.length()>0) Log.service(Log.FINE, String.format("%1$-20s  trace log [%2$s]", name,debug));
-			if (scriptrunner.isAlive()) {
-				scriptrunner.forceKill();
-				bindings.clear();
+			if (aborted) {
+				//environment may have been left in any state: drop it
+				slot = null;
 				errorcounter++;
 				if (errorThreshold!=0 && errorcounter>errorThreshold) {
 					this.setStatus(false);
@@ -218,30 +204,35 @@ public class Jsr223SpoonScript extends SpoonScript {
 				if (errorcounter>0) errorcounter--;
 	
 				// retrieve the potential response header and body
-				// request headers and body are not updated for now (should be added for service in reqmod)
+				// headers are only given back to service if script has modified them
+				Object newheaders;
 				switch (service.getType()){
 					case RESPMOD:
 						result = (String)(bindings.get(responsebodytag));
-						service.setResponseHeaders(bindings.get(responseheadertag).toString().replace("\r\n\r\n", "\r\n").concat("\r\n"));
+						newheaders = bindings.get(responseheadertag);
+						if (newheaders!=null && !headers.equals(newheaders.toString())) service.setResponseHeaders(newheaders.toString());
 						break;
 					case REQMOD:
 						result = (String)(bindings.get(requestbodytag));
-						service.setRequestHeaders(bindings.get(requestheadertag).toString().replace("\r\n\r\n", "\r\n").concat("\r\n"));
+						newheaders = bindings.get(requestheadertag);
+						if (newheaders!=null && !headers.equals(newheaders.toString())) service.setRequestHeaders(newheaders.toString());
 						break;
 					default: break;
 				}
 				bindings.clear();
-				if (errwriter.getBuffer().length()>0){
-					if (Log.warning()) Log.service(Log.WARNING,String.format("%1$-20s Error in script : %2$s",name, errwriter.getBuffer()));
-					errwriter.flush();
+				//unchanged binding is checked by reference first: contents are only compared for rebound values
+				if (result != body && (result == null || !result.equals(body))) chain.setBodyModified();
+				if (slot.errwriter.getBuffer().length()>0){
+					if (Log.warning()) Log.service(Log.WARNING,String.format("%1$-20s Error in script : %2$s",name, slot.errwriter.getBuffer()));
+					slot.errwriter.getBuffer().setLength(0);
 				}
+				releaseSlot(slot);
 				content = result;
 				return result;
 			}
 		} catch (Throwable t){
-			if (errwriter.getBuffer().length()>0){
-				if (Log.warning()) Log.service(Log.WARNING,String.format("%1$-20s Error in script : %2$s",name, errwriter.getBuffer()));
-				errwriter.flush();
+			if (slot != null && slot.errwriter.getBuffer().length()>0){
+				if (Log.warning()) Log.service(Log.WARNING,String.format("%1$-20s Error in script : %2$s",name, slot.errwriter.getBuffer()));
 			}
 			if (Log.warning()) Log.service(Log.WARNING,String.format("%1$-20s Error in script : %2$s",name, t.getLocalizedMessage().trim()));
 			errorcounter++;
@@ -257,58 +248,125 @@ public class Jsr223SpoonScript extends SpoonScript {
 
 //	<------------------------------------------------------------------------->
 	/**
-	 * Thread used to run script
-	 * Allows to implement timeouts on script execution
+	 * Script evaluation environment: engine, compiled script, and context reused from one
+	 * evaluation to the next. An environment is used by one thread at a time.
 	 */
-	public class ScriptRunner extends Thread implements UncaughtExceptionHandler{
-		Bindings _bindings;
-		String scriptToRun;
+	final class Slot {
+		/**engine: shared by all environments, or dedicated if engine is not thread-safe*/
+		final ScriptEngine slotengine;
+		/**script compiled by slot engine (null if engine is not compilable)*/
+		final CompiledScript slotscript;
+		/**script source of this environment version (evaluated when there is no compiled script)*/
+		final String slotsource;
+		/**script variables*/
+		final Bindings bindings;
+		/**evaluation context, using script variables as engine scope*/
+		final SimpleScriptContext context = new SimpleScriptContext();
+		/**errors reported by script*/
+		final StringWriter errwriter = new StringWriter();
+		/**evaluation task*/
+		final ScriptRunner runner = new ScriptRunner(this);
+		/**script version this environment has been created for*/
+		final int slotgeneration;
+
 		/**
-		 * Launch script evaluation using a dedicated thread<br />
-		 * Allows to interrupt evaluation if needed (infinite loop, timeout, ...)
-		 * @param script The script to evaluate
-		 * @param bindings script environment
+		 * @param slotengine engine to use
+		 * @param slotscript script compiled by engine, null to evaluate script source
+		 * @param slotsource script source
+		 * @param bindings script variables
+		 * @param slotgeneration script version
 		 */
-		public ScriptRunner(String script, Bindings bindings){
-			super("Jsr223SpoonScript - runner");
-			this.setPriority(Thread.MIN_PRIORITY);
-			this._bindings = bindings;
-			this.scriptToRun = script;
-			this.start();
-			this.setUncaughtExceptionHandler(this);
+		Slot(ScriptEngine slotengine, CompiledScript slotscript, String slotsource, Bindings bindings, int slotgeneration){
+			this.slotengine = slotengine;
+			this.slotscript = slotscript;
+			this.slotsource = slotsource;
+			this.bindings = bindings;
+			this.slotgeneration = slotgeneration;
+			context.setBindings(bindings, ScriptContext.ENGINE_SCOPE);
+			context.setBindings(slotengine.getBindings(ScriptContext.GLOBAL_SCOPE), ScriptContext.GLOBAL_SCOPE);
+			context.setWriter(slotengine.getContext().getWriter());
+			context.setErrorWriter(errwriter);
 		}
+	}
+
+	/**
+	 * Take an evaluation environment, or create one if none is available
+	 * @return an environment for current script version
+	 * @throws ScriptException if script cannot be compiled by a new engine
+	 */
+	private Slot acquireSlot() throws ScriptException {
+		ScriptEngine slotengine;
+		CompiledScript slotscript;
+		String slotsource;
+		int slotgeneration;
+		synchronized (slots){
+			if (!slots.isEmpty()) return slots.remove(slots.size()-1);
+			slotengine = this.engine;
+			slotscript = this.compiledscript;
+			slotsource = this.serverScript;
+			slotgeneration = this.generation;
+		}
+		if (!shareEngine) {
+			//engine without threading guarantee: each environment has its own engine and compiled script
+			slotengine = slotengine.getFactory().getScriptEngine();
+			if (slotscript != null) slotscript = ((Compilable)slotengine).compile(slotsource);
+		}
+		return new Slot(slotengine, slotscript, slotsource, slotengine.createBindings(), slotgeneration);
+	}
+
+	/**
+	 * Give back an evaluation environment. Environment is dropped if script has been
+	 * modified, or if there are already as many environments as script runners
+	 * @param slot the environment
+	 */
+	private void releaseSlot(Slot slot){
+		synchronized (slots){
+			if (slot.slotgeneration != this.generation || slots.size() >= ScriptRunnerPool.getMaxRunners()) return;
+			slots.add(slot);
+		}
+	}
+
+	/**
+	 * Publish a new script version, and drop all evaluation environments of previous one
+	 * @param source script content
+	 * @param script script compiled from content (null if script is in error)
+	 */
+	private void publishScript(String source, CompiledScript script){
+		synchronized (slots){
+			this.serverScript = source;
+			this.compiledscript = script;
+			this.generation++;
+			slots.clear();
+		}
+	}
+//	<------------------------------------------------------------------------->
+
+//	<------------------------------------------------------------------------->
+	/**
+	 * Script evaluation, run by a ScriptRunnerPool thread
+	 * Allows to implement timeouts on script execution
+	 */
+	public class ScriptRunner implements Runnable{
+		Slot slot;
 		/**
-		 * Destroy running script
+		 * Prepare script evaluation<br />
+		 * Evaluation can be interrupted by pool if needed (infinite loop, timeout, ...)
+		 * @param slot evaluation environment
 		 */
-		@SuppressWarnings("deprecation")
-		public void forceKill(){
-			try{
-				//heavy interruption method, required as there is no direct stop method in ScriptEngines
-				//mandatory as JSR 223 threaded scripts are capricious - interrupt is not enough
-				this.suspend();
-				this.interrupt();
-				if (this!=null && this.isAlive())this.stop();
-				this.finalize();
-				//done
-			} catch (Exception e){
-				//e.printStackTrace();
-			}/*catch (java.lang.ThreadDeath td){
-				//td.printStackTrace();
-			}*/ catch (Throwable t){
-				//t.printStackTrace();
-			}
-
+		ScriptRunner(Slot slot){
+			this.slot = slot;
 		}
 
 		/**
-		 * @see java.lang.Thread#run()
+		 * @see java.lang.Runnable#run()
 		 */
 		public void run(){
+			StringWriter errwriter = slot.errwriter;
 			try{
-				if (compiledscript!=null){
-					compiledscript.eval(this._bindings);
+				if (slot.slotscript!=null){
+					slot.slotscript.eval(slot.context);
 				} else {
-					engine.eval(this.scriptToRun, this._bindings);
+					slot.slotengine.eval(slot.slotsource, slot.context);
 				}
 			} catch (ScriptException se){
 				//se.printStackTrace();
@@ -332,13 +390,6 @@ public class Jsr223SpoonScript extends SpoonScript {
 				errwriter.append(t.getLocalizedMessage());
 			}
 		}
-		/**
-		 * Intercept all possible thread exceptions
-		 */
-		public void uncaughtException(Thread arg0, Throwable t) {
-			// TODO Auto-generated method stub
-			errwriter.append(t.getLocalizedMessage());
-		}
 	}
 //	<------------------------------------------------------------------------->
 
@@ -348,7 +399,15 @@ public class Jsr223SpoonScript extends SpoonScript {
 	 */
 	public void reset(){
 		this.clearPatterns();
-		this.compiledscript = null;
+		publishScript(this.serverScript, null);
+	}
+
+	/**
+	 * Body is bound to script as a variable: it cannot be read on demand, lazy mode is proceeded as full mode
+	 * @see icap.services.resources.gs.SpoonScript#getBodyMode()
+	 */
+	public int getBodyMode() {
+		return bodyMode==BODY_LAZY?BODY_FULL:bodyMode;
 	}
 //	<------------------------------------------------------------------------->
 
@@ -359,47 +418,51 @@ public class Jsr223SpoonScript extends SpoonScript {
 	 * @param newServerScript Script content to use
 	 */
 	public void setServerScript(String newServerScript) {
-		this.serverScript = newServerScript;
+		//script is compiled and tested first: running scripts keep previous version meanwhile
+		CompiledScript newscript;
 		try{
-			this.compiledscript = this.compilable.compile(this.serverScript);
-			testScript();
+			newscript = this.compilable.compile(newServerScript);
+			if (!testScript(newServerScript, newscript)) newscript = null;
 		} catch (Throwable t) {
 			String error = t.getCause().toString().trim().replace("<Unknown Source>", this.getScriptName());
-			this.compiledscript = null;
+			newscript = null;
 			Log.service(Log.WARNING,String.format("%1$-20s Error in script : %2$s",this.getScriptName(),error));
 			this.error = "Error in script ["+this.getScriptName()+"]:"+error;
 		}
-
+		publishScript(newServerScript, newscript);
 	}
 //	<------------------------------------------------------------------------->
 	
 //	<------------------------------------------------------------------------->
-	private void testScript(){
-		if (!ScriptChecker.testScriptOnChange) return;
+	/**
+	 * Run a compiled script version against test variables (if enabled)
+	 * @param source script source
+	 * @param script compiled script to test
+	 * @return false if script is in error
+	 */
+	private boolean testScript(String source, CompiledScript script){
+		if (!ScriptChecker.testScriptOnChange) return true;
 		String err = "";
-		this.errwriter.getBuffer().setLength(0);
 		try {
 			ScriptChecker test = new ScriptChecker(this.engine);
-			//this.compiledscript = this.compilable.compile(this.serverScript);
+			//test environment is never given back to slots
+			Slot slot = new Slot(this.engine, script, source, test.bindings, -1);
 			this.error = "";
-			ScriptRunner scriptrunner = new ScriptRunner(this.serverScript,test.bindings);
-			scriptrunner.join(ScriptChecker.scriptTestTimeOut);
-			if (scriptrunner.isAlive()) {
-				//StackTraceElement[] traces = scriptrunner.getStackTrace();
-				scriptrunner.forceKill();
+			if (ScriptRunnerPool.run(slot.runner, ScriptChecker.scriptTestTimeOut) != null) {
 				this.error = "Error in script ["+this.getScriptName()+"]: infinite loop or processing time threshold exceeded";
-				return;
+				return true;
 			}
-			err = this.errwriter.toString().trim();
+			err = slot.errwriter.toString().trim();
 		} catch (Throwable t){
 			err = t.getCause().toString();
 		}
 		if (!err.equals("")){
 			err = err.trim().replace("<Unknown Source>", this.getScriptName()==null?"":this.getScriptName());
-			this.compiledscript = null;
 			Log.service(Log.WARNING,String.format("%1$-20s Error in script : %2$s",this.getScriptName(),err));
 			this.error = "Error in script ["+this.getScriptName()+"]:"+err;
+			return false;
 		}
+		return true;
 	}
 //	<------------------------------------------------------------------------->
 
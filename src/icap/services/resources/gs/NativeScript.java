@@ -26,6 +26,8 @@ package icap.services.resources.gs;
 
 ////////////////////////////////
 //Import
+import java.util.concurrent.atomic.AtomicInteger;
+import tools.general.TimingWheel;
 import tools.logger.Log;
 ////////////////////////////////
 
@@ -38,6 +40,36 @@ public abstract class NativeScript {
 
 	String nativeScriptName = "";
 	HttpMessage httpmessage;
+
+	/**number of running scripts that have exceeded their timeout*/
+	private final static AtomicInteger expiredScripts = new AtomicInteger();
+	/**deadline of the script running in current thread*/
+	private final static ThreadLocal<Deadline> deadlines = new ThreadLocal<Deadline>(){
+		protected Deadline initialValue(){
+			return new Deadline();
+		}
+	};
+
+//	<------------------------------------------------------------------------->
+	/**
+	 * Timeout of a script run, expired by scripts watchdog
+	 */
+	private final static class Deadline extends TimingWheel.Timeout {
+		/**set while a script is running under this deadline*/
+		private boolean armed;
+		/**script deadline (System.nanoTime())*/
+		private long end;
+		/**set when script has exceeded its timeout and must abort*/
+		private volatile boolean expired;
+
+		protected synchronized void expire(){
+			//expiration may concern a previous script run
+			if (!armed || expired || System.nanoTime() - end < 0) return;
+			expired = true;
+			expiredScripts.incrementAndGet();
+		}
+	}
+//	<------------------------------------------------------------------------->
 //	<------------------------------------------------------------------------->    
 	/**
 	 * Default constructor. MUST be instantiate by implementing classes
@@ -51,6 +83,19 @@ public abstract class NativeScript {
 	 * @param httpMessage The HTTP Message (either request or response) to process
 	 */
 	public abstract void main(HttpMessage httpMessage);
+
+	/**
+	 * Preview callback, called while ICAP client is still in preview when script declares
+	 * @preview in its header. Default implementation is interested in any message.<br>
+	 * Message must not be modified: it only provides headers and the first bytes of body
+	 * (body is null in RESPMOD and empty in REQMOD when it is compressed).
+	 * @param preview The HTTP Message (either request or response), with body preview
+	 * @return false if script is not interested in message: main() is then not called,
+	 * and if no script is interested, message is left unchanged without reading its body
+	 */
+	public boolean wants(HttpMessage preview){
+		return true;
+	}
 	
 //	<------------------------------------------------------------------------->
 	/**
@@ -62,4 +107,48 @@ public abstract class NativeScript {
 	}
 //	<------------------------------------------------------------------------->
 
+//	<------------------------------------------------------------------------->
+	/**
+	 * Timeout check point, inserted at scripts methods entries and loops iterations
+	 * when scripts are compiled (see ScriptInstrumenter). Not intended to be called by scripts.<br>
+	 * While no script is late, check is a single volatile read.
+	 * @return true (so that check can be used as a condition)
+	 * @throws ScriptTimeoutError if the script running in current thread has exceeded its timeout
+	 */
+	public static boolean checkDeadline(){
+		if (expiredScripts.get() == 0) return true;
+		if (deadlines.get().expired) throw new ScriptTimeoutError();
+		return true;
+	}
+
+	/**
+	 * Start timeout of a script run in current thread
+	 * @param timeout script timeout, in milliseconds (0 for none)
+	 */
+	static void startDeadline(int timeout){
+		Deadline deadline = deadlines.get();
+		synchronized (deadline){
+			deadline.armed = true;
+			deadline.end = System.nanoTime() + timeout*1000000L;
+		}
+		if (timeout > 0) ScriptRunnerPool.watchdog.schedule(deadline, timeout);
+	}
+
+	/**
+	 * Stop timeout of the script run in current thread
+	 * @return true if script has exceeded its timeout
+	 */
+	static boolean stopDeadline(){
+		Deadline deadline = deadlines.get();
+		ScriptRunnerPool.watchdog.cancel(deadline);
+		synchronized (deadline){
+			deadline.armed = false;
+			if (!deadline.expired) return false;
+			deadline.expired = false;
+			expiredScripts.decrementAndGet();
+			return true;
+		}
+	}
+//	<------------------------------------------------------------------------->
+
 }
@@ -0,0 +1,195 @@
+/**----------------------------------------------------------------------------
+ * GreasySpoon
+ * Copyright (C) 2008 Karel Mittig
+ *-----------------------------------------------------------------------------
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  Please refer to the LICENSE.txt file that comes along with this source file
+ *  or to http://www.gnu.org/licenses/gpl.txt for a full version of the license.
+ *
+ *-----------------------------------------------------------------------------
+ * For any comment, question, suggestion, bugfix or code contribution please
+ * contact Karel Mittig : karel [dot] mittig [at] gmail [dot] com
+ *---------------------------------------------------------------------------*/
+
+package icap.services.resources.gs;
+
+//////////////////////////////////////////
+//IMPORTS
+import icap.core.AbstractService;
+//////////////////////////////////////////
+
+/**
+ * Context of a scripts chain: the scripts applied in order to one ICAP transaction.<br>
+ * Everything that does not depend on the script is prepared once for the whole chain:
+ * user name and group are extracted on first use, and native Java scripts share a single
+ * HttpMessage, whose headers are edited in place and whose body is passed from one script
+ * to the next without any copy. Body is encoded back only once, by service, after last script,
+ * and only if a script has actually modified it (see isBodyModified()).<br>
+ * A chain is used by one service thread and must not be shared.
+ * @author mittig
+ */
+public final class ScriptChain {
+
+	/**ICAP service handling the transaction*/
+	final AbstractService service;
+	/**the requested URL*/
+	final String url;
+	/**body text provided by service (decoded from service stored body), null if not provided*/
+	private final String original;
+	/**user name, null until resolved*/
+	private String username;
+	/**user group, null until resolved*/
+	private String usergroup;
+	/**HTTP message shared by native scripts, null until first native script*/
+	private HttpMessage message;
+	/**set when a script (other than native ones, tracked by message) has modified body*/
+	private boolean bodyModified = false;
+
+//	<------------------------------------------------------------------------->
+	/**
+	 * Create the scripts chain context of an ICAP transaction
+	 * @param service the ICAP service handling the transaction
+	 * @param url the requested URL
+	 * @param original body text provided by service to first script (null if not provided)
+	 */
+	public ScriptChain(AbstractService service, String url, String original){
+		this.service = service;
+		this.url = url;
+		this.original = original;
+	}
+//	<------------------------------------------------------------------------->
+
+//	<------------------------------------------------------------------------->
+	/**
+	 * @return the requested URL
+	 */
+	public String getUrl(){
+		return url;
+	}
+
+	/**
+	 * Body modification is tracked when scripts write it (native message body setters and sink,
+	 * or scripting languages body binding), instead of comparing body contents after the chain.
+	 * @return true if a script of the chain has modified body
+	 */
+	public boolean isBodyModified(){
+		return bodyModified || (message != null && message.bodyModified);
+	}
+
+	/**
+	 * Record that a script has modified body
+	 */
+	void setBodyModified(){
+		bodyModified = true;
+	}
+//	<------------------------------------------------------------------------->
+
+//	<------------------------------------------------------------------------->
+	/**
+	 * @return user name, as provided by ICAP client or extracted from fallback header ("" if none)
+	 */
+	String getUsername(){
+		if (username != null) return username;
+		String user = service.getIcapHeader(SpoonScript.icapuserheader);
+		try{
+			if (user !=null && user.length()!=0) {
+				if (user.startsWith("LDAP")){
+					int a = user.toLowerCase().indexOf("cn=");
+					int b = user.indexOf(",",a);
+					if (b==-1) b =user.length();
+					user = user.substring(a, b);
+				} else {
+					user = user.substring(user.indexOf("/")+1);
+				}
+			} else {
+				user = service.getIcapHeader(SpoonScript.userfallbackheader);
+				if (user==null) user = service.getReqHeader(SpoonScript.userfallbackheader);
+				if (user==null) user = service.getRespHeader(SpoonScript.userfallbackheader);
+				if (user==null) user = "";
+			}
+		}catch (Exception e){//user unavailable => let it to null
+		}
+		username = user;
+		return user;
+	}
+
+	/**
+	 * @return user group, as provided by ICAP client or extracted from fallback header ("" if none)
+	 */
+	String getUsergroup(){
+		if (usergroup != null) return usergroup;
+		String group = service.getIcapHeader(SpoonScript.icapgroupheader);
+		try{
+			if (group ==null || group.length()==0) {
+				group = service.getReqHeader(SpoonScript.groupfallbackheader);
+				if (group==null) group = service.getRespHeader(SpoonScript.groupfallbackheader);
+				if (group==null) group = "";
+			}
+		}catch (Exception e){
+			//group unavailable => let it to null
+		}
+		usergroup = group;
+		return group;
+	}
+//	<------------------------------------------------------------------------->
+
+//	<------------------------------------------------------------------------->
+	/**
+	 * Retrieve HTTP message shared by native scripts, created on first call.<br>
+	 * Message body is updated if content has been modified since last native script
+	 * (by a script in another language).
+	 * @param content current body (null if not retrieved yet)
+	 * @param lazy set if body must be retrieved on first access when not available
+	 * @return HTTP message to provide to native script
+	 */
+	HttpMessage getMessage(String content, boolean lazy){
+		if (message == null) {
+			switch (service.getType()){
+				case RESPMOD:
+					message = HttpMessage.newResponse(service, service.getHttpRequestHeader(),
+							service.getHttpResponseHeader(), content, getUsername(), getUsergroup(), SpoonScript.sharedCache);
+					break;
+				case REQMOD:
+					message = HttpMessage.newRequest(service, service.getHttpRequestHeader(), content==null?"":content,
+							getUsername(), getUsergroup(), SpoonScript.sharedCache);
+					break;
+				default:
+					return null;
+			}
+			//message body views can read service stored body until body is modified
+			if (content != null && content == original) message.storedBody = content;
+		} else if (content == null ? !message.bodyPending : message.getCurrentBody() != content){
+			//body replaced by another script (already recorded as a modification): keep message flag unchanged
+			boolean modified = message.bodyModified;
+			message.setBody(content==null && service.getType() == icap.core.Icap.TYPE.REQMOD ? "" : content);
+			message.bodyModified = modified;
+		}
+		//lazy body access: body is retrieved only if script asks for it
+		message.bodyPending = content == null && lazy;
+		return message;
+	}
+
+	/**
+	 * Retrieve HTTP message provided to preview callbacks (see SpoonScript.wants()), when chain
+	 * is created for preview phase: its body is the preview text provided to chain.
+	 * @return HTTP message with headers and body preview
+	 */
+	HttpMessage getPreviewMessage(){
+		return getMessage(original, false);
+	}
+//	<------------------------------------------------------------------------->
+}
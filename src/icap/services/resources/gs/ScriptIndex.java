@@ -0,0 +1,283 @@
+/**----------------------------------------------------------------------------
+ * GreasySpoon
+ * Copyright (C) 2008 Karel Mittig
+ *-----------------------------------------------------------------------------
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  Please refer to the LICENSE.txt file that comes along with this source file
+ *  or to http://www.gnu.org/licenses/gpl.txt for a full version of the license.
+ *
+ *-----------------------------------------------------------------------------
+ * For any comment, question, suggestion, bugfix or code contribution please
+ * contact Karel Mittig : karel [dot] mittig [at] gmail [dot] com
+ *---------------------------------------------------------------------------*/
+
+package icap.services.resources.gs;
+
+//////////////////////////////////////////
+//IMPORTS
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Vector;
+import java.util.regex.Pattern;
+//////////////////////////////////////////
+
+/**
+ * Applicability index of a scripts list (REQMOD or RESPMOD scripts).<br>
+ * Index is built once when scripts are (re)loaded, and gives for an URL and a
+ * response code the ordered list of scripts to apply, without accessing scripts files.<br>
+ * <ul>
+ * <li>include/exclude regexes are compiled once for all scripts: identical regexes
+ * are evaluated only once per request, and each regex literal start (http://www\.google\.com/)
+ * is checked before running the regex. Regexes that are only a literal, or a literal
+ * followed by .*, are evaluated as string comparisons.</li>
+ * <li>scripts whose includes all target known hosts are bucketed by host, so that
+ * scripts targeting other hosts are never evaluated.</li>
+ * <li>scripts are bucketed by processed response code.</li>
+ * </ul>
+ * Scripts status (enabled/disabled) is checked when index is used, so that
+ * enabling or disabling a script does not require a new index.<br>
+ * Instances are immutable and can be shared by all service threads.
+ * @author mittig
+ */
+public final class ScriptIndex {
+
+	/**indexed scripts, in application order*/
+	private final SpoonScript[] scripts;
+	/**set if response codes must be checked (RESPMOD)*/
+	private final boolean checkStatus;
+	/**distinct include/exclude regexes*/
+	private final Rule[] rules;
+	/**rules ids of each script includes*/
+	private final int[][] includes;
+	/**rules ids of each script excludes*/
+	private final int[][] excludes;
+	/**scripts that may apply to any host*/
+	private final BitSet anyHost = new BitSet();
+	/**scripts that only apply to some hosts, by host key (scheme://host/)*/
+	private final HashMap<String, BitSet> byHost = new HashMap<String, BitSet>();
+	/**scripts processing all response codes*/
+	private final BitSet anyStatus = new BitSet();
+	/**scripts by processed response code*/
+	private final HashMap<Integer, BitSet> byStatus = new HashMap<Integer, BitSet>();
+
+	/** regex metacharacters ending a literal start*/
+	private final static String METACHARS = "[](){}.*+?^$|";
+	/** quantifiers applying to previous character*/
+	private final static String QUANTIFIERS = "*+?{";
+
+//	<------------------------------------------------------------------------->
+	/**
+	 * Include or exclude regex, with its literal start
+	 */
+	private final static class Rule {
+		/**literal text any matching URL starts with*/
+		final String prefix;
+		/**host key of matching URLs, null if prefix does not contain the whole host*/
+		final String host;
+		/**regex to evaluate after prefix check, null if prefix check is enough*/
+		final Pattern pattern;
+		/**set if regex is a literal: URL must be equal to prefix*/
+		final boolean literal;
+
+		Rule(Pattern regex){
+			String re = regex.pattern();
+			StringBuilder sb = new StringBuilder();
+			int i = re.startsWith("^") ? 1 : 0;
+			int last = i, lastlength = 0;
+			//alternatives may start with anything: no literal start
+			if (re.indexOf('|') == -1){
+				while (i < re.length()){
+					char c = re.charAt(i);
+					if (c == '\\'){
+						if (i+1 == re.length() || Character.isLetterOrDigit(re.charAt(i+1))) break;
+						last = i; lastlength = sb.length();
+						sb.append(re.charAt(i+1));
+						i += 2;
+					} else {
+						if (METACHARS.indexOf(c) != -1) break;
+						last = i; lastlength = sb.length();
+						sb.append(c);
+						i++;
+					}
+				}
+				//quantifier applies to last literal character, which becomes optional
+				if (i < re.length() && QUANTIFIERS.indexOf(re.charAt(i)) != -1 && sb.length() > 0) {
+					sb.setLength(lastlength);
+					i = last;
+				}
+			} else {
+				i = 0;
+			}
+			String rest = re.substring(i);
+			this.prefix = sb.toString();
+			this.host = getHost(this.prefix);
+			this.literal = rest.length() == 0;
+			this.pattern = (this.literal || rest.equals(".*")) ? null : regex;
+		}
+
+		/**
+		 * @param url the URL to check
+		 * @return true if regex matches given URL
+		 */
+		boolean matches(String url){
+			if (literal) return url.equals(prefix);
+			if (!url.startsWith(prefix)) return false;
+			return pattern == null || pattern.matcher(url).matches();
+		}
+	}
+//	<------------------------------------------------------------------------->
+
+//	<------------------------------------------------------------------------->
+	/**
+	 * Build index for given scripts
+	 * @param scripts scripts, in application order
+	 * @param checkStatus set if scripts response codes filters must be applied (RESPMOD)
+	 */
+	public ScriptIndex(SpoonScript[] scripts, boolean checkStatus){
+		this.scripts = scripts.clone();
+		this.checkStatus = checkStatus;
+		this.includes = new int[scripts.length][];
+		this.excludes = new int[scripts.length][];
+		HashMap<String, Integer> ids = new HashMap<String, Integer>();
+		Vector<Rule> rulesList = new Vector<Rule>();
+		for (int i=0; i<scripts.length; i++){
+			SpoonScript sps = scripts[i];
+			if (sps == null) {
+				includes[i] = excludes[i] = new int[0];
+				continue;
+			}
+			excludes[i] = addRules(sps.getExcludes(), ids, rulesList);
+			includes[i] = addRules(sps.getIncludes(), ids, rulesList);
+
+			//hosts buckets: only if all includes target a known host
+			boolean hosted = includes[i].length > 0;
+			for (int id:includes[i]){
+				if (rulesList.get(id).host == null) hosted = false;
+			}
+			if (hosted) {
+				for (int id:includes[i]) bucket(byHost, rulesList.get(id).host).set(i);
+			} else {
+				anyHost.set(i);
+			}
+
+			//response codes buckets
+			for (int code:sps.getResponseCodeFilter()){
+				if (code == 0) anyStatus.set(i);
+				else bucket(byStatus, code).set(i);
+			}
+		}
+		this.rules = rulesList.toArray(new Rule[0]);
+	}
+//	<------------------------------------------------------------------------->
+
+//	<------------------------------------------------------------------------->
+	/**
+	 * Retrieve scripts to apply to an HTTP message
+	 * @param url the requested URL, lower case (regexes are case sensitive)
+	 * @param responseCode the HTTP response code (ignored for REQMOD scripts)
+	 * @return enabled scripts applicable to given URL and response code, in application order
+	 */
+	public Vector<SpoonScript> getScripts(String url, int responseCode){
+		Vector<SpoonScript> matching = new Vector<SpoonScript>();
+		if (scripts.length == 0) return matching;
+		BitSet candidates = (BitSet) anyHost.clone();
+		String host = getHost(url);
+		if (host != null) {
+			BitSet hosted = byHost.get(host);
+			if (hosted != null) candidates.or(hosted);
+		}
+		if (checkStatus) {
+			BitSet codes = (BitSet) anyStatus.clone();
+			BitSet coded = byStatus.get(responseCode);
+			if (coded != null) codes.or(coded);
+			candidates.and(codes);
+		}
+		//rules results for this URL: 0 not evaluated, 1 match, 2 no match
+		byte[] results = new byte[rules.length];
+		for (int i=candidates.nextSetBit(0); i>=0; i=candidates.nextSetBit(i+1)){
+			SpoonScript sps = scripts[i];
+			if (!sps.status) continue;
+			if (matchesAny(excludes[i], url, results)) continue;
+			if (includes[i].length == 0 || matchesAny(includes[i], url, results)) matching.add(sps);
+		}
+		return matching;
+	}
+//	<------------------------------------------------------------------------->
+
+//	<------------------------------------------------------------------------->
+	/**
+	 * @param ids rules to evaluate
+	 * @param url the URL to check
+	 * @param results rules results already evaluated for this URL
+	 * @return true if one of the rules matches URL
+	 */
+	private boolean matchesAny(int[] ids, String url, byte[] results){
+		for (int id:ids){
+			if (results[id] == 0) results[id] = rules[id].matches(url) ? (byte)1 : (byte)2;
+			if (results[id] == 1) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Register regexes as rules, sharing identical regexes
+	 * @param patterns the regexes
+	 * @param ids rules ids by regex
+	 * @param rulesList registered rules
+	 * @return rules ids of given regexes
+	 */
+	private static int[] addRules(Pattern[] patterns, HashMap<String, Integer> ids, Vector<Rule> rulesList){
+		int[] result = new int[patterns.length];
+		for (int i=0; i<patterns.length; i++){
+			Integer id = ids.get(patterns[i].pattern());
+			if (id == null) {
+				id = rulesList.size();
+				rulesList.add(new Rule(patterns[i]));
+				ids.put(patterns[i].pattern(), id);
+			}
+			result[i] = id;
+		}
+		return result;
+	}
+
+	/**
+	 * @param buckets buckets table
+	 * @param key bucket key
+	 * @return bucket for given key, created if needed
+	 */
+	private static <K> BitSet bucket(HashMap<K, BitSet> buckets, K key){
+		BitSet bucket = buckets.get(key);
+		if (bucket == null) {
+			bucket = new BitSet();
+			buckets.put(key, bucket);
+		}
+		return bucket;
+	}
+
+	/**
+	 * @param url an URL, or an URL start
+	 * @return URL start up to the end of host (scheme://host/), null if given text does not contain it
+	 */
+	private static String getHost(String url){
+		int pos = url.indexOf("://");
+		if (pos == -1) return null;
+		int end = url.indexOf('/', pos+3);
+		if (end == -1) return null;
+		return url.substring(0, end+1);
+	}
+//	<------------------------------------------------------------------------->
+}
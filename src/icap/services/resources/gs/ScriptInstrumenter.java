@@ -0,0 +1,355 @@
+/**----------------------------------------------------------------------------
+ * GreasySpoon
+ * Copyright (C) 2008 Karel Mittig
+ *-----------------------------------------------------------------------------
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  Please refer to the LICENSE.txt file that comes along with this source file
+ *  or to http://www.gnu.org/licenses/gpl.txt for a full version of the license.
+ *
+ *-----------------------------------------------------------------------------
+ * For any comment, question, suggestion, bugfix or code contribution please
+ * contact Karel Mittig : karel [dot] mittig [at] gmail [dot] com
+ *---------------------------------------------------------------------------*/
+
+package icap.services.resources.gs;
+
+//////////////////////////////////////////
+//IMPORTS
+import java.util.ArrayList;
+//////////////////////////////////////////
+
+/**
+ * Source rewriter inserting timeout check points in native Java scripts.<br>
+ * A call to NativeScript.checkDeadline() is inserted at each method (and lambda) entry
+ * and at each loop iteration, so that a script exceeding its timeout aborts by itself
+ * and can run directly in service thread.<br>
+ * <ul>
+ * <li>block bodies (methods, for, while, do) get the check as first statement</li>
+ * <li>single statement bodies of for and while loops are prefixed by a check condition
+ * (<code>if (!check) {} else statement</code>, which keeps else branches association)</li>
+ * <li>single statement bodies of do loops are enclosed in a block starting with the check</li>
+ * </ul>
+ * Rewriter only tokenizes source (comments, strings and characters literals are skipped)
+ * and tracks braces and parentheses: it does not validate Java syntax, which is left to compiler.
+ * Insertions never add line breaks, so that compiler and runtime line numbers are unchanged.
+ * @author mittig
+ */
+public final class ScriptInstrumenter {
+
+	/**check point statement*/
+	final static String CHECK = " NativeScript.checkDeadline();";
+	/**check point prefix for single statement loop bodies*/
+	final static String CHECK_PREFIX = " if (!NativeScript.checkDeadline()) {} else";
+
+	/**braces kinds: class body, enum constants (before first ';'), statements block, array initializer*/
+	private final static int CLASS = 0, ENUM = 1, BLOCK = 2, ARRAY = 3;
+
+	/**source to instrument*/
+	private final String src;
+	/**instrumented source*/
+	private final StringBuilder out;
+	/**current position in source*/
+	private int pos = 0;
+	/**previous significant token (identifier, keyword or punctuation)*/
+	private String prev = "";
+
+	/**kinds of opened braces*/
+	private final ArrayList<Integer> braces = new ArrayList<Integer>();
+	/**tokens preceding opened parentheses (for, while, if, method name, ...)*/
+	private final ArrayList<String> parensOwners = new ArrayList<String>();
+	/**opened parentheses that are instance creation arguments*/
+	private final ArrayList<Boolean> parensNew = new ArrayList<Boolean>();
+	/**pending do loops: braces depth of do keyword, negated if do body is not a block*/
+	private final ArrayList<Integer> doLoops = new ArrayList<Integer>();
+
+	/**token preceding last closed parenthesis*/
+	private String closedOwner = "";
+	/**set if last closed parenthesis contained instance creation arguments*/
+	private boolean closedNew = false;
+	/**set after new keyword, until instance creation arguments*/
+	private boolean pendingNew = false;
+	/**set after class/interface/enum keyword (BLOCK if none), until body*/
+	private int pendingClass = BLOCK;
+	/**set after throws keyword, until method body*/
+	private boolean pendingThrows = false;
+	/**set when next brace opens a loop body*/
+	private boolean loopBody = false;
+
+//	<------------------------------------------------------------------------->
+	/**
+	 * @param src the source to instrument
+	 */
+	private ScriptInstrumenter(String src){
+		this.src = src;
+		this.out = new StringBuilder(src.length() + src.length()/4);
+		braces.add(CLASS);
+	}
+
+	/**
+	 * Insert timeout check points in a native script source
+	 * @param source the script source (imports and NativeScript class body)
+	 * @return instrumented source, with same line numbering
+	 */
+	public static String instrument(String source){
+		ScriptInstrumenter instrumenter = new ScriptInstrumenter(source);
+		instrumenter.run();
+		return instrumenter.out.toString();
+	}
+//	<------------------------------------------------------------------------->
+
+//	<------------------------------------------------------------------------->
+	/**
+	 * Tokenize source and insert check points
+	 */
+	private void run(){
+		int length = src.length();
+		while (pos < length){
+			char c = src.charAt(pos);
+			int start = skip(pos);
+			if (start != pos) {
+				//whitespaces and comments
+				out.append(src, pos, start);
+				pos = start;
+				continue;
+			}
+			if (c == '"' || c == '\'') {
+				int end = literalEnd(pos);
+				out.append(src, pos, end);
+				pos = end;
+				prev = "\"";
+				continue;
+			}
+			if (Character.isJavaIdentifierStart(c)) {
+				int end = pos+1;
+				while (end < length && Character.isJavaIdentifierPart(src.charAt(end))) end++;
+				word(src.substring(pos, end), end);
+				continue;
+			}
+			if (Character.isDigit(c)) {
+				int end = pos+1;
+				while (end < length && (Character.isLetterOrDigit(src.charAt(end)) || src.charAt(end) == '.' || src.charAt(end) == '_')) end++;
+				out.append(src, pos, end);
+				pos = end;
+				prev = "0";
+				continue;
+			}
+			punctuation(c);
+		}
+	}
+
+	/**
+	 * Process an identifier or a keyword
+	 * @param word the identifier
+	 * @param end identifier end position in source
+	 */
+	private void word(String word, int end){
+		boolean member = prev.equals(".");
+		if (word.equals("do") && !member) {
+			out.append(word);
+			pos = end;
+			if (charAt(skip(end)) == '{') {
+				doLoops.add(braces.size());
+				loopBody = true;
+			} else {
+				doLoops.add(-braces.size());
+				out.append(" {").append(CHECK);
+			}
+			prev = word;
+			return;
+		}
+		if (word.equals("while") && !member && !doLoops.isEmpty()
+				&& Math.abs(doLoops.get(doLoops.size()-1)) == braces.size()) {
+			//do loop condition
+			if (doLoops.remove(doLoops.size()-1) < 0) out.append("} ");
+			out.append(word);
+			pos = end;
+			prev = "do-while";
+			return;
+		}
+		if (!member) {
+			if (word.equals("new")) pendingNew = true;
+			else if (word.equals("throws")) pendingThrows = true;
+			else if (word.equals("enum")) pendingClass = ENUM;
+			else if (word.equals("class") || word.equals("interface")) pendingClass = CLASS;
+		}
+		out.append(word);
+		pos = end;
+		prev = word;
+	}
+
+	/**
+	 * Process a punctuation character (or operator)
+	 * @param c the character
+	 */
+	private void punctuation(char c){
+		String token = String.valueOf(c);
+		if (c == '-' && charAt(pos+1) == '>') token = "->";
+		out.append(token);
+		pos += token.length();
+		switch (c){
+			case '(':
+				parensOwners.add(prev);
+				parensNew.add(pendingNew);
+				pendingNew = false;
+				break;
+			case ')':
+				if (!parensOwners.isEmpty()) {
+					closedOwner = parensOwners.remove(parensOwners.size()-1);
+					closedNew = parensNew.remove(parensNew.size()-1);
+					if (closedOwner.equals("for") || closedOwner.equals("while")) {
+						if (charAt(skip(pos)) == '{') loopBody = true;
+						else out.append(CHECK_PREFIX);
+					}
+				}
+				break;
+			case '[':
+				pendingNew = false;
+				break;
+			case '{':
+				openBrace();
+				break;
+			case '}':
+				if (braces.size() > 1) braces.remove(braces.size()-1);
+				break;
+			case ';':
+				if (top() == ENUM && parensOwners.isEmpty()) braces.set(braces.size()-1, CLASS);
+				pendingNew = false;
+				pendingThrows = false;
+				break;
+			default: break;
+		}
+		prev = token;
+	}
+
+	/**
+	 * Identify an opening brace, and insert a check point if it starts a method or a loop body
+	 */
+	private void openBrace(){
+		int kind = BLOCK;
+		boolean check = false;
+		int top = top();
+		if (loopBody) {
+			check = true;
+		} else if (pendingClass != BLOCK) {
+			kind = pendingClass;
+		} else if (prev.equals(")")) {
+			if (closedNew) kind = CLASS;
+			else if (top == ENUM) kind = CLASS;
+			else if (top == CLASS && !isControl(closedOwner)) check = !isConstructorCall();
+		} else if (pendingThrows && top == CLASS) {
+			check = !isConstructorCall();
+		} else if (prev.equals("->")) {
+			check = true;
+		} else if (top == ARRAY || prev.equals("=") || prev.equals("]") || prev.equals("(")) {
+			kind = ARRAY;
+		} else if (top == ENUM && Character.isJavaIdentifierStart(prev.charAt(0))) {
+			kind = CLASS;
+		}
+		braces.add(kind);
+		if (check) out.append(CHECK);
+		loopBody = false;
+		pendingClass = BLOCK;
+		pendingNew = false;
+		pendingThrows = false;
+	}
+//	<------------------------------------------------------------------------->
+
+//	<------------------------------------------------------------------------->
+	/**
+	 * @return kind of innermost opened brace
+	 */
+	private int top(){
+		return braces.get(braces.size()-1);
+	}
+
+	/**
+	 * @param owner token preceding a parenthesis
+	 * @return true if token is a statement keyword (parenthesis is not a method parameters list)
+	 */
+	private static boolean isControl(String owner){
+		return owner.equals("if") || owner.equals("for") || owner.equals("while") || owner.equals("switch")
+			|| owner.equals("catch") || owner.equals("synchronized") || owner.equals("try") || owner.equals("do-while");
+	}
+
+	/**
+	 * @return true if method body starting at current position starts by an explicit
+	 * constructor call (this(...) or super(...)), which must remain first statement
+	 */
+	private boolean isConstructorCall(){
+		int index = skip(pos);
+		for (String call:new String[]{"this", "super"}){
+			if (src.startsWith(call, index) && charAt(skip(index+call.length())) == '(') return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @param index a source position
+	 * @return character at given position, 0 if out of source
+	 */
+	private char charAt(int index){
+		return index < src.length() ? src.charAt(index) : 0;
+	}
+
+	/**
+	 * Skip whitespaces and comments
+	 * @param index start position in source
+	 * @return position of next significant character (source length if none)
+	 */
+	private int skip(int index){
+		int length = src.length();
+		while (index < length){
+			char c = src.charAt(index);
+			if (Character.isWhitespace(c)) {
+				index++;
+			} else if (c == '/' && charAt(index+1) == '/') {
+				while (index < length && src.charAt(index) != '\n') index++;
+			} else if (c == '/' && charAt(index+1) == '*') {
+				int end = src.indexOf("*/", index+2);
+				index = end == -1 ? length : end+2;
+			} else {
+				break;
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * @param index position of a string, text block or character literal start
+	 * @return position following literal end
+	 */
+	private int literalEnd(int index){
+		int length = src.length();
+		char quote = src.charAt(index);
+		if (quote == '"' && src.startsWith("\"\"\"", index)) {
+			index += 3;
+			while (index < length && !src.startsWith("\"\"\"", index)){
+				index += src.charAt(index) == '\\' ? 2 : 1;
+			}
+			return Math.min(length, index+3);
+		}
+		index++;
+		while (index < length){
+			char c = src.charAt(index);
+			if (c == '\\') index += 2;
+			else if (c == quote || c == '\n') return index+1;
+			else index++;
+		}
+		return length;
+	}
+//	<------------------------------------------------------------------------->
+}
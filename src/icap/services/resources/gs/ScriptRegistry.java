@@ -0,0 +1,104 @@
+/**----------------------------------------------------------------------------
+ * GreasySpoon
+ * Copyright (C) 2008 Karel Mittig
+ *-----------------------------------------------------------------------------
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  Please refer to the LICENSE.txt file that comes along with this source file
+ *  or to http://www.gnu.org/licenses/gpl.txt for a full version of the license.
+ *
+ *-----------------------------------------------------------------------------
+ * For any comment, question, suggestion, bugfix or code contribution please
+ * contact Karel Mittig : karel [dot] mittig [at] gmail [dot] com
+ *---------------------------------------------------------------------------*/
+
+package icap.services.resources.gs;
+
+//////////////////////////////////////////
+//IMPORTS
+import java.util.Vector;
+//////////////////////////////////////////
+
+/**
+ * Generation of GreasySpoon scripts: REQMOD and RESPMOD scripts lists, loaded and
+ * compiled, with their applicability indexes.<br>
+ * A registry is built by the thread reloading scripts, then published as a whole
+ * (see GreasySpoon.publish()): a service thread reads the current registry once per
+ * transaction and never sees a partially reloaded scripts list.<br>
+ * Instances are immutable.
+ * @author mittig
+ */
+public final class ScriptRegistry {
+
+	/**An empty registry (no scripts loaded)*/
+	public final static ScriptRegistry EMPTY = new ScriptRegistry(new SpoonScript[0], new SpoonScript[0]);
+
+	/**REQMOD scripts, in application order*/
+	private final SpoonScript[] reqScripts;
+	/**RESPMOD scripts, in application order*/
+	private final SpoonScript[] respScripts;
+	/**REQMOD scripts applicability index*/
+	private final ScriptIndex reqIndex;
+	/**RESPMOD scripts applicability index*/
+	private final ScriptIndex respIndex;
+
+//	<------------------------------------------------------------------------->
+	/**
+	 * Build a registry for given scripts
+	 * @param reqScripts REQMOD scripts, in application order
+	 * @param respScripts RESPMOD scripts, in application order
+	 */
+	public ScriptRegistry(SpoonScript[] reqScripts, SpoonScript[] respScripts){
+		this.reqScripts = reqScripts.clone();
+		this.respScripts = respScripts.clone();
+		this.reqIndex = new ScriptIndex(this.reqScripts, false);
+		this.respIndex = new ScriptIndex(this.respScripts, true);
+	}
+//	<------------------------------------------------------------------------->
+
+//	<------------------------------------------------------------------------->
+	/**
+	 * @return REQMOD scripts, in application order (copy)
+	 */
+	public SpoonScript[] getReqScripts(){
+		return reqScripts.clone();
+	}
+
+	/**
+	 * @return RESPMOD scripts, in application order (copy)
+	 */
+	public SpoonScript[] getRespScripts(){
+		return respScripts.clone();
+	}
+
+	/**
+	 * @param url the requested URL, lower case
+	 * @return enabled REQMOD scripts applicable to given URL, in application order
+	 */
+	public Vector<SpoonScript> getReqmodScripts(String url){
+		return reqIndex.getScripts(url, 0);
+	}
+
+	/**
+	 * @param url the requested URL, lower case
+	 * @param responseCode the HTTP response code
+	 * @return enabled RESPMOD scripts applicable to given URL and response code, in application order
+	 */
+	public Vector<SpoonScript> getRespmodScripts(String url, int responseCode){
+		return respIndex.getScripts(url, responseCode);
+	}
+//	<------------------------------------------------------------------------->
+}
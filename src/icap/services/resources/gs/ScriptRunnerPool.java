@@ -0,0 +1,331 @@
+/**----------------------------------------------------------------------------
+ * GreasySpoon
+ * Copyright (C) 2008 Karel Mittig
+ *-----------------------------------------------------------------------------
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  Please refer to the LICENSE.txt file that comes along with this source file
+ *  or to http://www.gnu.org/licenses/gpl.txt for a full version of the license.
+ *
+ *-----------------------------------------------------------------------------
+ * For any comment, question, suggestion, bugfix or code contribution please
+ * contact Karel Mittig : karel [dot] mittig [at] gmail [dot] com
+ *---------------------------------------------------------------------------*/
+
+package icap.services.resources.gs;
+
+//////////////////////////////////////////
+//IMPORTS
+import java.util.ArrayList;
+import tools.general.TimingWheel;
+//////////////////////////////////////////
+
+/**
+ * Bounded pool of threads running scripts.<br>
+ * Scripts are run in separate threads so that they can be aborted when they exceed
+ * their timeout (infinite loop, ...). Runner threads are reused from one script to
+ * the next: when all runners are busy and pool maximum size is reached, calling
+ * thread waits for a free runner.<br>
+ * Timeouts are enforced by a single watchdog (hashed timing wheel): a runner still
+ * running its script at expiration is killed, and the calling thread is released.
+ * A killed runner keeps its place in pool until its thread has actually terminated
+ * (thread may not be stoppable, depending on JVM).
+ * @author mittig
+ */
+public final class ScriptRunnerPool {
+
+	/**default maximum number of runner threads*/
+	public final static int DEFAULTRUNNERS = 100;
+
+	/**maximum number of runner threads*/
+	private static volatile int maxRunners = DEFAULTRUNNERS;
+
+	/**pool lock*/
+	private final static Object lock = new Object();
+	/**free runners*/
+	private final static ArrayList<Runner> idle = new ArrayList<Runner>();
+	/**number of runner threads in pool (free, busy or killed but not yet terminated)*/
+	private static int runners = 0;
+	/**number of runners currently running a script*/
+	private static int busy = 0;
+	/**number of killed runners whose thread has not terminated yet*/
+	private static int stopping = 0;
+	/**highest number of busy runners since last display*/
+	private static int peakBusy = 0;
+	/**number of scripts that waited for a free runner*/
+	private static long waitedTotal = 0;
+	/**number of scripts aborted on timeout*/
+	private static long abortedTotal = 0;
+
+	/**timeouts watchdog (shared with native scripts deadlines): 10 ms ticks, one wheel round every 5 s*/
+	final static TimingWheel watchdog = new TimingWheel("ScriptWatchdog", 512, 10);
+	static {
+		watchdog.start();
+	}
+
+	//	<------------------------------------------------------------------------->
+	/**
+	 * Thread running scripts, one at a time
+	 */
+	private final static class Runner extends Thread {
+		/**script to run, null when runner is waiting for a script*/
+		private Runnable task;
+		/**set when current script is completed or aborted*/
+		private boolean done;
+		/**set if current script has been aborted: runner is no more part of pool*/
+		private boolean killed;
+		/**stack trace of aborted script*/
+		private StackTraceElement[] trace;
+		/**current script deadline (System.nanoTime())*/
+		private long deadline;
+		/**timeout of current script*/
+		private final TimingWheel.Timeout timeout = new TimingWheel.Timeout(){
+			protected void expire(){
+				kill(Runner.this, true);
+			}
+		};
+
+		Runner(){
+			super("SpoonScript - runner");
+			this.setPriority(Thread.MIN_PRIORITY);
+			this.setDaemon(true);
+			this.start();
+		}
+
+		/**
+		 * @see java.lang.Thread#run()
+		 */
+		public void run(){
+			try {
+				while (true){
+					Runnable script;
+					synchronized (this){
+						while (task == null){
+							try {
+								this.wait();
+							} catch (InterruptedException e){
+								if (killed) return;
+							}
+						}
+						script = task;
+					}
+					try {
+						script.run();
+					} catch (Throwable t){
+						//scripts runnables report their own errors
+					}
+					synchronized (this){
+						task = null;
+						//aborted: caller has already been released by watchdog
+						if (killed) return;
+						done = true;
+						this.notifyAll();
+					}
+				}
+			} finally {
+				terminated();
+			}
+		}
+	}
+	//	<------------------------------------------------------------------------->
+
+	//	<------------------------------------------------------------------------->
+	/**
+	 * Set pool maximum size
+	 * @param max maximum number of runner threads
+	 */
+	public static void configure(int max){
+		if (max > 0) maxRunners = max;
+	}
+	//	<------------------------------------------------------------------------->
+
+	//	<------------------------------------------------------------------------->
+	/**
+	 * Run a script in a runner thread and wait for its completion
+	 * @param script the script to run
+	 * @param timeout maximum execution time, in milliseconds (0 for none)
+	 * @return null if script has completed, or its stack trace when it has been aborted on timeout
+	 * @throws InterruptedException if calling thread is interrupted (script is aborted)
+	 */
+	public static StackTraceElement[] run(Runnable script, int timeout) throws InterruptedException {
+		Runner runner = acquire();
+		synchronized (runner){
+			runner.done = false;
+			runner.deadline = timeout > 0 ? System.nanoTime() + timeout*1000000L : Long.MAX_VALUE;
+			runner.task = script;
+			runner.notifyAll();
+		}
+		if (timeout > 0) watchdog.schedule(runner.timeout, timeout);
+		try {
+			synchronized (runner){
+				while (!runner.done) runner.wait();
+			}
+		} catch (InterruptedException e){
+			watchdog.cancel(runner.timeout);
+			kill(runner, false);
+			//script may have completed meanwhile: runner is then still part of pool
+			boolean killed;
+			synchronized (runner){
+				killed = runner.killed;
+			}
+			if (!killed) release(runner);
+			throw e;
+		}
+		watchdog.cancel(runner.timeout);
+		if (runner.killed) return runner.trace;
+		release(runner);
+		return null;
+	}
+	//	<------------------------------------------------------------------------->
+
+	//	<------------------------------------------------------------------------->
+	/**
+	 * Take a free runner, or create one if pool is not full, or wait for one
+	 * @return a runner
+	 * @throws InterruptedException
+	 */
+	private static Runner acquire() throws InterruptedException {
+		synchronized (lock){
+			if (idle.isEmpty() && runners >= maxRunners) {
+				waitedTotal++;
+				while (idle.isEmpty() && runners >= maxRunners) lock.wait();
+			}
+			Runner runner;
+			if (!idle.isEmpty()) {
+				runner = idle.remove(idle.size()-1);
+			} else {
+				runner = new Runner();
+				runners++;
+			}
+			busy++;
+			if (busy > peakBusy) peakBusy = busy;
+			return runner;
+		}
+	}
+
+	/**
+	 * Give back a runner whose script is completed
+	 * @param runner the runner
+	 */
+	private static void release(Runner runner){
+		synchronized (lock){
+			busy--;
+			idle.add(runner);
+			lock.notify();
+		}
+	}
+
+	/**
+	 * Free the pool place of a killed runner, once its thread is terminated
+	 */
+	private static void terminated(){
+		synchronized (lock){
+			runners--;
+			stopping--;
+			lock.notify();
+		}
+	}
+
+	/**
+	 * Abort script run by given runner (if still running). Runner stays counted in pool
+	 * until its thread terminates
+	 * @param runner the runner
+	 * @param expired set if called on timeout expiration: runner is only killed if its
+	 * current script deadline is reached (expiration may concern a previous script)
+	 */
+	@SuppressWarnings("deprecation")
+	private static void kill(Runner runner, boolean expired){
+		synchronized (runner){
+			if (runner.done) return;
+			if (expired && System.nanoTime() - runner.deadline < 0) return;
+			runner.trace = runner.getStackTrace();
+			runner.killed = true;
+			runner.done = true;
+			runner.notifyAll();
+			//accounted while runner is locked: runner thread cannot terminate meanwhile
+			synchronized (lock){
+				busy--;
+				stopping++;
+				abortedTotal++;
+			}
+		}
+		try{
+			//heavy interruption method, required as there is no direct stop method in ScriptEngines
+			runner.interrupt();
+			if (runner.isAlive()) runner.stop();
+		} catch (Throwable t){
+			//runner thread may already be gone
+		}
+	}
+	//	<------------------------------------------------------------------------->
+
+	//	<------------------------------------------------------------------------->
+	/**
+	 * @return maximum number of runner threads
+	 */
+	public static int getMaxRunners(){
+		return maxRunners;
+	}
+
+	/**
+	 * @return number of runners currently running a script
+	 */
+	public static int getBusy(){
+		synchronized (lock){
+			return busy;
+		}
+	}
+
+	/**
+	 * Retrieve highest number of busy runners since last call, and reset it
+	 * @return highest number of busy runners since last call
+	 */
+	public static int fetchPeakBusy(){
+		synchronized (lock){
+			int peak = peakBusy;
+			peakBusy = busy;
+			return peak;
+		}
+	}
+
+	/**
+	 * @return number of scripts that waited for a free runner (pool saturated)
+	 */
+	public static long getWaitedTotal(){
+		synchronized (lock){
+			return waitedTotal;
+		}
+	}
+
+	/**
+	 * @return number of killed runners still running (threads that could not be stopped yet)
+	 */
+	public static int getStopping(){
+		synchronized (lock){
+			return stopping;
+		}
+	}
+
+	/**
+	 * @return number of scripts aborted on timeout
+	 */
+	public static long getAbortedTotal(){
+		synchronized (lock){
+			return abortedTotal;
+		}
+	}
+	//	<------------------------------------------------------------------------->
+}
@@ -36,6 +36,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.*;
 import tools.logger.Log;
 import icap.core.Icap;
+import icap.services.GreasySpoon;
 import icap.services.ServicesProperties;
 import tools.httpserver.HttpConstants;
 //////////////////////////////////////////
@@ -110,6 +111,13 @@ public abstract class SpoonScript extends Thread implements HttpConstants {
 
 	/** The HTTP Responses status code that this script is interested in (0 for any)*/
 	int[] processedStatusCodes = new int[]{200};
+
+	/** Body access modes declared by scripts (@body directive): body is not used, read on demand, or always provided*/
+	public final static int BODY_NONE = 0, BODY_LAZY = 1, BODY_FULL = 2;
+	/** Body access declared by this script*/
+	int bodyMode = BODY_FULL;
+	/** Set if script declares a preview callback (@preview directive), see wants()*/
+	boolean previewMode = false;
 	
 	/** Set if service is enabled or disabled*/
 	boolean status = true;
@@ -257,7 +265,31 @@ public abstract class SpoonScript extends Thread implements HttpConstants {
 	 * @return	Modified response body
 	 * @throws Exception in case of script error (failure, timeout, ...)
 	 */
-	public abstract String apply(icap.core.AbstractService service, String content, String url) throws Exception;
+	public String apply(icap.core.AbstractService service, String content, String url) throws Exception {
+		return apply(new ScriptChain(service, url, content), content);
+	}
+
+	/**
+	 * Apply current spoonscript to server response, as part of a scripts chain
+	 * (context shared by all scripts applied to the same transaction)
+	 * @param chain		The scripts chain context (ICAP service, URL, user, ...)
+	 * @param content 	The response body, as returned by previous script in chain
+	 * @return	Modified response body
+	 * @throws Exception in case of script error (failure, timeout, ...)
+	 */
+	public abstract String apply(ScriptChain chain, String content) throws Exception;
+
+	/**
+	 * Preview phase: called while ICAP client is still in preview, for scripts declaring @preview,
+	 * to know if script is interested in the message. If no script is interested, service answers
+	 * within the preview and the rest of the body is never transferred.<br>
+	 * Default implementation (scripting languages) is always interested.
+	 * @param chain		The preview scripts chain context: HTTP message headers and body preview
+	 * @return false if script is not interested in message (and must not be applied to it)
+	 */
+	public boolean wants(ScriptChain chain){
+		return true;
+	}
 
 //	<------------------------------------------------------------------------->
 	/**
@@ -306,6 +338,20 @@ public String getPendingErrors(){
 		this.excludes.clear();
 		this.includes.clear();
 	}
+
+	/**
+	 * @return include regexes (copy)
+	 */
+	final Pattern[] getIncludes(){
+		return this.includes.toArray(new Pattern[0]);
+	}
+
+	/**
+	 * @return exclude regexes (copy)
+	 */
+	final Pattern[] getExcludes(){
+		return this.excludes.toArray(new Pattern[0]);
+	}
 	
 //	<------------------------------------------------------------------------->
 	/**
@@ -399,16 +445,17 @@ public String getPendingErrors(){
 	 * @return script status (either enabled or disabled)
 	 */
 	public final boolean getStatus(){
-		refresh();
 		if (Log.finest()) Log.trace(Log.FINEST, "["+this.name+" ] Script status set to " + status); //$NON-NLS-1$ //$NON-NLS-2$
 		return this.status;
 	}
 
 	/**
-	 * Check if file has been modified (using filesystem timestamp), and if true reload it
+	 * Check if file has been modified (using filesystem timestamp), and if true reload scripts
+	 * (see GreasySpoon.reload()): modified script is loaded as a new SpoonScript object, published
+	 * with the new scripts generation. This object is left unchanged.
 	 */
 	public final void refresh(){
-		if ( isModified()) reload();
+		if ( isModified()) GreasySpoon.reload();
 	}
 
 	/**
@@ -460,11 +507,9 @@ public String getPendingErrors(){
 	}
 
 	/**
-	 * Check if script file is up to date. If not, reload the script from disk
-	 * @return the script as stored on disk
+	 * @return the script, as loaded from disk in this object (see refresh() to reload modified scripts)
 	 */
 	public final String getServerScript() {
-		if ( isModified()) reload();
 		return this.serverScript;
 	}
 	
@@ -484,16 +529,6 @@ public String getPendingErrors(){
 	//public abstract void testScript();
 //	<------------------------------------------------------------------------->
 
-//	<------------------------------------------------------------------------->
-	/**
-	 * Reload script from file
-	 */
-	private final synchronized void reload(){
-		Log.service(Log.INFO,"["+this.getScriptName()+"]\t script reloaded after modification event"); //$NON-NLS-1$
-		load(this.file);
-	}
-//	<------------------------------------------------------------------------->
-
 
 //	<------------------------------------------------------------------------->
 	/**
@@ -529,6 +564,8 @@ public String getPendingErrors(){
 	protected final SpoonScript load(File file){
 		if (Log.finest()) Log.trace(Log.FINEST, "Reloading script from "+file.getName());
 		this.reset();
+		this.bodyMode = BODY_FULL;
+		this.previewMode = false;
 
 		try {       
 			BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), SCRIPTENCODING));
@@ -599,6 +636,21 @@ public String getPendingErrors(){
 						this.setScriptTimeout(Integer.parseInt(str.substring(pos+"@timeout".length()).trim()));
 						continue;
 					} 
+					if ( (pos = str.indexOf("@body"))!=-1 ){ 
+						String mode = str.substring(pos+"@body".length()).trim().toLowerCase();
+						if (mode.startsWith("none")){
+							this.bodyMode = BODY_NONE;
+						} else if (mode.startsWith("lazy")){
+							this.bodyMode = BODY_LAZY;
+						} else {
+							this.bodyMode = BODY_FULL;
+						}
+						continue;
+					} 
+					if ( (pos = str.indexOf("@preview"))!=-1 ){ 
+						this.previewMode = str.substring(pos+"@preview".length()).trim().indexOf("off")==-1;
+						continue;
+					} 
 					if ( (pos = str.indexOf("@status"))!=-1 ){ 
 						if (str.substring(pos+"@status".length()).trim().indexOf("off")!=-1){ 
 							this.setStatus(false);
@@ -773,6 +825,43 @@ public String getPendingErrors(){
 		}
 	}
 
+	/**
+	 * Get body access declared by script (@body none|lazy|full, full per default):<br>
+	 * BODY_NONE: script only uses headers, body is neither read nor provided<br>
+	 * BODY_LAZY: body is read, uncompressed and decoded only when script asks for it<br>
+	 * BODY_FULL: body is provided to script
+	 * @return script body access mode
+	 */
+	public int getBodyMode() {
+		return bodyMode;
+	}
+
+	/**
+	 * @param scripts scripts to apply on a message
+	 * @return the body access mode needed by given scripts (the most demanding one)
+	 */
+	public final static int getBodyMode(Collection<SpoonScript> scripts) {
+		int mode = BODY_NONE;
+		for (SpoonScript sps:scripts) mode = Math.max(mode, sps.getBodyMode());
+		return mode;
+	}
+
+	/**
+	 * @return true if script declares a preview callback (@preview [on|off], off per default)
+	 */
+	public boolean usesPreview() {
+		return previewMode;
+	}
+
+	/**
+	 * @param scripts scripts to apply on a message
+	 * @return true if at least one of given scripts declares a preview callback
+	 */
+	public final static boolean usesPreview(Collection<SpoonScript> scripts) {
+		for (SpoonScript sps:scripts) if (sps.usesPreview()) return true;
+		return false;
+	}
+
 	/**
 	 * @return RIGHTS attached to the script
 	 * @see tools.httpserver.HttpConstants.RIGHTS
@@ -0,0 +1,219 @@
+/**----------------------------------------------------------------------------
+ * GreasySpoon
+ * Copyright (C) 2008 Karel Mittig
+ *-----------------------------------------------------------------------------
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  Please refer to the LICENSE.txt file that comes along with this source file
+ *  or to http://www.gnu.org/licenses/gpl.txt for a full version of the license.
+ *
+ *-----------------------------------------------------------------------------
+ * For any comment, question, suggestion, bugfix or code contribution please
+ * contact Karel Mittig : karel [dot] mittig [at] gmail [dot] com
+ *-----------------------------------------------------------------------------*/
+package tools.general;
+
+////////////////////////////
+// Import
+import java.io.*;
+import java.lang.reflect.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.*;
+////////////////////////////
+
+/**
+ * Storage tiers used by segmented bodies.<br>
+ * Small bodies are stored in heap segments. Once a body exceeds the direct threshold,
+ * next segments are taken from a pool of direct buffers shared by all workers, so that
+ * large bodies do not load garbage collector. Once it exceeds the spill threshold (or if
+ * direct pool is exhausted), next segments are regions of a memory-mapped temporary file.<br>
+ * Direct buffers are allocated on demand up to pool size and are never freed: they are
+ * given back to pool when bodies are reset. Temporary files are deleted as soon as they
+ * are created, and unmapped when bodies are reset.
+ * @author mittig
+ */
+public class BodyStorage {
+
+	/**size of memory-mapped file regions*/
+	public final static int MAPPEDSEGMENTSIZE = 1024*1024;
+
+	/**body size from which direct buffers are used, in bytes*/
+	private static volatile int directThreshold = 256*1024;
+	/**body size from which bodies are spilled to memory-mapped files, in bytes*/
+	private static volatile long spillThreshold = 8*1024*1024;
+	/**maximum size of direct buffers pool, in bytes*/
+	private static volatile long directPoolSize = 64*1024*1024;
+	/**directory of temporary files*/
+	private static volatile File spillDirectory = null;
+
+	/**free direct buffers*/
+	private final static ConcurrentLinkedQueue<ByteBuffer> directFree = new ConcurrentLinkedQueue<ByteBuffer>();
+	/**direct buffers allocated so far, in bytes*/
+	private final static AtomicLong directAllocated = new AtomicLong(0);
+	/**direct buffers currently used by bodies, in bytes*/
+	private final static AtomicLong directUsed = new AtomicLong(0);
+	/**number of bodies currently spilled to files*/
+	private final static AtomicInteger spilled = new AtomicInteger(0);
+
+	//	<------------------------------------------------------------------------->
+	/**
+	 * Set storage tiers thresholds
+	 * @param directThresholdKB body size from which direct buffers are used, in KB
+	 * @param spillThresholdKB body size from which bodies are spilled to memory-mapped files, in KB
+	 * @param directPoolMB maximum size of direct buffers pool, in MB
+	 */
+	public static void configure(int directThresholdKB, int spillThresholdKB, int directPoolMB){
+		if (directThresholdKB > 0) directThreshold = directThresholdKB*1024;
+		if (spillThresholdKB > 0) spillThreshold = spillThresholdKB*1024L;
+		if (directPoolMB >= 0) directPoolSize = directPoolMB*1024L*1024L;
+	}
+
+	/**
+	 * @param directory directory in which temporary files are created (null for system default)
+	 */
+	public static void setSpillDirectory(File directory){
+		spillDirectory = directory;
+	}
+	//	<------------------------------------------------------------------------->
+
+	//	<------------------------------------------------------------------------->
+	/**
+	 * @return body size from which direct buffers are used, in bytes
+	 */
+	public static int getDirectThreshold(){
+		return directThreshold;
+	}
+
+	/**
+	 * @return body size from which bodies are spilled to memory-mapped files, in bytes
+	 */
+	public static long getSpillThreshold(){
+		return spillThreshold;
+	}
+
+	/**
+	 * @return direct buffers currently used by bodies, in bytes
+	 */
+	public static long getDirectUsed(){
+		return directUsed.get();
+	}
+
+	/**
+	 * @return direct buffers allocated so far (used or pooled), in bytes
+	 */
+	public static long getDirectAllocated(){
+		return directAllocated.get();
+	}
+
+	/**
+	 * @return number of bodies currently spilled to files
+	 */
+	public static int getSpilledBodies(){
+		return spilled.get();
+	}
+	//	<------------------------------------------------------------------------->
+
+	//	<------------------------------------------------------------------------->
+	/**
+	 * @return a cleared direct segment, or null if pool is exhausted
+	 */
+	static ByteBuffer allocateDirect(){
+		ByteBuffer segment = directFree.poll();
+		if (segment == null){
+			long allocated;
+			do {
+				allocated = directAllocated.get();
+				if (allocated + SegmentedBuffer.SEGMENTSIZE > directPoolSize) return null;
+			} while (!directAllocated.compareAndSet(allocated, allocated + SegmentedBuffer.SEGMENTSIZE));
+			segment = ByteBuffer.allocateDirect(SegmentedBuffer.SEGMENTSIZE);
+		}
+		directUsed.addAndGet(SegmentedBuffer.SEGMENTSIZE);
+		return segment;
+	}
+
+	/**
+	 * Give back a direct segment to pool
+	 * @param segment segment returned by allocateDirect()
+	 */
+	static void releaseDirect(ByteBuffer segment){
+		segment.clear();
+		directUsed.addAndGet(-SegmentedBuffer.SEGMENTSIZE);
+		directFree.offer(segment);
+	}
+	//	<------------------------------------------------------------------------->
+
+	//	<------------------------------------------------------------------------->
+	/**
+	 * Create a temporary file to spill a body to. File is deleted at once (or on exit if
+	 * system does not allow to delete an opened file): it only lives while channel is opened.
+	 * @return a read/write channel on an empty temporary file
+	 * @throws IOException
+	 */
+	static FileChannel createSpillFile() throws IOException {
+		File file = File.createTempFile("gsbody", ".tmp", spillDirectory);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		if (!file.delete()) file.deleteOnExit();
+		spilled.incrementAndGet();
+		return raf.getChannel();
+	}
+
+	/**
+	 * Close a temporary file created by createSpillFile()
+	 * @param channel the file channel
+	 */
+	static void closeSpillFile(FileChannel channel){
+		spilled.decrementAndGet();
+		try {
+			channel.close();
+		} catch (IOException e){
+			//nothing to do
+		}
+	}
+	//	<------------------------------------------------------------------------->
+
+	//	<------------------------------------------------------------------------->
+	/**Unsafe.invokeCleaner(ByteBuffer) method (java 9+), null if not available*/
+	private static Method cleaner = null;
+	private static Object unsafe = null;
+	static {
+		try {
+			Class<?> unsafeclass = Class.forName("sun.misc.Unsafe");
+			Field field = unsafeclass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			unsafe = field.get(null);
+			cleaner = unsafeclass.getMethod("invokeCleaner", ByteBuffer.class);
+		} catch (Throwable t){
+			cleaner = null;
+		}
+	}
+
+	/**
+	 * Release memory mapped by given buffer at once, without waiting for garbage collection.
+	 * Does nothing if JVM does not allow it. Buffer must not be used anymore.
+	 * @param buffer a memory-mapped buffer
+	 */
+	static void unmap(MappedByteBuffer buffer){
+		if (cleaner == null) return;
+		try {
+			cleaner.invoke(unsafe, buffer);
+		} catch (Throwable t){
+			//buffer will be unmapped on garbage collection
+		}
+	}
+	//	<------------------------------------------------------------------------->
+}
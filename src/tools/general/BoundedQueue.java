@@ -0,0 +1,178 @@
+/**----------------------------------------------------------------------------
+ * GreasySpoon
+ * Copyright (C) 2008 Karel Mittig
+ *-----------------------------------------------------------------------------
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  Please refer to the LICENSE.txt file that comes along with this source file
+ *  or to http://www.gnu.org/licenses/gpl.txt for a full version of the license.
+ *
+ *-----------------------------------------------------------------------------
+ * For any comment, question, suggestion, bugfix or code contribution please
+ * contact Karel Mittig : karel [dot] mittig [at] gmail [dot] com
+ *-----------------------------------------------------------------------------*/
+package tools.general;
+
+////////////////////////////
+// Import
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.*;
+////////////////////////////
+
+/**
+ * Bounded multi-producers / multi-consumers queue.<br>
+ * Uses an array of sequenced slots (D. Vyukov algorithm): producers and consumers
+ * only compete through CAS operations on tail and head counters, without locks.
+ * A semaphore counting published elements allows consumers to sleep while queue is empty.<br>
+ * Capacity is rounded up to the next power of two.
+ * @param <E> Type of queued elements
+ * @author mittig
+ */
+public class BoundedQueue<E> {
+
+	/**largest supported capacity*/
+	public final static int MAX_CAPACITY = 1<<30;
+
+	/**index mask (capacity - 1)*/
+	private final int mask;
+	/**queued elements*/
+	private final AtomicReferenceArray<E> items;
+	/**slots sequences: tell if a slot is free for producer at given position, or ready for consumer*/
+	private final AtomicLongArray sequences;
+	/**next position to write*/
+	private final AtomicLong tail = new AtomicLong(0);
+	/**next position to read*/
+	private final AtomicLong head = new AtomicLong(0);
+	/**number of published elements, used to park consumers*/
+	private final Semaphore available = new Semaphore(0);
+
+	//	<------------------------------------------------------------------------->
+	/**
+	 * Create a new queue
+	 * @param capacity maximum number of elements in queue (rounded up to a power of two)
+	 * @throws IllegalArgumentException if capacity is not in [1, MAX_CAPACITY]
+	 */
+	public BoundedQueue(int capacity){
+		if (capacity <= 0 || capacity > MAX_CAPACITY) throw new IllegalArgumentException("Invalid queue capacity: "+capacity);
+		int size = Math.max(2, Integer.highestOneBit(capacity));
+		if (size < capacity) size <<= 1;
+		mask = size-1;
+		items = new AtomicReferenceArray<E>(size);
+		sequences = new AtomicLongArray(size);
+		for (int i=0; i<size; i++) sequences.set(i, i);
+	}
+	//	<------------------------------------------------------------------------->
+
+	//	<------------------------------------------------------------------------->
+	/**
+	 * Add an element in queue if not full
+	 * @param element element to add
+	 * @return true if element has been added, false if queue is full
+	 */
+	public boolean offer(E element){
+		long pos = tail.get();
+		for (;;){
+			int index = (int)pos & mask;
+			long diff = sequences.get(index) - pos;
+			if (diff == 0){
+				if (tail.compareAndSet(pos, pos+1)) {
+					items.set(index, element);
+					sequences.set(index, pos+1);
+					available.release();
+					return true;
+				}
+				pos = tail.get();
+			} else if (diff < 0){
+				return false;//slot still used by previous round => full
+			} else {
+				pos = tail.get();
+			}
+		}
+	}
+	//	<------------------------------------------------------------------------->
+
+	//	<------------------------------------------------------------------------->
+	/**
+	 * Retrieve and remove queue head, if any
+	 * @return head element, or null if queue is empty
+	 */
+	public E poll(){
+		if (!available.tryAcquire()) return null;
+		return dequeue();
+	}
+	//	<------------------------------------------------------------------------->
+
+	//	<------------------------------------------------------------------------->
+	/**
+	 * Retrieve and remove queue head, waiting for an element if queue is empty
+	 * @return head element
+	 * @throws InterruptedException if thread is interrupted while waiting
+	 */
+	public E take() throws InterruptedException {
+		available.acquire();
+		return dequeue();
+	}
+	//	<------------------------------------------------------------------------->
+
+	//	<------------------------------------------------------------------------->
+	/**
+	 * Remove queue head. Caller must own a permit from available semaphore, so an
+	 * element is guaranteed to be published (possibly after a concurrent producer
+	 * finishes writing a previous slot).
+	 * @return head element
+	 */
+	private E dequeue(){
+		long pos = head.get();
+		for (;;){
+			int index = (int)pos & mask;
+			long diff = sequences.get(index) - (pos+1);
+			if (diff == 0){
+				if (head.compareAndSet(pos, pos+1)) {
+					E element = items.get(index);
+					items.set(index, null);
+					sequences.set(index, pos+mask+1);
+					return element;
+				}
+				pos = head.get();
+			} else if (diff < 0){
+				Thread.yield();//slot reserved but not yet written by producer
+				pos = head.get();
+			} else {
+				pos = head.get();
+			}
+		}
+	}
+	//	<------------------------------------------------------------------------->
+
+	//	<------------------------------------------------------------------------->
+	/**
+	 * @return approximate number of elements in queue
+	 */
+	public int size(){
+		long size = tail.get() - head.get();
+		return size<0?0:(int)size;
+	}
+	//	<------------------------------------------------------------------------->
+
+	//	<------------------------------------------------------------------------->
+	/**
+	 * @return queue capacity
+	 */
+	public int capacity(){
+		return mask+1;
+	}
+	//	<------------------------------------------------------------------------->
+}
@@ -0,0 +1,201 @@
+/**----------------------------------------------------------------------------
+ * GreasySpoon
+ * Copyright (C) 2008 Karel Mittig
+ *-----------------------------------------------------------------------------
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  Please refer to the LICENSE.txt file that comes along with this source file
+ *  or to http://www.gnu.org/licenses/gpl.txt for a full version of the license.
+ *
+ *-----------------------------------------------------------------------------
+ * For any comment, question, suggestion, bugfix or code contribution please
+ * contact Karel Mittig : karel [dot] mittig [at] gmail [dot] com
+ *-----------------------------------------------------------------------------*/
+package tools.general;
+
+////////////////////////////
+// Import
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+////////////////////////////
+
+/**
+ * Per-worker buffers arena.<br>
+ * Streams created by an arena keep their buffer when they are reset, and segmented
+ * bodies created by an arena give their segments back to it, so that a worker
+ * proceeding similar transactions stops allocating once its buffers have grown to
+ * the usual messages size.<br>
+ * Retention is bounded by two limits: a buffer larger than the high-water mark is
+ * dropped on reset (it was grown by an unusually large message), and all arenas
+ * together never retain more than the global cap (buffers that would exceed it are
+ * dropped as well). Dropped buffers are replaced by a small one. Free segments
+ * kept by an arena are bounded the same way.<br>
+ * An arena is owned by a single worker thread: only the global counter is shared.
+ * @author mittig
+ */
+public class BufferArena {
+
+	/**initial size of streams buffers*/
+	public final static int INITIALSIZE = 8192;
+
+	/**maximum capacity retained by a single buffer, in bytes*/
+	private static volatile int highWater = 1024*1024;
+	/**maximum capacity retained by all arenas, in bytes*/
+	private static volatile long globalCap = 64*1024*1024;
+	/**capacity currently retained by all arenas*/
+	private final static AtomicLong retained = new AtomicLong(0);
+
+	/**capacity currently retained by this arena*/
+	private long owned = 0;
+
+	/**free segments*/
+	private ByteBuffer[] segments = new ByteBuffer[16];
+	/**number of free segments*/
+	private int free = 0;
+
+	//	<------------------------------------------------------------------------->
+	/**
+	 * Set retention limits (applied on next buffers resets)
+	 * @param highWaterKB maximum capacity retained by a single buffer, in KB
+	 * @param globalCapMB maximum capacity retained by all arenas, in MB
+	 */
+	public static void configure(int highWaterKB, int globalCapMB){
+		if (highWaterKB > 0) highWater = highWaterKB*1024;
+		if (globalCapMB > 0) globalCap = globalCapMB*1024L*1024L;
+	}
+	//	<------------------------------------------------------------------------->
+
+	//	<------------------------------------------------------------------------->
+	/**
+	 * @return capacity currently retained by all arenas, in bytes
+	 */
+	public static long getRetained(){
+		return retained.get();
+	}
+
+	/**
+	 * @return maximum capacity retained by a single buffer, in bytes
+	 */
+	public static int getHighWater(){
+		return highWater;
+	}
+
+	/**
+	 * @return maximum capacity retained by all arenas, in bytes
+	 */
+	public static long getGlobalCap(){
+		return globalCap;
+	}
+	//	<------------------------------------------------------------------------->
+
+	//	<------------------------------------------------------------------------->
+	/**
+	 * Create a stream whose buffer is retained by this arena between resets
+	 * @return a new stream
+	 */
+	public ExtendedByteArrayOutputStream newStream(){
+		ExtendedByteArrayOutputStream stream = new ExtendedByteArrayOutputStream(INITIALSIZE);
+		stream.arena = this;
+		account(stream, INITIALSIZE);
+		return stream;
+	}
+	//	<------------------------------------------------------------------------->
+
+	//	<------------------------------------------------------------------------->
+	/**
+	 * Create a segmented body buffer using segments of this arena
+	 * @return a new empty body buffer
+	 */
+	public SegmentedBuffer newBody(){
+		return new SegmentedBuffer(this);
+	}
+
+	/**
+	 * @return a free segment, cleared
+	 */
+	ByteBuffer allocateSegment(){
+		if (free == 0) return ByteBuffer.allocate(SegmentedBuffer.SEGMENTSIZE);
+		ByteBuffer segment = segments[--free];
+		segments[free] = null;
+		owned -= SegmentedBuffer.SEGMENTSIZE;
+		retained.addAndGet(-SegmentedBuffer.SEGMENTSIZE);
+		return segment;
+	}
+
+	/**
+	 * Give back a segment. Segment is kept if free segments do not exceed high-water mark
+	 * and global cap, and dropped otherwise.
+	 * @param segment the segment, no more used
+	 */
+	void releaseSegment(ByteBuffer segment){
+		int size = SegmentedBuffer.SEGMENTSIZE;
+		if ((free+1)*size > highWater || retained.get() + size > globalCap) return;
+		if (free == segments.length) {
+			ByteBuffer[] newsegments = new ByteBuffer[free<<1];
+			System.arraycopy(segments, 0, newsegments, 0, free);
+			segments = newsegments;
+		}
+		segment.clear();
+		segments[free++] = segment;
+		owned += size;
+		retained.addAndGet(size);
+	}
+	//	<------------------------------------------------------------------------->
+
+	//	<------------------------------------------------------------------------->
+	/**
+	 * Apply retention policy to a stream being reset: buffer is kept if it does not
+	 * exceed high-water mark and global cap, and replaced by a small one otherwise.
+	 * @param stream the stream, owned by this arena
+	 */
+	void recycle(ExtendedByteArrayOutputStream stream){
+		int capacity = stream.capacity();
+		if (capacity == stream.retained) return;
+		long growth = capacity - stream.retained;
+		if (capacity > highWater || (growth > 0 && retained.get() + growth > globalCap)) {
+			stream.shrink(INITIALSIZE);
+			capacity = INITIALSIZE;
+		}
+		account(stream, capacity);
+	}
+	//	<------------------------------------------------------------------------->
+
+	//	<------------------------------------------------------------------------->
+	/**
+	 * Release all buffers accounted by this arena (to call when owner worker stops)
+	 */
+	public void release(){
+		retained.addAndGet(-owned);
+		owned = 0;
+		while (free > 0) segments[--free] = null;
+	}
+	//	<------------------------------------------------------------------------->
+
+	//	<------------------------------------------------------------------------->
+	/**
+	 * Update retained capacity for given stream
+	 * @param stream the stream
+	 * @param capacity the stream buffer capacity now retained
+	 */
+	private void account(ExtendedByteArrayOutputStream stream, int capacity){
+		int delta = capacity - stream.retained;
+		if (delta == 0) return;
+		stream.retained = capacity;
+		owned += delta;
+		retained.addAndGet(delta);
+	}
+	//	<------------------------------------------------------------------------->
+}
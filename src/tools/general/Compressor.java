@@ -70,19 +70,18 @@ public class Compressor {
 //	<------------------------------------------------------------------------->
 	/**
 	 * Uncompress given data using GZIP algorithm
-	 * @param compressedFile ByteArrayOutputStream containing GZIP compressed data
-	 * @return a ByteArrayOutputStream containing uncompressed data
+	 * @param compressedFile buffer containing GZIP compressed data
+	 * @return a buffer containing uncompressed data
 	 * @throws Exception
 	 */
-	public static ExtendedByteArrayOutputStream gunzip(ExtendedByteArrayOutputStream compressedFile) throws Exception {
+	public static SegmentedBuffer gunzip(SegmentedBuffer compressedFile) throws Exception {
 		// Open the compressed file
 		if (compressedFile == null || compressedFile.size() == 0 ) return compressedFile;
 		
-		ByteArrayInputStream compressed = new ByteArrayInputStream(compressedFile.toByteArray());
-		GZIPInputStream in = new GZIPInputStream(compressed);
+		GZIPInputStream in = new GZIPInputStream(compressedFile.getInputStream(), buffersize);
 
 		// Open the output array
-		ExtendedByteArrayOutputStream uncompressed = new ExtendedByteArrayOutputStream();
+		SegmentedBuffer uncompressed = new SegmentedBuffer();
 
 		// Transfer bytes from the compressed file to the output file
 		byte[] buf = new byte[buffersize];
@@ -107,11 +106,11 @@ public class Compressor {
 //	<------------------------------------------------------------------------->
 	/**
 	 * Uncompress given data using Deflate algorithm
-	 * @param compressedFile ByteArrayOutputStream containing GZIP compressed data
-	 * @return a ByteArrayOutputStream containing uncompressed data
+	 * @param compressedFile buffer containing deflate compressed data
+	 * @return a buffer containing uncompressed data
 	 * @throws Exception
 	 */
-	public static ExtendedByteArrayOutputStream inflate(ExtendedByteArrayOutputStream compressedFile) throws Exception {
+	public static SegmentedBuffer inflate(SegmentedBuffer compressedFile) throws Exception {
 		// Open the compressed file
 		if (compressedFile == null || compressedFile.size() == 0 ) return compressedFile;
 		
@@ -120,10 +119,9 @@ public class Compressor {
 		byte dummybyte = 0; // nowrap requires a dummy empty byte to be added at the end of the stream
 		compressedFile.write(dummybyte);
 		
-		ByteArrayInputStream compressed = new ByteArrayInputStream(compressedFile.toByteArray());
-		InflaterInputStream in = new InflaterInputStream(compressed,inflater);
+		InflaterInputStream in = new InflaterInputStream(compressedFile.getInputStream(),inflater);
 		// Open the output array
-		ExtendedByteArrayOutputStream uncompressed = new ExtendedByteArrayOutputStream();
+		SegmentedBuffer uncompressed = new SegmentedBuffer();
 
 		// Transfer bytes from the compressed file to the output file
 		byte[] buf = new byte[buffersize];
@@ -146,15 +144,14 @@ public class Compressor {
 	 * @return compressed stream
 	 * @throws Exception
 	 */
-	public static ExtendedByteArrayOutputStream gzip(ExtendedByteArrayOutputStream stream) throws Exception {
+	public static SegmentedBuffer gzip(SegmentedBuffer stream) throws Exception {
 		// Compress the bytes
 		if (stream == null || stream.size()==0) return stream;
-		byte[] content = stream.toByteArray();
-		stream.reset();
-		GZIPOutputStream compressor = new GZIPOutputStream(stream);
-		compressor.write(content);
+		SegmentedBuffer compressed = new SegmentedBuffer();
+		GZIPOutputStream compressor = new GZIPOutputStream(compressed, buffersize);
+		stream.writeTo(compressor);
 		compressor.close();
-		return stream;
+		return compressed;
 	}
 //	<------------------------------------------------------------------------->
 
@@ -165,16 +162,15 @@ public class Compressor {
 	 * @return compressed stream
 	 * @throws Exception
 	 */
-	public static ExtendedByteArrayOutputStream deflate(ExtendedByteArrayOutputStream stream) throws Exception {
+	public static SegmentedBuffer deflate(SegmentedBuffer stream) throws Exception {
 		// Compress the bytes
 		if (stream == null || stream.size() == 0 ) return stream;
-		byte[] content = stream.toByteArray();
-		stream.reset();
-		DeflaterOutputStream compressor = new DeflaterOutputStream(stream);
+		SegmentedBuffer compressed = new SegmentedBuffer();
+		DeflaterOutputStream compressor = new DeflaterOutputStream(compressed);
 		//ZipOutputStream compressor = new ZipOutputStream(stream);
-		compressor.write(content);
+		stream.writeTo(compressor);
 		compressor.close();
-		return stream;
+		return compressed;
 	}
 //	<------------------------------------------------------------------------->
 
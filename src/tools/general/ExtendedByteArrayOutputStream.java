@@ -9,6 +9,7 @@ package tools.general;
 
 import java.util.Arrays;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * This class implements an output stream in which the data is 
@@ -26,17 +27,17 @@ import java.io.*;
  * @since   JDK1.0
  */
 
-public class ExtendedByteArrayOutputStream extends OutputStream {
+public class ExtendedByteArrayOutputStream extends ByteArrayOutputStream {
 
-    /** 
-     * The buffer where data is stored. 
+    /**
+     * Arena retaining buffer between resets (null if stream is not managed by an arena)
      */
-    protected byte buf[];
+    BufferArena arena;
 
     /**
-     * The number of valid bytes in the buffer. 
+     * Buffer capacity accounted by arena
      */
-    protected int count;
+    int retained;
 
     /**
      * Creates a new byte array output stream. The buffer capacity is 
@@ -54,10 +55,22 @@ public class ExtendedByteArrayOutputStream extends OutputStream {
      * @exception  IllegalArgumentException if size is negative.
      */
     public ExtendedByteArrayOutputStream(int size) {
-        if (size < 0) {
-            throw new IllegalArgumentException("Negative initial size: "
-                                               + size);
-        }
+	super(size);
+    }
+
+    /**
+     * @return current buffer capacity
+     */
+    int capacity() {
+	return buf.length;
+    }
+
+    /**
+     * Replace buffer by a new one of given size (stream must be empty)
+     *
+     * @param   size   the new buffer size.
+     */
+    void shrink(int size) {
 	buf = new byte[size];
     }
 
@@ -115,12 +128,15 @@ public class ExtendedByteArrayOutputStream extends OutputStream {
      * stream to zero, so that all currently accumulated output in the 
      * output stream is discarded. The output stream can be used again, 
      * reusing the already allocated buffer space. 
+     * If stream is managed by an arena, buffer is shrunk when arena 
+     * retention policy does not allow to keep it.
      *
      * @see     java.io.ByteArrayInputStream#count
+     * @see     BufferArena
      */
     public synchronized void reset() {
     	count = 0;
-    	buf = new byte[32];
+    	if (arena != null) arena.recycle(this);
     }
 
     /**
@@ -140,6 +156,16 @@ public class ExtendedByteArrayOutputStream extends OutputStream {
         return Arrays.copyOf(buf, length);
     }
 
+    /**
+     * Returns a view of the current contents of this stream, without 
+     * copying them. The view is only valid until next write or reset.
+     *
+     * @return  a buffer wrapping the valid contents of this stream.
+     */
+    public synchronized ByteBuffer toByteBuffer() {
+        return ByteBuffer.wrap(buf, 0, count);
+    }
+
     /**
      * Returns the current size of the buffer.
      *
@@ -821,7 +821,7 @@ public static String mimeMagic(byte[] data){
  * @param data byte stream
  * @return String containing MIME type, or null if none
  */
-public static String mimeMagic(ExtendedByteArrayOutputStream data){
+public static String mimeMagic(SegmentedBuffer data){
 	int cplength = data.size()<magicbytessize?data.size():magicbytessize;
 	byte[] dt = data.getBytes(cplength);
 	try{
@@ -844,7 +844,7 @@ public static String mimeMagic(ExtendedByteArrayOutputStream data){
  * @param trustServerPerDefault Trust server for unknown types or not
  * @return founded MIME type, or value initially provided in contenttype if no content type can be determined
  */
-public static String detectMime(String contenttype, String url, ExtendedByteArrayOutputStream data, boolean trustServerPerDefault){
+public static String detectMime(String contenttype, String url, SegmentedBuffer data, boolean trustServerPerDefault){
 	String mimemgc = mimeMagic(data);
 	if (mimemgc==null){
 		int pathend = url.lastIndexOf("/");
@@ -891,7 +891,7 @@ public static String detectMime(String contenttype, String url, ByteBuffer data,
  * @param data Byte stream containing request/response data
  * @return founded MIME type, or "application/octet-stream" if it cannot be determined
  */
-public static String detectMime(String url, ExtendedByteArrayOutputStream data){
+public static String detectMime(String url, SegmentedBuffer data){
 	String mimemgc = mimeMagic(data);
 	if (mimemgc==null){
 		mimemgc = getMimeTypeByExtension(url);
@@ -0,0 +1,462 @@
+/**----------------------------------------------------------------------------
+ * GreasySpoon
+ * Copyright (C) 2008 Karel Mittig
+ *-----------------------------------------------------------------------------
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  Please refer to the LICENSE.txt file that comes along with this source file
+ *  or to http://www.gnu.org/licenses/gpl.txt for a full version of the license.
+ *
+ *-----------------------------------------------------------------------------
+ * For any comment, question, suggestion, bugfix or code contribution please
+ * contact Karel Mittig : karel [dot] mittig [at] gmail [dot] com
+ *-----------------------------------------------------------------------------*/
+package tools.general;
+
+////////////////////////////
+// Import
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+////////////////////////////
+
+/**
+ * HTTP body buffer made of fixed size segments.<br>
+ * Data is appended to the last segment, and a new segment is added once it is full:
+ * contrary to ExtendedByteArrayOutputStream, buffer never grows by copying its content.
+ * First segments are heap segments, taken from (and given back to on reset) the arena
+ * of the buffer owner when there is one. Large bodies continue in direct segments, then
+ * in memory-mapped file regions: see BodyStorage for storage tiers.<br>
+ * Content can be read without copying it through views: getInputStream(), getByteBuffers()
+ * and decode(). Views are only valid until buffer is modified.<br>
+ * Class is not synchronized: a buffer is meant to be used by a single worker thread.
+ * @author mittig
+ */
+public class SegmentedBuffer extends OutputStream {
+
+	/**segments size, in bytes*/
+	public final static int SEGMENTSIZE = 16384;
+
+	/**arena providing segments (null if segments are simply allocated)*/
+	private final BufferArena arena;
+	/**segments in use. Each segment position marks the end of its valid data*/
+	private ByteBuffer[] segments = new ByteBuffer[8];
+	/**storage tier of each segment*/
+	private byte[] kinds = new byte[8];
+	/**number of segments in use*/
+	private int used = 0;
+	/**number of valid bytes in buffer*/
+	private int count = 0;
+
+	/**temporary file receiving mapped segments (null if body is not spilled)*/
+	private FileChannel spill = null;
+	/**size mapped so far in temporary file*/
+	private long spillSize = 0;
+	/**array used to write off heap segments to streams (lazily created)*/
+	private byte[] transfer = null;
+
+	private final static byte HEAP = 0, DIRECT = 1, MAPPED = 2;
+
+	//	<------------------------------------------------------------------------->
+	/**
+	 * Create an empty buffer, with segments allocated on demand
+	 */
+	public SegmentedBuffer(){
+		this(null);
+	}
+
+	/**
+	 * Create an empty buffer using segments of given arena
+	 * @param arena arena providing segments (may be null)
+	 */
+	SegmentedBuffer(BufferArena arena){
+		this.arena = arena;
+	}
+	//	<------------------------------------------------------------------------->
+
+	//	<------------------------------------------------------------------------->
+	/**
+	 * @return a segment ready to be written
+	 */
+	private ByteBuffer nextSegment(){
+		if (used > 0 && segments[used-1].hasRemaining()) return segments[used-1];
+		ByteBuffer segment = null;
+		byte kind = HEAP;
+		if (spill == null && count >= BodyStorage.getDirectThreshold() && count < BodyStorage.getSpillThreshold()){
+			segment = BodyStorage.allocateDirect();
+			kind = DIRECT;
+		}
+		if (segment == null && (spill != null || count >= BodyStorage.getDirectThreshold())){
+			segment = map();
+			kind = MAPPED;
+		}
+		if (segment == null){
+			segment = arena!=null ? arena.allocateSegment() : ByteBuffer.allocate(SEGMENTSIZE);
+			kind = HEAP;
+		}
+		if (used == segments.length) {
+			segments = Arrays.copyOf(segments, used<<1);
+			kinds = Arrays.copyOf(kinds, used<<1);
+		}
+		kinds[used] = kind;
+		segments[used++] = segment;
+		return segment;
+	}
+
+	/**
+	 * Map a new region of temporary file, creating file if needed
+	 * @return mapped region, or null if file cannot be created or extended
+	 */
+	private ByteBuffer map(){
+		try {
+			if (spill == null) {
+				spill = BodyStorage.createSpillFile();
+				spillSize = 0;
+			}
+			ByteBuffer segment = spill.map(FileChannel.MapMode.READ_WRITE, spillSize, BodyStorage.MAPPEDSEGMENTSIZE);
+			spillSize += BodyStorage.MAPPEDSEGMENTSIZE;
+			return segment;
+		} catch (IOException e){
+			return null;//keep on heap
+		}
+	}
+
+	/**
+	 * @see java.io.OutputStream#write(int)
+	 */
+	public void write(int b){
+		nextSegment().put((byte)b);
+		count++;
+	}
+
+	/**
+	 * @see java.io.OutputStream#write(byte[])
+	 */
+	public void write(byte[] b){
+		write(b, 0, b.length);
+	}
+
+	/**
+	 * @see java.io.OutputStream#write(byte[], int, int)
+	 */
+	public void write(byte[] b, int off, int len){
+		if (off < 0 || len < 0 || off+len > b.length) throw new IndexOutOfBoundsException();
+		while (len > 0){
+			ByteBuffer segment = nextSegment();
+			int n = Math.min(len, segment.remaining());
+			segment.put(b, off, n);
+			off += n;
+			len -= n;
+			count += n;
+		}
+	}
+
+	/**
+	 * Append content of given buffer
+	 * @param buffer buffer to copy
+	 */
+	public void write(SegmentedBuffer buffer){
+		for (int i=0; i<buffer.used; i++){
+			ByteBuffer view = buffer.segments[i].duplicate();
+			view.flip();
+			while (view.hasRemaining()){
+				ByteBuffer segment = nextSegment();
+				int n = Math.min(view.remaining(), segment.remaining());
+				int limit = view.limit();
+				view.limit(view.position()+n);
+				segment.put(view);
+				view.limit(limit);
+				count += n;
+			}
+		}
+	}
+
+	/**
+	 * Closing a SegmentedBuffer has no effect.
+	 */
+	public void close(){
+	}
+	//	<------------------------------------------------------------------------->
+
+	//	<------------------------------------------------------------------------->
+	/**
+	 * @return number of valid bytes in buffer
+	 */
+	public int size(){
+		return count;
+	}
+
+	/**
+	 * @return true if buffer content is (at least partly) stored off heap
+	 */
+	public boolean isOffHeap(){
+		return used > 0 && kinds[used-1] != HEAP;
+	}
+
+	/**
+	 * Discard buffer content. Segments are given back to arena or direct pool,
+	 * temporary file is unmapped and closed.
+	 */
+	public void reset(){
+		for (int i=0; i<used; i++){
+			switch (kinds[i]){
+			case HEAP:
+				if (arena != null) arena.releaseSegment(segments[i]);
+				break;
+			case DIRECT:
+				BodyStorage.releaseDirect(segments[i]);
+				break;
+			case MAPPED:
+				BodyStorage.unmap((MappedByteBuffer)segments[i]);
+				break;
+			}
+			segments[i] = null;
+		}
+		used = 0;
+		count = 0;
+		if (spill != null){
+			BodyStorage.closeSpillFile(spill);
+			spill = null;
+		}
+	}
+	//	<------------------------------------------------------------------------->
+
+	//	<------------------------------------------------------------------------->
+	/**
+	 * Write buffer content to given stream, segment by segment
+	 * @param out the stream to write to
+	 * @throws IOException
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		writeTo(out, count);
+	}
+
+	/**
+	 * Write the beginning of buffer content to given stream
+	 * @param out the stream to write to
+	 * @param length number of bytes to write (from buffer start)
+	 * @throws IOException
+	 */
+	public void writeTo(OutputStream out, int length) throws IOException {
+		for (int i=0; i<used && length>0; i++){
+			ByteBuffer segment = segments[i];
+			int size = Math.min(segment.position(), length);
+			length -= size;
+			if (segment.hasArray()) {
+				out.write(segment.array(), segment.arrayOffset(), size);
+				continue;
+			}
+			if (transfer == null) transfer = new byte[SEGMENTSIZE];
+			for (int pos=0; pos<size; pos+=transfer.length){
+				int n = Math.min(transfer.length, size-pos);
+				copy(segment, pos, transfer, 0, n);
+				out.write(transfer, 0, n);
+			}
+		}
+	}
+
+	/**
+	 * Compare the ends of this buffer and given one
+	 * @param other the buffer to compare with
+	 * @return number of identical bytes at the end of both buffers
+	 */
+	public int commonSuffix(SegmentedBuffer other){
+		int length = 0;
+		int i = used-1, j = other.used-1;
+		int pi = i>=0?segments[i].position():0, pj = j>=0?other.segments[j].position():0;
+		while (i>=0 && j>=0){
+			if (pi == 0) {
+				if (--i >= 0) pi = segments[i].position();
+				continue;
+			}
+			if (pj == 0) {
+				if (--j >= 0) pj = other.segments[j].position();
+				continue;
+			}
+			if (segments[i].get(pi-1) != other.segments[j].get(pj-1)) break;
+			pi--;
+			pj--;
+			length++;
+		}
+		return length;
+	}
+
+	/**
+	 * Copy bytes from a segment, whatever its storage
+	 * @param segment the segment
+	 * @param from position of first byte to copy in segment
+	 * @param dst destination array
+	 * @param off offset in destination array
+	 * @param length number of bytes to copy
+	 */
+	private static void copy(ByteBuffer segment, int from, byte[] dst, int off, int length){
+		if (segment.hasArray()) {
+			System.arraycopy(segment.array(), segment.arrayOffset()+from, dst, off, length);
+		} else {
+			ByteBuffer view = segment.duplicate();
+			view.position(from);
+			view.get(dst, off, length);
+		}
+	}
+
+	/**
+	 * @return a copy of buffer content
+	 */
+	public byte[] toByteArray(){
+		return getBytes(count);
+	}
+
+	/**
+	 * @param length number of bytes to copy
+	 * @return a copy of the first bytes of buffer
+	 */
+	public byte[] getBytes(int length){
+		byte[] bytes = new byte[length];
+		int pos = 0;
+		for (int i=0; i<used && pos<length; i++){
+			ByteBuffer segment = segments[i];
+			int n = Math.min(length-pos, segment.position());
+			copy(segment, 0, bytes, pos, n);
+			pos += n;
+		}
+		return bytes;
+	}
+	//	<------------------------------------------------------------------------->
+
+	//	<------------------------------------------------------------------------->
+	/**
+	 * @return read-only views of segments content (each buffer from position 0 to segment data end)
+	 */
+	public ByteBuffer[] getByteBuffers(){
+		return getByteBuffers(count);
+	}
+
+	/**
+	 * @param length number of bytes to include in views (from buffer start)
+	 * @return read-only views of segments content, up to given length
+	 */
+	public ByteBuffer[] getByteBuffers(int length){
+		int n = 0;
+		for (int size=0; n<used && size<length; n++) size += segments[n].position();
+		ByteBuffer[] views = new ByteBuffer[n];
+		for (int i=0; i<n; i++){
+			ByteBuffer view = segments[i].asReadOnlyBuffer();
+			view.flip();
+			if (view.limit() > length) view.limit(length);
+			length -= view.limit();
+			views[i] = view;
+		}
+		return views;
+	}
+
+	/**
+	 * @return a stream reading buffer content, without copying it
+	 */
+	public InputStream getInputStream(){
+		return new InputStream(){
+			private int segment = 0, pos = 0, remaining = count;
+			/**@return current segment, skipping fully read ones (null at end of buffer)*/
+			private ByteBuffer current(){
+				while (segment<used && pos>=segments[segment].position()){
+					segment++;
+					pos = 0;
+				}
+				return segment<used ? segments[segment] : null;
+			}
+			public int read(){
+				ByteBuffer b = current();
+				if (b == null) return -1;
+				remaining--;
+				return b.get(pos++) & 0xff;
+			}
+			public int read(byte[] bytes, int off, int len){
+				if (len == 0) return 0;
+				ByteBuffer b = current();
+				if (b == null) return -1;
+				int n = Math.min(len, b.position()-pos);
+				copy(b, pos, bytes, off, n);
+				pos += n;
+				remaining -= n;
+				return n;
+			}
+			public long skip(long n){
+				long skipped = 0;
+				ByteBuffer b;
+				while (skipped<n && (b = current()) != null){
+					int k = (int)Math.min(n-skipped, b.position()-pos);
+					pos += k;
+					skipped += k;
+				}
+				remaining -= (int)skipped;
+				return skipped;
+			}
+			public int available(){
+				return remaining;
+			}
+		};
+	}
+
+	/**
+	 * Decode buffer content. Bytes are decoded segment by segment, without
+	 * copying whole content in an intermediate array.
+	 * @param charsetName charset used to decode bytes
+	 * @return decoded content
+	 * @throws UnsupportedEncodingException
+	 */
+	public CharSequence decode(String charsetName) throws UnsupportedEncodingException {
+		StringBuilder text = new StringBuilder(count);
+		try {
+			Reader reader = new InputStreamReader(getInputStream(), charsetName);
+			char[] chars = new char[4096];
+			int n;
+			while ((n = reader.read(chars)) > 0) text.append(chars, 0, n);
+		} catch (UnsupportedEncodingException e){
+			throw e;
+		} catch (IOException e){
+			//cannot happen on an in-memory stream
+		}
+		return text;
+	}
+	//	<------------------------------------------------------------------------->
+
+	//	<------------------------------------------------------------------------->
+	/**
+	 * Decode buffer content using platform charset
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString(){
+		try {
+			return toString(Charset.defaultCharset().name());
+		} catch (UnsupportedEncodingException e){
+			return "";//cannot happen with default charset
+		}
+	}
+
+	/**
+	 * Decode buffer content using given charset
+	 * @param charsetName charset used to decode bytes
+	 * @return decoded content
+	 * @throws UnsupportedEncodingException
+	 */
+	public String toString(String charsetName) throws UnsupportedEncodingException {
+		if (used == 1 && segments[0].hasArray()) return new String(segments[0].array(), segments[0].arrayOffset(), count, charsetName);
+		return decode(charsetName).toString();
+	}
+	//	<------------------------------------------------------------------------->
+}
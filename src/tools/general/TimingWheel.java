@@ -0,0 +1,186 @@
+/**----------------------------------------------------------------------------
+ * GreasySpoon
+ * Copyright (C) 2008 Karel Mittig
+ *-----------------------------------------------------------------------------
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  Please refer to the LICENSE.txt file that comes along with this source file
+ *  or to http://www.gnu.org/licenses/gpl.txt for a full version of the license.
+ *
+ *-----------------------------------------------------------------------------
+ * For any comment, question, suggestion, bugfix or code contribution please
+ * contact Karel Mittig : karel [dot] mittig [at] gmail [dot] com
+ *-----------------------------------------------------------------------------*/
+package tools.general;
+
+////////////////////////////
+// Import
+import java.util.ArrayList;
+////////////////////////////
+
+/**
+ * Hashed timing wheel: a single thread expiring any number of timeouts.<br>
+ * Time is divided in ticks. Timeouts are stored in the wheel slot of their expiration
+ * tick (modulo wheel size) with the number of wheel rounds left, so that scheduling
+ * and cancelling are done in constant time, and each tick only visits one slot.<br>
+ * Timeouts are linked in slots lists by their own fields: a timeout object can be
+ * scheduled again once expired or cancelled, without any allocation.<br>
+ * Expiration precision is one tick (timeouts never expire early).
+ * @author mittig
+ */
+public class TimingWheel extends Thread {
+
+	//	<------------------------------------------------------------------------->
+	/**
+	 * A timeout that can be scheduled in a timing wheel
+	 */
+	public static abstract class Timeout {
+		/**slot list links*/
+		Timeout prev, next;
+		/**wheel slot, -1 if not scheduled*/
+		int slot = -1;
+		/**wheel rounds left before expiration*/
+		long rounds;
+
+		/**
+		 * Called by wheel thread when timeout expires
+		 */
+		protected abstract void expire();
+	}
+	//	<------------------------------------------------------------------------->
+
+	/**slots lists heads*/
+	private final Timeout[] slots;
+	/**slot number mask (slots number is a power of 2)*/
+	private final int mask;
+	/**tick duration, in milliseconds*/
+	private final long tick;
+	/**ticks processed since wheel start*/
+	private long cursor = 0;
+
+	//	<------------------------------------------------------------------------->
+	/**
+	 * Create a timing wheel. Wheel thread must then be started (start())
+	 * @param name wheel thread name
+	 * @param size slots number (rounded up to a power of 2)
+	 * @param tickMillis tick duration, in milliseconds
+	 */
+	public TimingWheel(String name, int size, long tickMillis){
+		super(name);
+		int n = 1;
+		while (n < size) n <<= 1;
+		this.slots = new Timeout[n];
+		this.mask = n-1;
+		this.tick = Math.max(1, tickMillis);
+		this.setDaemon(true);
+	}
+	//	<------------------------------------------------------------------------->
+
+	//	<------------------------------------------------------------------------->
+	/**
+	 * Schedule a timeout (rescheduled if already scheduled)
+	 * @param timeout the timeout
+	 * @param delay delay before expiration, in milliseconds
+	 */
+	public synchronized void schedule(Timeout timeout, long delay){
+		unlink(timeout);
+		//current tick is already started: one more tick so that timeout never expires early
+		long ticks = Math.max(0, (delay + tick - 1) / tick) + 1;
+		timeout.slot = (int)((cursor + ticks) & mask);
+		timeout.rounds = (ticks - 1) / slots.length;
+		timeout.prev = null;
+		timeout.next = slots[timeout.slot];
+		if (timeout.next != null) timeout.next.prev = timeout;
+		slots[timeout.slot] = timeout;
+	}
+
+	/**
+	 * Cancel a timeout. Does nothing if timeout is not scheduled (or already expired)
+	 * @param timeout the timeout
+	 */
+	public synchronized void cancel(Timeout timeout){
+		unlink(timeout);
+	}
+
+	/**
+	 * Remove a timeout from its slot list
+	 * @param timeout the timeout
+	 */
+	private void unlink(Timeout timeout){
+		if (timeout.slot == -1) return;
+		if (timeout.prev != null) timeout.prev.next = timeout.next;
+		else slots[timeout.slot] = timeout.next;
+		if (timeout.next != null) timeout.next.prev = timeout.prev;
+		timeout.prev = timeout.next = null;
+		timeout.slot = -1;
+	}
+	//	<------------------------------------------------------------------------->
+
+	//	<------------------------------------------------------------------------->
+	/**
+	 * Advance wheel by one tick
+	 * @return timeouts expired on this tick, null if none
+	 */
+	private synchronized ArrayList<Timeout> advance(){
+		cursor++;
+		ArrayList<Timeout> expired = null;
+		Timeout timeout = slots[(int)(cursor & mask)];
+		while (timeout != null){
+			Timeout next = timeout.next;
+			if (timeout.rounds > 0) {
+				timeout.rounds--;
+			} else {
+				unlink(timeout);
+				if (expired == null) expired = new ArrayList<Timeout>();
+				expired.add(timeout);
+			}
+			timeout = next;
+		}
+		return expired;
+	}
+
+	/**
+	 * @see java.lang.Thread#run()
+	 */
+	public void run(){
+		long start = System.nanoTime()/1000000;
+		long ticks = 0;
+		while (true){
+			try {
+				long wait = start + (ticks+1)*tick - System.nanoTime()/1000000;
+				if (wait > 0) Thread.sleep(wait);
+			} catch (InterruptedException e){
+				//on interruption, just continue
+			}
+			//late ticks are caught up so that timeouts keep their delay
+			long now = System.nanoTime()/1000000;
+			while (start + (ticks+1)*tick <= now){
+				ticks++;
+				ArrayList<Timeout> expired = advance();
+				if (expired == null) continue;
+				//expiration is called out of wheel lock: it may schedule timeouts again
+				for (Timeout timeout:expired){
+					try {
+						timeout.expire();
+					} catch (Throwable t){
+						//a failing timeout must not stop the wheel
+					}
+				}
+			}
+		}
+	}
+	//	<------------------------------------------------------------------------->
+}
@@ -29,9 +29,14 @@ package tools.httpserver;
 //////////////////////////////////////////
 //IMPORTS
 import java.util.Date;
+import java.util.Map;
 import tools.httpserver.custom.ProjectSpecifics;
 import java.lang.management.*;
 import tools.monitor.TrafficStatistics;
+import tools.monitor.ConnectionStatistics;
+import tools.general.BufferArena;
+import tools.general.BodyStorage;
+import icap.services.resources.gs.ScriptRunnerPool;
 import java.io.*;
 import java.text.*;
 //////////////////////////////////////////
@@ -222,6 +227,39 @@ public class InfoPage {
 	}
 	//-----------------------------------------------------------------------------
 
+	//-----------------------------------------------------------------------------
+	/**
+	 * @return the connections activity for this server (accept rate and distribution, 
+	 * pools queue depth, wait time and rejections)
+	 */
+	public static String getConnectionsActivity(){
+		StringBuilder stb = new StringBuilder();
+		stb.append("<div class=\"").append(headclass).append("\">").append("Connections").append("</div>\r\n");
+		stb.append("<div class=\"").append(itemclass).append("\">");
+		stb.append("Accept rate since last display:&nbsp;&nbsp;&nbsp;\t").append(ConnectionStatistics.getAcceptRate()).append(" c/s<br />\r\n");
+		stb.append("Total accepted connections:&nbsp;&nbsp;&nbsp;\t").append(ConnectionStatistics.getAcceptedTotal()).append("<br />\r\n");
+		for (Map.Entry<String, Long> acceptor:ConnectionStatistics.getAcceptorsDistribution().entrySet()){
+			stb.append("&nbsp;&nbsp;&nbsp;Acceptor ").append(acceptor.getKey()).append(":&nbsp;&nbsp;&nbsp;\t").append(acceptor.getValue()).append("<br />\r\n");
+		}
+		stb.append("Connections waiting for a thread:&nbsp;&nbsp;&nbsp;\t").append(ConnectionStatistics.getQueueDepth()).append("<br />\r\n");
+		stb.append("Total queued connections:&nbsp;&nbsp;&nbsp;\t").append(ConnectionStatistics.getQueuedTotal()).append("<br />\r\n");
+		stb.append("Average queue wait time:&nbsp;&nbsp;&nbsp;\t").append(ConnectionStatistics.getAverageWait()).append(" ms<br />\r\n");
+		stb.append("Max queue wait time since last display:&nbsp;&nbsp;&nbsp;\t").append(ConnectionStatistics.fetchMaxWait()).append(" ms<br />\r\n");
+		stb.append("Rejected on full queue (503):&nbsp;&nbsp;&nbsp;\t").append(ConnectionStatistics.getRejectedTotal()).append("<br />\r\n");
+		stb.append("Bypassed on full queue (204):&nbsp;&nbsp;&nbsp;\t").append(ConnectionStatistics.getBypassedTotal()).append("<br />\r\n");
+		stb.append("Memory retained by threads buffers:&nbsp;&nbsp;&nbsp;\t").append(BufferArena.getRetained()/1024).append(" KB / ").append(BufferArena.getGlobalCap()/1024).append(" KB<br />\r\n");
+		stb.append("Direct memory used by bodies:&nbsp;&nbsp;&nbsp;\t").append(BodyStorage.getDirectUsed()/1024).append(" KB / ").append(BodyStorage.getDirectAllocated()/1024).append(" KB<br />\r\n");
+		stb.append("Bodies spilled to temporary files:&nbsp;&nbsp;&nbsp;\t").append(BodyStorage.getSpilledBodies()).append("<br />\r\n");
+		stb.append("Busy script runners:&nbsp;&nbsp;&nbsp;\t").append(ScriptRunnerPool.getBusy()).append(" / ").append(ScriptRunnerPool.getMaxRunners()).append("<br />\r\n");
+		stb.append("Max busy script runners since last display:&nbsp;&nbsp;&nbsp;\t").append(ScriptRunnerPool.fetchPeakBusy()).append("<br />\r\n");
+		stb.append("Scripts queued on saturated runners pool:&nbsp;&nbsp;&nbsp;\t").append(ScriptRunnerPool.getWaitedTotal()).append("<br />\r\n");
+		stb.append("Scripts aborted on timeout:&nbsp;&nbsp;&nbsp;\t").append(ScriptRunnerPool.getAbortedTotal()).append("<br />\r\n");
+		stb.append("Aborted script runners not terminated yet:&nbsp;&nbsp;&nbsp;\t").append(ScriptRunnerPool.getStopping()).append("<br />\r\n");
+		stb.append("</div>");
+		return stb.toString();
+	}
+	//-----------------------------------------------------------------------------
+
 	
 	//-----------------------------------------------------------------------------
 	/**
@@ -374,6 +374,9 @@ public class RequestsManager implements HttpConstants{
 		if (pagecontent.indexOf("<!--cumulativeactivity-->")>-1){
 			pagecontent = pagecontent.replace("<!--cumulativeactivity-->", InfoPage.getCumulativeActivity());
 		}
+		if (pagecontent.indexOf("<!--connectionsactivity-->")>-1){
+			pagecontent = pagecontent.replace("<!--connectionsactivity-->", InfoPage.getConnectionsActivity());
+		}
 		if (pagecontent.indexOf("<!--timeinformation-->")>-1){
 			pagecontent = pagecontent.replace("<!--timeinformation-->", InfoPage.getTimeInformation());
 		}
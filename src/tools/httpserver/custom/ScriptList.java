@@ -69,6 +69,8 @@ public class ScriptList implements HttpConstants{
         StringBuilder sb = new StringBuilder();
         SpoonScript script;
         SpoonScript[] scripts;
+        //scripts modified on disk are published again as new objects before being listed
+        icap.services.GreasySpoon.reload();
         if (requestmode) scripts = icap.services.GreasySpoon.reqSpoonScripts;
         else scripts = icap.services.GreasySpoon.respSpoonScripts;
         int counter = -1;
@@ -187,7 +189,10 @@ public class ScriptList implements HttpConstants{
 	        for (int i=0; i<scripts.size(); i++){
 	        	script = scripts.elementAt(i);
 	        	if (script.getFile().equals(scriptfile)){
-	        		script.refresh();
+	        		//reload modified script as a new script object, published with other scripts
+	        		icap.services.GreasySpoon.reload();
+	        		for (SpoonScript sps:icap.services.GreasySpoon.reqSpoonScripts) if (sps!=null && sps.getFile().equals(scriptfile)) return sps.getPendingErrors();
+	        		for (SpoonScript sps:icap.services.GreasySpoon.respSpoonScripts) if (sps!=null && sps.getFile().equals(scriptfile)) return sps.getPendingErrors();
 	        		return script.getPendingErrors();
 	        	}
 	        }
@@ -258,9 +263,9 @@ public class ScriptList implements HttpConstants{
         }
         if (deleted){
         	if (requestmode) {
-        		icap.services.GreasySpoon.reqSpoonScripts = scripts.toArray(new SpoonScript[0]);
+        		icap.services.GreasySpoon.publish(scripts.toArray(new SpoonScript[0]), icap.services.GreasySpoon.respSpoonScripts);
         	} else {
-        		icap.services.GreasySpoon.respSpoonScripts  = scripts.toArray(new SpoonScript[0]);
+        		icap.services.GreasySpoon.publish(icap.services.GreasySpoon.reqSpoonScripts, scripts.toArray(new SpoonScript[0]));
         	}
         }
 
@@ -0,0 +1,186 @@
+/**----------------------------------------------------------------------------
+ * GreasySpoon
+ * Copyright (C) 2008,2009 Karel Mittig
+ *-----------------------------------------------------------------------------
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  Please refer to the LICENSE.txt file that comes along with this source file
+ *  or to http://www.gnu.org/licenses/gpl.txt for a full version of the license.
+ *
+ *-----------------------------------------------------------------------------
+ * For any comment, question, suggestion, bugfix or code contribution please
+ * contact Karel Mittig : karel [dot] mittig [at] gmail [dot] com
+ *---------------------------------------------------------------------------*/
+package tools.monitor;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class used to store connections statistics:
+ * accepted connections per acceptor, pools queue depth, 
+ * time spent in queue and rejected connections
+ * @author Karel
+ */
+public class ConnectionStatistics {
+
+	private static AtomicLong queueDepth = new AtomicLong(0);
+	private static AtomicLong queuedCounter = new AtomicLong(0);
+	private static AtomicLong dequeuedCounter = new AtomicLong(0);
+	private static AtomicLong waitTotal = new AtomicLong(0);
+	private static AtomicLong waitMax = new AtomicLong(0);
+	private static AtomicLong rejectedCounter = new AtomicLong(0);
+	private static AtomicLong bypassedCounter = new AtomicLong(0);
+
+	private static AtomicLong acceptedCounter = new AtomicLong(0);
+	private static long acceptMonitorCounter = 0;
+	private static long acceptTimeStamp = System.nanoTime();
+	/**Accepted connections counters, per acceptor*/
+	private static TreeMap<String, AtomicLong> acceptors = new TreeMap<String, AtomicLong>();
+
+	/**
+	 * Register an acceptor thread (or retrieve its counter if already registered)
+	 * @param name acceptor name
+	 * @return counter to provide to accepted() method
+	 */
+	public static AtomicLong registerAcceptor(String name){
+		synchronized (acceptors){
+			AtomicLong counter = acceptors.get(name);
+			if (counter == null){
+				counter = new AtomicLong(0);
+				acceptors.put(name, counter);
+			}
+			return counter;
+		}
+	}
+
+	/**
+	 * Record a connection accepted by an acceptor
+	 * @param acceptor the acceptor counter, as returned by registerAcceptor()
+	 */
+	public static void accepted(AtomicLong acceptor){
+		acceptor.incrementAndGet();
+		acceptedCounter.incrementAndGet();
+	}
+
+	/**
+	 * @return The average accepted connections per seconds since last call to this method
+	 */
+	public static synchronized long getAcceptRate(){
+		long timeStamp2 = System.nanoTime();
+		long total = acceptedCounter.get();
+		long deltaseconds = (timeStamp2 - acceptTimeStamp) / 1000000000;
+		long delta = total - acceptMonitorCounter;
+		if (deltaseconds == 0) return delta;
+		acceptMonitorCounter = total;
+		acceptTimeStamp = timeStamp2;
+		return delta/deltaseconds;
+	}
+
+	/**
+	 * @return The total accepted connections
+	 */
+	public static long getAcceptedTotal(){
+		return acceptedCounter.get();
+	}
+
+	/**
+	 * @return accepted connections, per acceptor name
+	 */
+	public static Map<String, Long> getAcceptorsDistribution(){
+		TreeMap<String, Long> distribution = new TreeMap<String, Long>();
+		synchronized (acceptors){
+			for (Map.Entry<String, AtomicLong> entry:acceptors.entrySet()){
+				distribution.put(entry.getKey(), entry.getValue().get());
+			}
+		}
+		return distribution;
+	}
+
+	/**
+	 * Record a connection put in a pool queue
+	 */
+	public static void queued(){
+		queuedCounter.incrementAndGet();
+		queueDepth.incrementAndGet();
+	}
+
+	/**
+	 * Record a connection taken from a pool queue by a worker
+	 * @param waitnanos time spent by connection in queue, in ns
+	 */
+	public static void dequeued(long waitnanos){
+		queueDepth.decrementAndGet();
+		dequeuedCounter.incrementAndGet();
+		waitTotal.addAndGet(waitnanos);
+		long max = waitMax.get();
+		while (waitnanos > max && !waitMax.compareAndSet(max, waitnanos)) max = waitMax.get();
+	}
+
+	/**
+	 * Record a connection rejected because pool queue was full
+	 * @param bypassed true if a 204 has been sent, false for a 503
+	 */
+	public static void rejected(boolean bypassed){
+		if (bypassed) bypassedCounter.incrementAndGet();
+		else rejectedCounter.incrementAndGet();
+	}
+
+	/**
+	 * @return number of connections currently waiting for a worker
+	 */
+	public static long getQueueDepth(){
+		return queueDepth.get();
+	}
+
+	/**
+	 * @return The total connections queued
+	 */
+	public static long getQueuedTotal(){
+		return queuedCounter.get();
+	}
+
+	/**
+	 * @return average time spent in queue, in ms
+	 */
+	public static float getAverageWait(){
+		long count = dequeuedCounter.get();
+		if (count == 0) return 0;
+		return (waitTotal.get() / count) / 1000000f;
+	}
+
+	/**
+	 * @return maximum time spent in queue since last call to this method, in ms
+	 */
+	public static float fetchMaxWait(){
+		return waitMax.getAndSet(0) / 1000000f;
+	}
+
+	/**
+	 * @return The total connections answered with a 503 because queue was full
+	 */
+	public static long getRejectedTotal(){
+		return rejectedCounter.get();
+	}
+
+	/**
+	 * @return The total connections answered with a 204 because queue was full
+	 */
+	public static long getBypassedTotal(){
+		return bypassedCounter.get();
+	}
+
+}
@@ -0,0 +1,285 @@
+/**----------------------------------------------------------------------------
+ * GreasySpoon
+ * Copyright (C) 2008 Karel Mittig
+ *-----------------------------------------------------------------------------
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  Please refer to the LICENSE.txt file that comes along with this source file
+ *  or to http://www.gnu.org/licenses/gpl.txt for a full version of the license.
+ *
+ *-----------------------------------------------------------------------------
+ * For any comment, question, suggestion, bugfix or code contribution please
+ * contact Karel Mittig : karel [dot] mittig [at] gmail [dot] com
+ *---------------------------------------------------------------------------*/
+
+package icap.services.resources.gs;
+
+//////////////////////////////////////////
+//IMPORTS
+import java.io.*;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import javax.tools.*;
+//////////////////////////////////////////
+
+/**
+ * Tests of ScriptInstrumenter: native Java scripts are instrumented and packaged as done
+ * by JavaSpoonScript, compiled in a temporary directory, and looping scripts must abort
+ * on their timeout.<br>
+ * Run by the "test" ant target, from GreasySpoon directory as services configuration is loaded.
+ * @author mittig
+ */
+public final class ScriptInstrumenterTest {
+
+	/**timeout given to looping scripts, in milliseconds*/
+	private final static int TIMEOUT = 100;
+
+	/**directory in which test scripts are compiled*/
+	private final File outputdir;
+
+//	<------------------------------------------------------------------------->
+	/**
+	 * Run all tests
+	 * @param args unused
+	 * @throws Exception if a test fails
+	 */
+	public static void main(String[] args) throws Exception {
+		ScriptInstrumenterTest test = new ScriptInstrumenterTest();
+		try {
+			test.testBundledScripts();
+			test.testDoWhile();
+			test.testConstructors();
+			test.testAnonymousClasses();
+			test.testArrayInitializers();
+			test.testLambdas();
+		} finally {
+			test.cleanup();
+		}
+	}
+
+	/**
+	 * Create test instance, with its own compilation directory
+	 * @throws IOException
+	 */
+	public ScriptInstrumenterTest() throws IOException {
+		outputdir = File.createTempFile("instrumenter", "");
+		outputdir.delete();
+		outputdir.mkdir();
+	}
+//	<------------------------------------------------------------------------->
+
+//	<------------------------------------------------------------------------->
+	/**
+	 * Java scripts shipped in serverscripts directory
+	 * @throws Exception
+	 */
+	public void testBundledScripts() throws Exception {
+		File[] files = new File("serverscripts").listFiles();
+		if (files == null) throw new AssertionError("serverscripts directory not found");
+		for (File file:files){
+			if (file.getName().endsWith(".java")) check(file.getName(), read(file), -1, false);
+		}
+	}
+
+	/**
+	 * do/while loops, with and without braces, including inside an if/else
+	 * @throws Exception
+	 */
+	public void testDoWhile() throws Exception {
+		check("dowhile",
+			"public void main(HttpMessage httpMessage){\r\n"
+			+"	int i = 0;\r\n"
+			+"	if (httpMessage != null) do i++; while (i < 10); else i = 1;\r\n"
+			+"	do { i--; } while (i < 10);\r\n"
+			+"	do i++; while (i > 0 || i <= 0);\r\n"
+			+"}\r\n", 4, true);
+	}
+
+	/**
+	 * Constructors calling this() or super() must keep the call as first statement
+	 * @throws Exception
+	 */
+	public void testConstructors() throws Exception {
+		check("constructors",
+			"static class Counter {\r\n"
+			+"	int value;\r\n"
+			+"	Counter(){ this(1); }\r\n"
+			+"	Counter(int value){ super(); this.value = value; }\r\n"
+			+"	Counter(String value) throws NumberFormatException { this.value = Integer.parseInt(value); }\r\n"
+			+"}\r\n"
+			+"public void main(HttpMessage httpMessage){\r\n"
+			+"	new Counter();\r\n"
+			+"}\r\n", 2, false);
+	}
+
+	/**
+	 * Anonymous class bodies are not confused with blocks
+	 * @throws Exception
+	 */
+	public void testAnonymousClasses() throws Exception {
+		check("anonymous",
+			"public void main(HttpMessage httpMessage){\r\n"
+			+"	Runnable r = new Runnable(){\r\n"
+			+"		public void run(){ for (int i = 0; i < 3; i++) debug(\"\" + i); }\r\n"
+			+"	};\r\n"
+			+"	r.run();\r\n"
+			+"	Object o = new Object(){ public String toString(){ return \"{\"; } };\r\n"
+			+"}\r\n", 4, false);
+	}
+
+	/**
+	 * Array initializers are left untouched
+	 * @throws Exception
+	 */
+	public void testArrayInitializers() throws Exception {
+		check("arrays",
+			"static final int[][] TABLE = {{1, 2}, {3, 4}};\r\n"
+			+"String[] names = new String[]{\"a\", \"b\"};\r\n"
+			+"public void main(HttpMessage httpMessage){\r\n"
+			+"	int[] values = {1, 2, 3};\r\n"
+			+"	for (int[] row : TABLE) { values = new int[]{row[0], row[1]}; }\r\n"
+			+"	Object[] objects = new Object[]{new int[]{1}, names, new String[][]{{\"c\"}}};\r\n"
+			+"}\r\n", 2, false);
+	}
+
+	/**
+	 * Lambda bodies are instrumented, and a looping lambda aborts on timeout
+	 * @throws Exception
+	 */
+	public void testLambdas() throws Exception {
+		check("lambdas",
+			"public void main(HttpMessage httpMessage){\r\n"
+			+"	java.util.List<String> list = new java.util.ArrayList<String>();\r\n"
+			+"	list.add(\"a\");\r\n"
+			+"	list.forEach(s -> debug(s));\r\n"
+			+"	list.forEach(s -> { while (s.isEmpty()) s = \"b\"; debug(s); });\r\n"
+			+"	Runnable r = () -> { while (true) { } };\r\n"
+			+"	r.run();\r\n"
+			+"}\r\n", 5, true);
+	}
+//	<------------------------------------------------------------------------->
+
+//	<------------------------------------------------------------------------->
+	/**
+	 * Instrument, compile and run a script
+	 * @param name test name
+	 * @param source script source
+	 * @param checks expected number of check points, -1 if not verified
+	 * @param loops set if script never ends by itself: it must then abort on timeout
+	 * @throws Exception if script cannot be compiled or instantiated
+	 */
+	private void check(String name, String source, int checks, boolean loops) throws Exception {
+		String instrumented = ScriptInstrumenter.instrument(source);
+		assertEquals(name + ": line count", lines(source), lines(instrumented));
+		int found = instrumented.split("NativeScript\\.checkDeadline\\(\\)", -1).length - 1;
+		if (checks >= 0) assertEquals(name + ": check points in\r\n" + instrumented, checks, found);
+
+		String classname = "test_" + name.replaceAll("\\W", "_");
+		NativeScript script = (NativeScript)compile(JavaSpoonScript.packageScript(new StringBuilder(source), classname)
+				, classname).getConstructor().newInstance();
+		if (!loops) return;
+		NativeScript.startDeadline(TIMEOUT);
+		try {
+			script.main(null);
+			throw new AssertionError(name + ": script not aborted on timeout");
+		} catch (ScriptTimeoutError e){
+			//expected
+		} finally {
+			NativeScript.stopDeadline();
+		}
+	}
+
+	/**
+	 * Compile a packaged script into test directory
+	 * @param source packaged script source
+	 * @param classname script class name
+	 * @return compiled class
+	 * @throws Exception
+	 */
+	private Class<?> compile(final String source, String classname) throws Exception {
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+		StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, null);
+		fileManager.setLocation(StandardLocation.CLASS_OUTPUT, Arrays.asList(outputdir));
+		JavaFileObject unit = new SimpleJavaFileObject(java.net.URI.create("string:///" + classname + JavaFileObject.Kind.SOURCE.extension), JavaFileObject.Kind.SOURCE){
+			@Override
+			public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+				return source;
+			}
+		};
+		boolean success = compiler.getTask(null, fileManager, diagnostics, null, null, Arrays.asList(unit)).call();
+		fileManager.close();
+		if (!success) throw new AssertionError(classname + ": compilation failed: " + diagnostics.getDiagnostics());
+		ClassLoader cl = new URLClassLoader(new URL[]{outputdir.toURI().toURL()});
+		return cl.loadClass(JavaSpoonScript.nativepackage + "." + classname);
+	}
+
+	/**
+	 * Remove compilation directory
+	 */
+	private void cleanup(){
+		delete(outputdir);
+	}
+
+	/**
+	 * @param file file or directory to delete recursively
+	 */
+	private static void delete(File file){
+		File[] files = file.listFiles();
+		if (files != null) for (File f:files) delete(f);
+		file.delete();
+	}
+
+	/**
+	 * @param message failure message
+	 * @param expected expected value
+	 * @param actual actual value
+	 */
+	private static void assertEquals(String message, int expected, int actual){
+		if (expected != actual) throw new AssertionError(message + ": expected " + expected + " but was " + actual);
+	}
+
+	/**
+	 * @param s a source
+	 * @return number of lines in source
+	 */
+	private static int lines(String s){
+		return s.split("\n", -1).length;
+	}
+
+	/**
+	 * Read a script file as loaded by SpoonScript (rights line is removed)
+	 * @param file a script file
+	 * @return script source
+	 * @throws IOException
+	 */
+	private static String read(File file) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), SpoonScript.SCRIPTENCODING));
+		try {
+			StringBuilder sb = new StringBuilder();
+			String str;
+			while ((str = in.readLine()) != null){
+				if (str.startsWith("#rights=")) continue;
+				sb.append(str).append("\r\n");
+			}
+			return sb.toString();
+		} finally {
+			in.close();
+		}
+	}
+//	<------------------------------------------------------------------------->
+}